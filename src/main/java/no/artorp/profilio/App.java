@@ -1,6 +1,8 @@
 package no.artorp.profilio;
 import java.io.File;
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,9 +18,11 @@ import no.artorp.profilio.javafx.ExceptionDialog;
 import no.artorp.profilio.javafx.MainWindowController;
 import no.artorp.profilio.javafx.Registry;
 import no.artorp.profilio.logging.MyLogger;
+import no.artorp.profilio.utility.ActivationJournal;
 import no.artorp.profilio.utility.FileIO;
 import no.artorp.profilio.utility.FileLocations;
 import no.artorp.profilio.utility.Globals;
+import no.artorp.profilio.utility.ProfileMetadata;
 import no.artorp.profilio.utility.SettingsIO;
 
 public class App extends Application {
@@ -27,6 +31,7 @@ public class App extends Application {
 	
 	private SettingsIO settingsIO;
 	private Registry myRegistry;
+	private MainWindowController controller;
 
 	/**
 	 * Do not use this <em>directly</em> as program main entry point,
@@ -75,6 +80,15 @@ public class App extends Application {
 			}
 		}
 		
+		// Finish profile switches interrupted by a crash before anything reads the folders
+		try {
+			ActivationJournal.open(configDir.toPath());
+		} catch (IOException e) {
+			String errorMsg = "Could not open activation journal in config directory:\n"+configDir.getAbsolutePath();
+			LOGGER.log(Level.SEVERE, errorMsg, e);
+			throw new RuntimeException(errorMsg, e);
+		}
+		
 		File settingsFile = new File(configDir + File.separator + fileName);
 		FileIO fileIO = new FileIO();
 		SettingsIO settingsIO = new SettingsIO(settingsFile);
@@ -85,6 +99,7 @@ public class App extends Application {
 		
 		FXMLLoader loader = new FXMLLoader(getClass().getResource("/MainWindow.fxml"));
 		MainWindowController controller = new MainWindowController(primaryStage, settingsIO, fileIO, myRegistry);
+		this.controller = controller;
 		loader.setController(controller);
 		BorderPane root = (BorderPane) loader.load();
 		
@@ -97,7 +112,14 @@ public class App extends Application {
 
 	@Override
 	public void stop() throws Exception {
-		LOGGER.info("Platform stopping, interrupting all threads");
+		LOGGER.info("Platform stopping, waiting for profile switching to finish");
+		
+		if (! controller.getProfileSwitcher().shutdown(10, TimeUnit.SECONDS)) {
+			LOGGER.warning("Profile switching did not finish in time");
+		}
+		controller.close();
+		
+		LOGGER.info("Interrupting all threads");
 		
 		long start = System.currentTimeMillis();
 		long patience = 500;
@@ -113,6 +135,8 @@ public class App extends Application {
 		LOGGER.info("Saving settings file");
 		
 		settingsIO.saveRegistry(myRegistry); // Save
+		settingsIO.flush();
+		ProfileMetadata.get().flush();
 		
 		super.stop();
 	}
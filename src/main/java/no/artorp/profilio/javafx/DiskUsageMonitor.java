@@ -0,0 +1,282 @@
+package no.artorp.profilio.javafx;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.application.Platform;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.ButtonBar.ButtonData;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.TextArea;
+import javafx.scene.control.TextInputDialog;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import no.artorp.profilio.json_models.ProfileMetadataJson;
+import no.artorp.profilio.utility.DirectoryWatcher;
+import no.artorp.profilio.utility.DiskUsage;
+import no.artorp.profilio.utility.FileLocations;
+import no.artorp.profilio.utility.ProfileMetadata;
+import no.artorp.profilio.utility.WatchEngine;
+
+/**
+ * Keeps the disk usage of the profiles directory up to date and warns about
+ * profiles grown past their size limit
+ * <p>
+ * Earlier results are loaded and brought up to date once when watching starts,
+ * after that only the directories a watcher reports changes in are listed again.
+ * Work is done on a background thread, reports are handed to the JavaFX thread.
+ * Size limits are kept per profile in its sidecar, 0 for none.
+ * <p>
+ * All methods except {@link #close()} must be called from the JavaFX thread.
+ */
+public class DiskUsageMonitor {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** Milliseconds between saves of the results while changes come in */
+	public static final long SAVE_INTERVAL = 60000;
+
+	private static final double MB = 1024.0 * 1024.0;
+
+	private final Stage owner;
+	private final Registry registry;
+
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "disk-usage");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	// Used on the worker thread once created
+	private DiskUsage usage;
+	private long lastSave = 0;
+
+	// JavaFX thread only
+	private DirectoryWatcher watcher;
+	private DiskUsage measured;
+	private DiskUsage.Report report;
+	private final Set<Path> overLimit = new HashSet<>();
+
+	/**
+	 * @param owner    window dialogs are shown over
+	 * @param registry profiles whose size limits are checked
+	 */
+	public DiskUsageMonitor(Stage owner, Registry registry) {
+		this.owner = owner;
+		this.registry = registry;
+	}
+
+	/**
+	 * Start measuring a profiles directory, replacing the one measured before
+	 *
+	 * @param profilesRoot profiles directory
+	 * @param polling      whether to poll instead of relying on file system events
+	 */
+	public void watch(Path profilesRoot, boolean polling) {
+		stopWatching();
+		report = null;
+		DiskUsage next = new DiskUsage(profilesRoot, FileLocations.getConfigDirectory().resolve(DiskUsage.FILE_NAME));
+		measured = next;
+		worker.execute(() -> {
+			if (usage != null) {
+				save();
+				usage.close();
+			}
+			usage = next;
+			usage.load();
+			usage.scan();
+			save();
+			publish();
+		});
+
+		DirectoryWatcher w = new DirectoryWatcher(profilesRoot, true);
+		w.setPolling(polling);
+		w.addBatchListener(changes -> worker.execute(() -> {
+			if (usage != next) return; // Replaced meanwhile
+			usage.update(changes);
+			if (System.currentTimeMillis() - lastSave > SAVE_INTERVAL) {
+				save();
+			}
+			publish();
+		}));
+		try {
+			WatchEngine.get().addRoot(w);
+			watcher = w;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not watch " + profilesRoot + " for disk usage", e);
+		}
+	}
+
+	public void stopWatching() {
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Check for changes the watcher can not see, such as folders moved by Profilio
+	 */
+	public void refresh() {
+		worker.execute(() -> {
+			if (usage == null) return;
+			usage.scan();
+			publish();
+		});
+	}
+
+	/**
+	 * Save the results and stop, may be called from any thread
+	 */
+	public void close() {
+		if (Platform.isFxApplicationThread()) {
+			stopWatching();
+		}
+		worker.execute(() -> {
+			if (usage != null) {
+				save();
+				usage.close();
+			}
+		});
+		worker.shutdown();
+		try {
+			worker.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Show the disk usage of all profiles
+	 *
+	 * @param selected profile whose size limit can be changed from the dialog, may be {@code null}
+	 */
+	public void showReport(Profile selected) {
+		TextArea textArea = new TextArea(report == null ? "Disk usage is being measured, try again shortly." : format(report));
+		textArea.setEditable(false);
+		textArea.setStyle("-fx-font-family: monospace;");
+		textArea.setMaxWidth(Double.MAX_VALUE);
+		textArea.setMaxHeight(Double.MAX_VALUE);
+
+		ButtonType setLimit = new ButtonType("Set size limit...", ButtonData.LEFT);
+		Alert alert = selected == null
+				? new Alert(AlertType.INFORMATION, null, ButtonType.CLOSE)
+				: new Alert(AlertType.INFORMATION, null, setLimit, ButtonType.CLOSE);
+		alert.initOwner(owner);
+		alert.setTitle("Disk usage");
+		alert.setHeaderText(report == null ? "Disk usage of profiles"
+				: String.format("Profiles use %.1f MB", report.getTotal() / MB));
+		alert.getDialogPane().setContent(new VBox(textArea));
+		alert.setResizable(true);
+
+		Optional<ButtonType> result = alert.showAndWait();
+		if (result.isPresent() && result.get() == setLimit) {
+			promptLimit(selected);
+		}
+	}
+
+	private void promptLimit(Profile profile) {
+		ProfileMetadataJson meta = profile.getMetadata();
+		long current = meta == null ? 0 : meta.sizeLimit;
+		TextInputDialog prompt = new TextInputDialog(current == 0 ? "" : Long.toString(Math.round(current / MB)));
+		prompt.initOwner(owner);
+		prompt.setTitle("Size limit");
+		prompt.setHeaderText("Warn when " + profile.getName() + " grows past this size");
+		prompt.setContentText("Limit in MB, empty for none:");
+		Optional<String> result = prompt.showAndWait();
+		if (! result.isPresent()) return;
+
+		long limit;
+		try {
+			limit = result.get().trim().isEmpty() ? 0 : Math.round(Double.parseDouble(result.get().trim()) * MB);
+		} catch (NumberFormatException e) {
+			Alert alert = new Alert(AlertType.ERROR, "Not a number: " + result.get());
+			alert.initOwner(owner);
+			alert.showAndWait();
+			return;
+		}
+		ProfileMetadata.get().update(profile.getDirectory().toPath(), m -> m.sizeLimit = Math.max(0, limit));
+		overLimit.remove(profile.getDirectory().toPath());
+		if (report != null) {
+			checkLimits(report);
+		}
+	}
+
+	private void save() {
+		try {
+			usage.save();
+			lastSave = System.currentTimeMillis();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not save disk usage", e);
+		}
+	}
+
+	private void publish() {
+		DiskUsage current = usage;
+		DiskUsage.Report r = current.report();
+		Platform.runLater(() -> {
+			if (measured != current) return; // Replaced meanwhile
+			report = r;
+			checkLimits(r);
+		});
+	}
+
+	/**
+	 * Warn once about each profile that grew past its limit, until it is below again
+	 */
+	private void checkLimits(DiskUsage.Report r) {
+		List<String> warnings = new ArrayList<>();
+		for (Profile p : registry.getProfiles()) {
+			ProfileMetadataJson meta = p.getMetadata();
+			if (meta == null || meta.sizeLimit <= 0) continue;
+			DiskUsage.Usage u = r.get(p.getName());
+			Path dir = p.getDirectory().toPath();
+			if (u != null && u.getTotal() > meta.sizeLimit) {
+				if (overLimit.add(dir)) {
+					warnings.add(String.format("%s uses %.1f MB, the limit is %.1f MB",
+							p.getName(), u.getTotal() / MB, meta.sizeLimit / MB));
+				}
+			} else {
+				overLimit.remove(dir);
+			}
+		}
+		if (warnings.isEmpty()) return;
+		LOGGER.warning("Profiles over their size limit: " + warnings);
+
+		Alert alert = new Alert(AlertType.WARNING, String.join("\n", warnings));
+		alert.initOwner(owner);
+		alert.setHeaderText("Profiles over their size limit");
+		alert.show();
+	}
+
+	private static String format(DiskUsage.Report r) {
+		DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-32s %10s %10s %10s %10s%n", "Profile", "Total MB", "Mods MB", "Saves MB", "Other MB"));
+		for (DiskUsage.Usage u : r.getProfiles()) {
+			if (u.getTotal() == 0 && u.getName().isEmpty()) continue;
+			sb.append(String.format("%-32s %10.1f %10.1f %10.1f %10.1f%n",
+					u.getName().isEmpty() ? "(loose files)" : u.getName(),
+					u.getTotal() / MB, u.getMods() / MB, u.getSaves() / MB, u.getOther() / MB));
+		}
+		sb.append(String.format("%n%d directories, measured %s%n",
+				r.getDirectories(), dateFormat.format(new Date(r.getScanned()))));
+		return sb.toString();
+	}
+
+}
@@ -11,7 +11,7 @@ import javafx.beans.property.StringProperty;
 
 public class FactorioInstallation {
 	
-	private StringProperty name = new SimpleStringProperty();
+	private StringProperty name = new SimpleStringProperty(this, "name");
 	private ObjectProperty<Path> path = new SimpleObjectProperty<>();
 	
 	private BooleanProperty useCustomConfigPath = new SimpleBooleanProperty();
@@ -4,12 +4,23 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,6 +28,7 @@ import javafx.application.Platform;
 import javafx.beans.Observable;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -25,50 +37,84 @@ import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.ButtonBar.ButtonData;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableColumn.CellDataFeatures;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextArea;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import no.artorp.profilio.javafx.mainwindowcells.FacVersionNameCell;
 import no.artorp.profilio.javafx.mainwindowcells.ProfileIsActiveTableCell;
 import no.artorp.profilio.javafx.mainwindowcells.ProfileNameCell;
-import no.artorp.profilio.json_models.SettingsJson;
+import no.artorp.profilio.javafx.mainwindowcells.ProfileStatsCell;
+import no.artorp.profilio.utility.ActivationJournal;
+import no.artorp.profilio.utility.BatchWatcherListener;
+import no.artorp.profilio.utility.ChangeSet;
 import no.artorp.profilio.utility.DirectoryWatcher;
+import no.artorp.profilio.utility.EventSuppressor;
 import no.artorp.profilio.utility.FileIO;
-import no.artorp.profilio.utility.Globals;
+import no.artorp.profilio.utility.InstalledMods;
+import no.artorp.profilio.utility.ModCatalog;
+import no.artorp.profilio.utility.ModDependencyResolver;
+import no.artorp.profilio.utility.ModStore;
+import no.artorp.profilio.utility.ProfileDiff;
 import no.artorp.profilio.utility.ProfileDirectoryHelper;
+import no.artorp.profilio.utility.ProfileEntry;
+import no.artorp.profilio.utility.ProfileStats;
 import no.artorp.profilio.utility.SettingsIO;
-import no.artorp.profilio.utility.WatcherListener;
+import no.artorp.profilio.utility.WatchEngine;
 
-public class MainWindowController implements WatcherListener {
+public class MainWindowController implements BatchWatcherListener, ProfileEventListener {
 	
 	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
 
+	/** Lists the profiles directory off the FX thread, one scan at a time */
+	private static final ExecutorService PROFILE_SCANNER = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "profile-refresh");
+		t.setDaemon(true);
+		return t;
+	});
+
 	private final Stage primaryStage;
 	private Stage settingsStage;
+	private Stage saveBrowserStage;
+	private SaveBrowserController saveBrowserController;
 	private final SettingsIO settingsIO;
 	private final FileIO fileIO;
 	private final Registry myRegistry;
 	private final ObservableList<Profile> tableData;
-	private final Set<Path> ignoreFileEvents = new HashSet<>();
-	private DirectoryWatcher activeWatcher;
-	private Thread watcherThread;
+	private final ProfileSwitcher profileSwitcher;
+	private final ProfileStatsService statsService;
+	private final DiskUsageMonitor diskUsageMonitor;
+	private final ModDependencyResolver dependencyResolver = new ModDependencyResolver();
+	private DirectoryWatcher profilesWatcher;
+	private final Map<Path, DirectoryWatcher> userDataWatchers = new HashMap<>();
+	private boolean userDataAlertShowing = false;
+	private long refreshGeneration = 0;
 	
 	@FXML private TableView<Profile> tableViewProfiles;
 	@FXML private TableColumn<Profile, Profile> columnName;
 	@FXML private TableColumn<Profile, String> columnFactorioVersion;
 	@FXML private TableColumn<Profile, Boolean> columnSetActive;
+	@FXML private TableColumn<Profile, ProfileStats> columnSize;
+	@FXML private TableColumn<Profile, ProfileStats> columnSaves;
+	@FXML private TableColumn<Profile, ProfileStats> columnMods;
+	@FXML private TableColumn<Profile, ProfileStats> columnNewestSave;
 	@FXML private Button buttonNewProfile;
+	@FXML private Button buttonCloneProfile;
 	@FXML private Button buttonBrowse;
+	@FXML private Button buttonBrowseSaves;
 	@FXML private Button buttonRefresh;
 	@FXML private Button buttonDeactivate;
 	@FXML private Button buttonSettings;
+	@FXML private Button buttonDiskUsage;
 	@FXML private Button buttonStartFactorio;
 	
 	
@@ -82,6 +128,11 @@ public class MainWindowController implements WatcherListener {
 				(Profile profile) -> new Observable[] { profile.customNameProperty() }
 				);
 		
+		this.profileSwitcher = new ProfileSwitcher(myRegistry, fileIO, settingsIO);
+		this.statsService = new ProfileStatsService(myRegistry);
+		this.diskUsageMonitor = new DiskUsageMonitor(primaryStage, myRegistry);
+		ProfileEventBus.get().addListener(this);
+		
 		// Registry object needs tabledata to set up bindings, pass it over
 		myRegistry.setupPathProfileBindings(tableData);
 		
@@ -89,7 +140,7 @@ public class MainWindowController implements WatcherListener {
 	
 	public void initialize() {
 		// Load settings if found
-		SettingsJson settings = null;
+		boolean settingsLoaded = false;
 		if (! settingsIO.getSettingsFile().exists()) {
 			// First time application launched on this system
 			// Use runLater() to ensure primaryStage is properly initialized and showed
@@ -104,19 +155,28 @@ public class MainWindowController implements WatcherListener {
 			});
 		} else {
 			try {
-				settings = settingsIO.loadSettings();
-				settingsIO.putIntoRegistry(settings, myRegistry);
+				settingsIO.loadRegistry(myRegistry);
+				settingsLoaded = true;
 			} catch (IOException e) {
 				LOGGER.log(Level.SEVERE, "Error loading settings", e);
 			}
 		}
 		
+		// Settings may be behind a profile switch that was interrupted
+		ActivationJournal.Recovery recovery = ActivationJournal.get().getRecovery();
+		if (settingsLoaded && recovery.isActiveProfileKnown()) {
+			myRegistry.setActiveProfilePath(recovery.getActiveProfilePath());
+		}
+		if (settingsLoaded && recovery.isSetupCompleted()) {
+			myRegistry.setHasInitialized(true);
+		}
+		
 		
 		// Setup TableView  |new PropertyValueFactory<>("profileName")
 		columnName.setCellValueFactory((CellDataFeatures<Profile, Profile> f) -> {
 			return new SimpleObjectProperty<Profile>(f.getValue());
 			});
-		columnName.setCellFactory(tableColumn->new ProfileNameCell(this));
+		columnName.setCellFactory(tableColumn->new ProfileNameCell(profileSwitcher));
 		//columnName.setSortType(SortType.ASCENDING);
 		
 		// Columns are editable through combobox, and are in red text if invalid choice
@@ -126,7 +186,26 @@ public class MainWindowController implements WatcherListener {
 		// Toggle buttons for which profile is active
 		ToggleGroup activeGroup = new ToggleGroup();
 		columnSetActive.setCellValueFactory(new PropertyValueFactory<>("isActive"));
-		columnSetActive.setCellFactory(columnFeature->new ProfileIsActiveTableCell(activeGroup, myRegistry, fileIO, settingsIO));
+		columnSetActive.setCellFactory(columnFeature->new ProfileIsActiveTableCell(activeGroup, myRegistry, profileSwitcher));
+		
+		// Statistics fill in as they are computed, rows in view first
+		DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+		for (TableColumn<Profile, ProfileStats> column : Arrays.asList(columnSize, columnSaves, columnMods, columnNewestSave)) {
+			column.setCellValueFactory(f -> f.getValue().statsProperty());
+		}
+		columnSize.setCellFactory(c -> new ProfileStatsCell(statsService,
+				s -> String.format("%.1f MB", s.getSize() / 1024.0 / 1024.0)));
+		columnSaves.setCellFactory(c -> new ProfileStatsCell(statsService, s -> Integer.toString(s.getSaves())));
+		columnMods.setCellFactory(c -> new ProfileStatsCell(statsService, s -> Integer.toString(s.getMods())));
+		columnNewestSave.setCellFactory(c -> new ProfileStatsCell(statsService,
+				s -> s.getNewestSave() == 0 ? "" : dateFormat.format(new Date(s.getNewestSave()))));
+		tableData.addListener((ListChangeListener.Change<? extends Profile> c) -> {
+			while (c.next()) {
+				if (c.wasAdded()) {
+					statsService.requestAll(c.getAddedSubList());
+				}
+			}
+		});
 		
 		tableViewProfiles.setSortPolicy(t -> {
 			FXCollections.sort(t.getItems(), new ProfileComparator());
@@ -134,30 +213,57 @@ public class MainWindowController implements WatcherListener {
 		});
 		
 		
+		CompletableFuture<Void> profilesLoaded = CompletableFuture.completedFuture(null);
 		if (myRegistry.getHasInitialized().booleanValue()) {
-			refreshProfiles(); // If loaded from settings
+			profilesLoaded = refreshProfiles(); // If loaded from settings
 			this.setupDirectoryWatcher(myRegistry.getFactorioProfilesPath());
 		}
 		
+		if (settingsLoaded && recovery.isRecovered()) {
+			// Save recovered state once profiles are loaded
+			profilesLoaded.thenRun(() -> settingsIO.saveRegistry(myRegistry));
+		}
+		if (! recovery.getProblems().isEmpty()) {
+			Platform.runLater(() -> {
+				Alert alert = new Alert(AlertType.WARNING);
+				alert.setTitle("Interrupted profile switch");
+				alert.setHeaderText("The last profile switch did not finish and could not be completed automatically");
+				alert.setContentText(String.join("\n\n", recovery.getProblems())
+						+ "\n\nPlease verify the location of the mods and saves folders. "
+						+ "Recovery is tried again on next start, until a profile switch succeeds");
+				alert.showAndWait();
+			});
+		}
+		
 		tableViewProfiles.setItems(tableData);
 		tableViewProfiles.sort();
 		
 		
-		// Browse button disable state
+		// Browse and clone button disable state
 		tableViewProfiles.getSelectionModel().selectedIndexProperty().addListener((observable, oldValue, newValue) -> {
 			boolean nothingSelected = (newValue.intValue() == -1);
 			buttonBrowse.setDisable(nothingSelected);
+			buttonCloneProfile.setDisable(nothingSelected);
+			buttonBrowseSaves.setDisable(nothingSelected);
 		});
 		
 		// Can only start if active profile set and valid factorio version
 		this.myRegistry.activeProfileProperty().addListener((ob, o, n) -> {
 			this.evaluateLaunchButtonState();
+			if (n != null) warmModCatalog(n);
+			if (profilesWatcher != null) watchUserDataFolders();
+		});
+		
+		// Don't launch while profile folders are being moved
+		this.profileSwitcher.busyProperty().addListener((ob, o, n) -> {
+			this.evaluateLaunchButtonState();
 		});
 		
 		
 		this.myRegistry.getFactorioInstallations().addListener(
 				(javafx.collections.ListChangeListener.Change<? extends FactorioInstallation> c) -> {
 					evaluateLaunchButtonState();
+					if (profilesWatcher != null) watchUserDataFolders();
 				}
 		);
 		
@@ -169,33 +275,7 @@ public class MainWindowController implements WatcherListener {
 		
 		// Setup button actions
 		buttonNewProfile.setOnAction(event -> {
-			TextInputDialog prompt = new TextInputDialog();
-			prompt.setTitle("Enter name for the new profile");
-			prompt.setHeaderText(null);
-			prompt.setContentText("New profile name:");
-			prompt.getEditor().textProperty().addListener((observable, oldVal, newVal) -> {
-				if (newVal != null) {
-					Node confirm = prompt.getDialogPane().lookupButton(ButtonType.OK);
-					boolean alreadyInUse = false;
-					for (Profile p : tableData) {
-						if (p.getName().equalsIgnoreCase(newVal)) {
-							alreadyInUse = true;
-							break;
-						}
-					}
-					if (alreadyInUse) {
-						confirm.setDisable(true);
-						prompt.getEditor().setStyle(
-								"-fx-focus-color: rgba(255, 0, 0, 0.8); -fx-faint-focus-color:rgba(255, 100, 100, 0.2);"
-								);
-	        		} else {
-						confirm.setDisable(false);
-						prompt.getEditor().setStyle("");
-					}
-				}
-			});
-			prompt.getEditor().setText("new profile");
-			Optional<String> result = prompt.showAndWait();
+			Optional<String> result = promptProfileName("Enter name for the new profile", "new profile");
 			String name = null;
 			if (result.isPresent()) {
 				name = result.get();
@@ -214,6 +294,40 @@ public class MainWindowController implements WatcherListener {
 			saves.toFile().mkdirs();
 		});
 		
+		buttonCloneProfile.setOnAction(event -> {
+			Profile source = tableViewProfiles.getSelectionModel().getSelectedItem();
+			if (source == null) return;
+			
+			Optional<String> result = promptProfileName("Enter name for the cloned profile", source.getName() + " copy");
+			if (! result.isPresent()) return; // User cancelled
+			
+			Path sourcePath = source.getDirectory().toPath();
+			Path targetPath = sourcePath.resolveSibling(result.get());
+			if (targetPath.toFile().exists()) return;
+			
+			Path sourceFolders = myRegistry.getProfileFoldersPath(source);
+			String facVersion = source.getFactorioVersion();
+			
+			LOGGER.info("Cloning profile " + sourcePath + " to " + targetPath);
+			// The clone is added to the table when done, not file by file from the watcher
+			EventSuppressor.Token token = EventSuppressor.get().suppress(targetPath);
+			profileSwitcher.submit("Error when cloning profile " + source.getName(),
+					() -> {
+						try {
+							fileIO.cloneProfile(sourcePath, sourceFolders, targetPath);
+						} finally {
+							token.close();
+							Platform.runLater(() -> addProfile(targetPath));
+						}
+					},
+					() -> {
+						Profile clone = myRegistry.findProfile(targetPath);
+						if (clone != null) {
+							clone.setFactorioVersion(facVersion);
+						}
+					});
+		});
+		
 		buttonBrowse.setOnAction(event->{
 			File file = tableViewProfiles.getSelectionModel().getSelectedItem().getDirectory();
 			if (file.exists()) {
@@ -223,6 +337,17 @@ public class MainWindowController implements WatcherListener {
 			}
 		});
 		
+		buttonBrowseSaves.setOnAction(event -> {
+			Profile p = tableViewProfiles.getSelectionModel().getSelectedItem();
+			if (p == null) return;
+			try {
+				openSaveBrowser(p);
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, "Could not open save browser", e);
+				new ExceptionDialog(e, "Could not open save browser").showAndWait();
+			}
+		});
+		
 		buttonRefresh.setOnAction(event -> {
 			this.refreshProfiles();
 		});
@@ -238,33 +363,8 @@ public class MainWindowController implements WatcherListener {
 		});
 		
 		buttonDeactivate.setOnAction(event -> {
-			Profile activeProfile = myRegistry.getActiveProfile();
-			Path userDataPath;
-			
-			if (activeProfile == null) return;
-			
-			FactorioInstallation fi = activeProfile.getFactorioInstallation();
-			
-			if (fi != null
-					&& fi.isUseCustomConfigPath()
-					&& fi.getCustomConfigPath() != null) {
-				userDataPath = fi.getCustomConfigPath();
-			} else {
-				userDataPath = myRegistry.getFactorioDataPath();
-			}
-			
-			try {
-				fileIO.revertMoveGeneral(myRegistry.getMoveMethod(), userDataPath, activeProfile.getDirectory().toPath());
-			} catch (IOException e) {
-				String errorMsg = "There was an error when moving profile folders\n"+activeProfile.getDirectory();
-				LOGGER.log(Level.SEVERE, errorMsg, e);
-				Alert alert = new ExceptionDialog(e, errorMsg);
-				alert.showAndWait();
-			}
-			
-			activeProfile.setIsActive(false);
-			myRegistry.setActiveProfile(null);
-			settingsIO.saveRegistry(myRegistry); // Save
+			if (myRegistry.getActiveProfile() == null && profileSwitcher.getSwitchingTo() == null) return;
+			profileSwitcher.activate(null);
 		});
 		
 		buttonSettings.setOnAction(event->{
@@ -275,24 +375,25 @@ public class MainWindowController implements WatcherListener {
 			}
 		});
 		
+		buttonDiskUsage.setOnAction(event -> {
+			diskUsageMonitor.showReport(tableViewProfiles.getSelectionModel().getSelectedItem());
+		});
+		
 		buttonStartFactorio.setOnAction(event->{
-			List<String> commands = new ArrayList<>();
 			Profile activeProfile = myRegistry.getActiveProfile();
 			if (activeProfile == null) {
 				LOGGER.severe("No active profile found.");
 				return;
 			}
 			String factorioName = activeProfile.getFactorioVersion();
-			Path factorioPath = null;
-			for (FactorioInstallation fi : myRegistry.getFactorioInstallations()) {
-				if (fi.getName().equals(factorioName)) {
-					factorioPath = fi.getPath();
-				}
-			}
+			FactorioInstallation installation = myRegistry.findInstallation(factorioName);
+			Path factorioPath = installation == null ? null : installation.getPath();
 			if (factorioPath == null) {
 				LOGGER.severe("No factorio installations found.");
 				return;
 			}
+			if (! confirmModsLoad(activeProfile, factorioPath)) return;
+			List<String> commands = new ArrayList<>();
 			commands.add(factorioPath.toAbsolutePath().toString());
 			ProcessBuilder pBuilder = new ProcessBuilder(commands);
 			try {
@@ -306,9 +407,69 @@ public class MainWindowController implements WatcherListener {
 		});
 	}
 	
+	/**
+	 * Catalog the mods of a newly activated profile in the background, so the
+	 * check before launching only reads the cache
+	 */
+	private void warmModCatalog(Profile profile) {
+		Path modsFolder = myRegistry.getProfileFoldersPath(profile).resolve(SettingsIO.FOLDER_NAME_MODS);
+		CompletableFuture.runAsync(() -> {
+			try {
+				if (Files.isDirectory(modsFolder)) ModCatalog.get().scan(modsFolder);
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Could not catalog " + modsFolder, e);
+			}
+		});
+	}
+	
+	/**
+	 * Check the enabled mods of the profile against each other and the game version
+	 * 
+	 * @return {@code true} if there are no problems, or the user chose to launch anyway
+	 */
+	private boolean confirmModsLoad(Profile profile, Path factorioPath) {
+		Path modsFolder = myRegistry.getProfileFoldersPath(profile).resolve(SettingsIO.FOLDER_NAME_MODS);
+		if (! Files.isDirectory(modsFolder)) return true;
+		List<ModDependencyResolver.Problem> problems;
+		try {
+			InstalledMods mods = ModCatalog.get().scan(modsFolder);
+			problems = dependencyResolver.check(mods, dependencyResolver.readGameInfo(factorioPath));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not check mods in " + modsFolder, e);
+			return true;
+		}
+		if (problems.isEmpty()) return true;
+		
+		StringBuilder sb = new StringBuilder();
+		for (ModDependencyResolver.Problem problem : problems) {
+			sb.append(problem).append(System.lineSeparator());
+		}
+		TextArea textArea = new TextArea(sb.toString());
+		textArea.setEditable(false);
+		textArea.setWrapText(true);
+		textArea.setMaxWidth(Double.MAX_VALUE);
+		textArea.setMaxHeight(Double.MAX_VALUE);
+		
+		ButtonType launchAnyway = new ButtonType("Launch anyway", ButtonData.OK_DONE);
+		Alert alert = new Alert(AlertType.WARNING, null, launchAnyway, ButtonType.CANCEL);
+		alert.initOwner(primaryStage);
+		alert.setHeaderText("Factorio will likely refuse to load these mods");
+		alert.setContentText(String.format("Found %d mod problem%s in profile %s:",
+				problems.size(), problems.size() == 1 ? "" : "s", profile.getName()));
+		alert.getDialogPane().setExpandableContent(new VBox(textArea));
+		alert.getDialogPane().setExpanded(true);
+		
+		Optional<ButtonType> result = alert.showAndWait();
+		return result.isPresent() && result.get() == launchAnyway;
+	}
+	
+	public ProfileSwitcher getProfileSwitcher() {
+		return this.profileSwitcher;
+	}
+	
 	public void evaluateLaunchButtonState() {
 		Profile p = myRegistry.getActiveProfile();
-		if (p != null) {
+		if (p != null && ! profileSwitcher.isBusy()) {
 			FactorioInstallation fi = p.getFactorioInstallation();
 			if (fi != null) {
 				if (myRegistry.getFactorioInstallations().contains(fi)) {
@@ -321,6 +482,43 @@ public class MainWindowController implements WatcherListener {
 	}
 
 	
+	/**
+	 * Prompt for a profile name, the OK button is disabled while the name is in use
+	 * 
+	 * @param title       dialog title
+	 * @param initialName name filled in when the dialog opens
+	 * @return the chosen name, empty if the user cancelled
+	 */
+	private Optional<String> promptProfileName(String title, String initialName) {
+		TextInputDialog prompt = new TextInputDialog();
+		prompt.setTitle(title);
+		prompt.setHeaderText(null);
+		prompt.setContentText("New profile name:");
+		prompt.getEditor().textProperty().addListener((observable, oldVal, newVal) -> {
+			if (newVal != null) {
+				Node confirm = prompt.getDialogPane().lookupButton(ButtonType.OK);
+				boolean alreadyInUse = false;
+				for (Profile p : tableData) {
+					if (p.getName().equalsIgnoreCase(newVal)) {
+						alreadyInUse = true;
+						break;
+					}
+				}
+				if (alreadyInUse) {
+					confirm.setDisable(true);
+					prompt.getEditor().setStyle(
+							"-fx-focus-color: rgba(255, 0, 0, 0.8); -fx-faint-focus-color:rgba(255, 100, 100, 0.2);"
+							);
+        		} else {
+					confirm.setDisable(false);
+					prompt.getEditor().setStyle("");
+				}
+			}
+		});
+		prompt.getEditor().setText(initialName);
+		return prompt.showAndWait();
+	}
+	
 	/**
 	 * Setup new stage if unset, and open settings window
 	 * <p>
@@ -359,143 +557,344 @@ public class MainWindowController implements WatcherListener {
 		}
 	}
 	
-	public void refreshProfiles() {
-		List<Profile> newProfiles = ProfileDirectoryHelper.getProfiles(myRegistry, settingsIO);
-		tableData.setAll(newProfiles);
+	private void openSaveBrowser(Profile profile) throws IOException {
+		if (saveBrowserStage == null) {
+			saveBrowserStage = new Stage();
+			saveBrowserStage.getIcons().addAll( primaryStage.getIcons() );
+			saveBrowserStage.initOwner(primaryStage);
+			
+			FXMLLoader loader = new FXMLLoader(getClass().getResource("/SaveBrowser.fxml"));
+			saveBrowserController = new SaveBrowserController(saveBrowserStage);
+			loader.setController(saveBrowserController);
+			BorderPane root = (BorderPane) loader.load();
+			saveBrowserStage.setScene(new Scene(root));
+		}
+		
+		Path savesFolder = myRegistry.getProfileFoldersPath(profile).resolve(SettingsIO.FOLDER_NAME_SAVES);
+		saveBrowserStage.setTitle("Saves - " + profile.getName());
+		saveBrowserController.show(savesFolder);
+		saveBrowserStage.show();
+		saveBrowserStage.requestFocus();
+	}
+	
+	/**
+	 * Rescan the profiles directory in the background and apply the differences to the table
+	 * <p>
+	 * Unchanged profiles keep their instance, renamed folders are matched by file key.
+	 * The diff is computed on the FX thread against the table as it is when the scan
+	 * finishes, so watcher events handled in the meantime are not undone. A scan
+	 * overtaken by a later refresh, or by a change of profiles directory, is dropped.
+	 * 
+	 * @return completed on the FX thread once the table is up to date
+	 */
+	public CompletableFuture<Void> refreshProfiles() {
+		Path profilesPath = myRegistry.getFactorioProfilesPath();
+		long generation = ++refreshGeneration;
+		CompletableFuture<Void> applied = new CompletableFuture<>();
+		CompletableFuture.supplyAsync(() -> profilesPath == null
+				? new ArrayList<ProfileEntry>()
+				: ProfileDirectoryHelper.scanProfiles(profilesPath), PROFILE_SCANNER)
+				.whenComplete((entries, error) -> Platform.runLater(() -> {
+					try {
+						if (error != null) {
+							LOGGER.log(Level.SEVERE, "Error scanning profiles in " + profilesPath, error);
+						} else if (generation == refreshGeneration
+								&& Objects.equals(profilesPath, myRegistry.getFactorioProfilesPath())) {
+							applyProfileEntries(entries);
+						}
+					} finally {
+						applied.complete(null);
+					}
+				}));
+		return applied;
+	}
+	
+	private void applyProfileEntries(List<ProfileEntry> entries) {
+		ProfileDiff diff = ProfileDiff.compute(tableData, entries);
+		LOGGER.info("Refresh: " + diff);
+		if (diff.isEmpty()) return;
+		
+		Path activePath = myRegistry.getActiveProfilePath();
+		
+		for (Map.Entry<Profile, ProfileEntry> rename : diff.getRenamed().entrySet()) {
+			Profile p = rename.getKey();
+			p.setDirectory(rename.getValue().getPath().toFile());
+			p.setFileKey(rename.getValue().getFileKey());
+			p.setLastModified(rename.getValue().getLastModified());
+		}
+		
+		for (Map.Entry<Profile, ProfileEntry> change : diff.getChanged().entrySet()) {
+			Profile p = change.getKey();
+			p.setLastModified(change.getValue().getLastModified());
+			p.reloadMetadata();
+		}
+		
+		List<Profile> added = new ArrayList<>(diff.getAdded().size());
+		for (ProfileEntry entry : diff.getAdded()) {
+			boolean isActive = entry.getPath().equals(activePath);
+			Profile p = ProfileDirectoryHelper.createProfile(entry, myRegistry, isActive, settingsIO);
+			if (isActive) {
+				myRegistry.setActiveProfile(p);
+			}
+			added.add(p);
+		}
+		
+		if (! diff.getRemoved().isEmpty()) {
+			Set<Profile> removed = new HashSet<>(diff.getRemoved());
+			tableData.removeAll(removed);
+			myRegistry.getProfiles().removeAll(removed);
+		}
+		if (! added.isEmpty()) {
+			tableData.addAll(added);
+			myRegistry.getProfiles().addAll(added);
+		}
 		tableViewProfiles.sort();
 	}
 
+	/**
+	 * Publish watcher changes as profile events, called from the watcher thread
+	 */
 	@Override
-	public void fileDeleted(Path fileDeleted) {
-		if (Platform.isFxApplicationThread()) {
-			fileDeletedHandle(fileDeleted);
-		} else {
-			Platform.runLater(() -> fileDeletedHandle(fileDeleted));
+	public void filesChanged(ChangeSet changes) {
+		ProfileEventBus bus = ProfileEventBus.get();
+		for (Path fileDeleted : changes.getDeleted()) {
+			bus.publish(ProfileEvent.removed(this, fileDeleted));
+		}
+		for (Path fileCreated : changes.getCreated()) {
+			if (fileCreated.getFileName().toString().equals(ModStore.STORE_DIR_NAME)) continue;
+			if (! fileCreated.toFile().isDirectory()) continue;
+			bus.publish(ProfileEvent.added(this, fileCreated));
 		}
+		// Modifications are not interesting
 	}
 	
-	private void fileDeletedHandle(Path fileDeleted) {
-		if (checkIfIgnore(fileDeleted)) return;
-		if (fileDeleted.equals(myRegistry.getActiveProfilePath())) {
-			if (myRegistry.getMoveMethod() == FileIO.METHOD_JUNCTION) {
-				// Delete old links, they don't point to anything anymore
-				try {
-					fileIO.revertProfileJunctions(myRegistry.getFactorioDataPath());
-				} catch (IOException e) {
-					Alert alert = new ExceptionDialog(e);
-					alert.showAndWait();
-					e.printStackTrace();
+	/**
+	 * Apply a batch of profile events to the table, sorting once
+	 */
+	@Override
+	public void profileEvents(List<ProfileEvent> events) {
+		Set<Path> toAdd = new LinkedHashSet<>();
+		Set<Profile> removed = new LinkedHashSet<>();
+		boolean renamed = false;
+		boolean activated = false;
+		for (ProfileEvent event : events) {
+			Path path = event.getPath();
+			switch (event.getType()) {
+			case ADDED:
+				Profile existing = myRegistry.findProfile(path);
+				if (existing != null) {
+					removed.remove(existing); // Deleted and created again in this batch
+				} else {
+					toAdd.add(path);
 				}
-			} else if (myRegistry.getMoveMethod() == FileIO.METHOD_SYMLINK) {
-				// Same with symlinks
-				try {
-					fileIO.revertProfileSymlinks(myRegistry.getFactorioDataPath());
-				} catch (IOException e) {
-					LOGGER.log(Level.SEVERE, "Error deleting links", e);
-					Alert alert = new ExceptionDialog(e);
-					alert.showAndWait();
+				break;
+			case REMOVED:
+				if (path.equals(myRegistry.getActiveProfilePath())) {
+					// Dialogs can not be shown while a pulse is processed
+					Platform.runLater(() -> activeProfileDeleted(path));
 				}
-			} else if (myRegistry.getMoveMethod() == FileIO.METHOD_RENAME ) {
-				// Maybe user renamed file within an explorer?
-				// Renames not supported in move method unless
-				// renamed from within application
-				Alert alert = new Alert(AlertType.WARNING);
-				alert.setHeaderText("Active profile folder lost.");
-				alert.setContentText("Lost track of active profile: "+ fileDeleted
-						+ "\n\nWas it renamed? "
-						+ "\"mods\" and \"saves\" folder in user directory now out of sync. "
-						+ "Please move them into an appropriate folder.");
-				alert.showAndWait();
-			}
-		}
-		Profile toDelete = null;
-		for (Profile p : tableData) {
-			if (p.getDirectory().toPath().equals(fileDeleted)) {
-				toDelete = p;
+				if (toAdd.remove(path)) break;
+				Profile toDelete = myRegistry.findProfile(path);
+				if (toDelete != null) {
+					removed.add(toDelete);
+				}
+				break;
+			case RENAMED:
+				renamed = true;
+				break;
+			case ACTIVATED:
+				activated = true;
+				break;
+			default:
 				break;
 			}
 		}
-		if (toDelete != null) {
-			tableData.remove(toDelete);
-			tableViewProfiles.sort();
-			myRegistry.getProfiles().remove(toDelete);
+		if (renamed || activated) {
+			diskUsageMonitor.refresh(); // Folders were moved with events suppressed
 		}
-	}
-
-	@Override
-	public void fileCreated(Path fileCreated) {
-		if (Platform.isFxApplicationThread()) {
-			fileCreatedHandle(fileCreated);
-		} else {
-			Platform.runLater(() -> fileCreatedHandle(fileCreated));
+		
+		List<Profile> added = new ArrayList<>(toAdd.size());
+		for (Path directory : toAdd) {
+			if (! directory.toFile().isDirectory()) continue;
+			added.add(newInactiveProfile(directory));
+		}
+		
+		if (removed.isEmpty() && added.isEmpty() && ! renamed) return;
+		LOGGER.fine(String.format("Event batch: %d profiles added, %d removed", added.size(), removed.size()));
+		if (! removed.isEmpty()) {
+			tableData.removeAll(removed);
+			myRegistry.getProfiles().removeAll(removed);
 		}
+		if (! added.isEmpty()) {
+			tableData.addAll(added);
+			myRegistry.getProfiles().addAll(added);
+		}
+		tableViewProfiles.sort();
 	}
 	
-	private void fileCreatedHandle(Path fileCreated) {
-		if (checkIfIgnore(fileCreated)) return;
-		// All new profiles are assigned as inactive
-		if (! fileCreated.toFile().isDirectory()) return;
-		Profile newProfile = new Profile(fileCreated.toFile(), myRegistry, false, settingsIO);
-		if (! myRegistry.getFactorioInstallations().isEmpty()) {
-			newProfile.setFactorioVersion(myRegistry.getFactorioInstallations().get(0).getName());
-		}
+	/**
+	 * Add a profile folder created by Profilio to the table, unless it is already there
+	 */
+	private void addProfile(Path directory) {
+		if (myRegistry.findProfile(directory) != null || ! directory.toFile().isDirectory()) return;
+		Profile newProfile = newInactiveProfile(directory);
 		tableData.add(newProfile);
-		tableViewProfiles.sort();
 		myRegistry.getProfiles().add(newProfile);
-	}
-
-	@Override
-	public void fileModified(Path fileModified) {
-		return; // Not interested in modifications
+		tableViewProfiles.sort();
 	}
 	
-	private boolean checkIfIgnore(Path path) {
-		if (this.ignoreFileEvents.contains(path)) {
-			this.ignoreFileEvents.remove(path);
-			return true;
+	private Profile newInactiveProfile(Path directory) {
+		// All new profiles are assigned as inactive
+		Profile newProfile = new Profile(directory.toFile(), myRegistry, false, settingsIO);
+		if (! myRegistry.getFactorioInstallations().isEmpty()) {
+			newProfile.setFactorioVersion(myRegistry.getFactorioInstallations().get(0).getName());
 		}
-		return false;
+		return newProfile;
 	}
 	
-	public void ignoreTheseEvents(Path...paths) {
-		for (Path p : paths) {
-			this.ignoreFileEvents.add(p);
+	private void activeProfileDeleted(Path fileDeleted) {
+		if (myRegistry.getMoveMethod() == FileIO.METHOD_JUNCTION) {
+			// Delete old links, they don't point to anything anymore
+			try {
+				fileIO.revertProfileJunctions(myRegistry.getFactorioDataPath());
+			} catch (IOException e) {
+				Alert alert = new ExceptionDialog(e);
+				alert.showAndWait();
+				e.printStackTrace();
+			}
+		} else if (myRegistry.getMoveMethod() == FileIO.METHOD_SYMLINK) {
+			// Same with symlinks
+			try {
+				fileIO.revertProfileSymlinks(myRegistry.getFactorioDataPath());
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, "Error deleting links", e);
+				Alert alert = new ExceptionDialog(e);
+				alert.showAndWait();
+			}
+		} else if (myRegistry.getMoveMethod() == FileIO.METHOD_RENAME ) {
+			// Maybe user renamed file within an explorer?
+			// Renames not supported in move method unless
+			// renamed from within application
+			Alert alert = new Alert(AlertType.WARNING);
+			alert.setHeaderText("Active profile folder lost.");
+			alert.setContentText("Lost track of active profile: "+ fileDeleted
+					+ "\n\nWas it renamed? "
+					+ "\"mods\" and \"saves\" folder in user directory now out of sync. "
+					+ "Please move them into an appropriate folder.");
+			alert.showAndWait();
 		}
 	}
 	
-	public void stopIgnoreTheseEvents(Path...paths) {
-		for (Path p : paths) {
-			this.ignoreFileEvents.remove(p);
+	public void stopWatcher() {
+		if (this.profilesWatcher != null) {
+			this.profilesWatcher.close();
+			this.profilesWatcher = null;
 		}
+		statsService.stopWatching();
+		diskUsageMonitor.stopWatching();
 	}
 	
-	public void stopWatcher() {
-		if (this.watcherThread != null && this.watcherThread.isAlive()) {
-			this.watcherThread.interrupt();
-			Globals.THREADS.remove(watcherThread);
-		}
+	/**
+	 * Stop watchers and background work, called when the application exits
+	 */
+	public void close() {
+		stopWatcher();
+		statsService.close();
+		diskUsageMonitor.close();
 	}
 	
 	public void setupDirectoryWatcher(Path dir) {
-		if (this.watcherThread != null && this.watcherThread.isAlive()) {
-			this.watcherThread.interrupt();
-			Globals.THREADS.remove(watcherThread);
-		}
+		stopWatcher();
 		
 		try {
-			this.activeWatcher = new DirectoryWatcher(dir, false);
-			this.activeWatcher.addListener(this);
-			this.watcherThread = new Thread(this.activeWatcher);
-			this.watcherThread.setDaemon(true);
-			this.watcherThread.start();
-			
-			Globals.THREADS.add(watcherThread);
+			DirectoryWatcher watcher = new DirectoryWatcher(dir, false);
+			watcher.setPolling(myRegistry.getPollForChanges().booleanValue());
+			watcher.addBatchListener(this);
+			WatchEngine.get().addRoot(watcher);
+			this.profilesWatcher = watcher;
 		} catch (IOException e) {
 			Alert alert = new ExceptionDialog(e);
 			LOGGER.log(Level.SEVERE, "Exception setting up watcher", e);
 			alert.showAndWait();
 		}
+		statsService.watch(dir, myRegistry.getPollForChanges().booleanValue());
+		diskUsageMonitor.watch(dir, myRegistry.getPollForChanges().booleanValue());
+		
+		watchUserDataFolders();
+	}
+	
+	/**
+	 * Start all watchers again, ie after switching between events and polling
+	 */
+	public void restartWatchers() {
+		for (DirectoryWatcher watcher : userDataWatchers.values()) {
+			watcher.close();
+		}
+		userDataWatchers.clear();
+		setupDirectoryWatcher(myRegistry.getFactorioProfilesPath());
+	}
+	
+	/**
+	 * Watch the global user data folder and every custom config path, so links
+	 * changed outside of Profilio are noticed. Only folders added or removed since
+	 * last time are registered or dropped
+	 */
+	private void watchUserDataFolders() {
+		Set<Path> wanted = new HashSet<>();
+		if (myRegistry.getFactorioDataPath() != null) {
+			wanted.add(myRegistry.getFactorioDataPath());
+		}
+		for (FactorioInstallation fi : myRegistry.getFactorioInstallations()) {
+			if (fi.isUseCustomConfigPath() && fi.getCustomConfigPath() != null) {
+				wanted.add(fi.getCustomConfigPath());
+			}
+		}
+		
+		userDataWatchers.entrySet().removeIf(entry -> {
+			if (wanted.contains(entry.getKey())) return false;
+			entry.getValue().close();
+			return true;
+		});
+		for (Path dataPath : wanted) {
+			if (userDataWatchers.containsKey(dataPath) || ! Files.isDirectory(dataPath)) continue;
+			DirectoryWatcher watcher = new DirectoryWatcher(dataPath, false);
+			watcher.setPolling(myRegistry.getPollForChanges().booleanValue());
+			watcher.addBatchListener(changes -> Platform.runLater(() -> userDataChanged(dataPath, changes)));
+			try {
+				WatchEngine.get().addRoot(watcher);
+				userDataWatchers.put(dataPath, watcher);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not watch " + dataPath, e);
+			}
+		}
+	}
+	
+	private void userDataChanged(Path dataPath, ChangeSet changes) {
+		Path mods = dataPath.resolve(SettingsIO.FOLDER_NAME_MODS);
+		Path saves = dataPath.resolve(SettingsIO.FOLDER_NAME_SAVES);
+		boolean touched = false;
+		for (Set<Path> paths : Arrays.asList(changes.getCreated(), changes.getDeleted(), changes.getModified())) {
+			touched |= paths.contains(mods) || paths.contains(saves);
+		}
+		if (! touched || userDataAlertShowing || profileSwitcher.isBusy()) return;
+		
+		Profile active = myRegistry.getActiveProfile();
+		if (active == null || ! dataPath.equals(myRegistry.getUserDataPath(active))) return;
+		
+		// Compare with disk as it is now, our own switches leave it consistent
+		List<String> problems = FileIO.checkProfileFolders(myRegistry.getMoveMethod(),
+				dataPath, active.getDirectory().toPath());
+		if (problems.isEmpty()) return;
+		LOGGER.warning("User data changed outside of Profilio: " + problems);
 		
+		userDataAlertShowing = true;
+		Alert alert = new Alert(AlertType.WARNING);
+		alert.initOwner(primaryStage);
+		alert.setHeaderText("Profile folders changed outside of Profilio");
+		alert.setContentText(String.join("\n", problems)
+				+ "\n\nFactorio may not use the mods and saves of profile " + active.getName() + ".");
+		alert.showAndWait();
+		userDataAlertShowing = false;
 	}
 	
 }
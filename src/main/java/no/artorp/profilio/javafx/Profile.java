@@ -7,6 +7,9 @@ import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javafx.beans.property.BooleanProperty;
@@ -16,7 +19,12 @@ import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import no.artorp.profilio.exceptions.FactorioProfileManagerException;
+import no.artorp.profilio.json_models.ProfileMetadataJson;
+import no.artorp.profilio.utility.ActivationJournal;
+import no.artorp.profilio.utility.EventSuppressor;
 import no.artorp.profilio.utility.FileIO;
+import no.artorp.profilio.utility.ProfileMetadata;
+import no.artorp.profilio.utility.ProfileStats;
 import no.artorp.profilio.utility.SettingsIO;
 
 /**
@@ -30,9 +38,12 @@ public class Profile {
 
 	private StringProperty customName = new SimpleStringProperty();
 	private StringProperty factorioVersion = new SimpleStringProperty();
-	private ObjectProperty<File> directory = new SimpleObjectProperty<>();
+	private ObjectProperty<File> directory = new SimpleObjectProperty<>(this, "directory");
 	private BooleanProperty isActive = new SimpleBooleanProperty();
+	private ObjectProperty<ProfileStats> stats = new SimpleObjectProperty<>(this, "stats");
 	private final boolean isDirectory;
+	private String fileKey;
+	private long lastModified = -1;
 	
 	private Registry register;
 	private SettingsIO settingsIO;
@@ -40,10 +51,17 @@ public class Profile {
 	private FactorioInstallation myVersion;
 	
 	public Profile(File directory, Registry myRegistry, boolean isActive, SettingsIO settingsIO) {
+		this(directory, directory.isDirectory(), myRegistry, isActive, settingsIO);
+	}
+	
+	/**
+	 * @param isDirectory already known directory state, avoids touching the file system
+	 */
+	public Profile(File directory, boolean isDirectory, Registry myRegistry, boolean isActive, SettingsIO settingsIO) {
 		this.register = myRegistry;
 		this.directory.set(directory);
 		this.customName.set(directory.getName());
-		this.isDirectory = directory.isDirectory();
+		this.isDirectory = isDirectory;
 		this.settingsIO = settingsIO;
 		
 		// Bind myVersion to path and whether it exists
@@ -56,62 +74,196 @@ public class Profile {
 		});
 		
 		
-		// To determine factorioVersion: Look up registry against our name
-		String facVersion = myRegistry.findGameName(
-				this.directory.getValue().getName()
-				);
+		// To determine factorioVersion: Read the sidecar in our directory, for
+		// profiles without one look up registry against our name
+		ProfileMetadataJson meta = isDirectory ? ProfileMetadata.get().load(directory.toPath()) : null;
+		String facVersion = meta != null && meta.installation != null
+				? meta.installation
+				: myRegistry.findGameName(this.directory.getValue().getName());
 
 		this.factorioVersion.set(facVersion);
 		
+		// Keep the sidecar up to date, moving the mapping there if it came from the registry
+		this.factorioVersion.addListener((observable, oldValue, newValue) -> saveInstallation(newValue));
+		if (facVersion != null && (meta == null || meta.installation == null)) {
+			saveInstallation(facVersion);
+		}
+		
 		this.isActive.setValue(isActive);
 		
+		// Show the statistics of last run until they are computed again
+		this.stats.set(ProfileStats.fromMetadata(meta));
+		
 		
 		// Bind customName to actual directory name
 		this.directory.addListener((observable, oldValue, newValue)->{
 			customName.set(newValue.getName());
+			if (oldValue != null && isDirectory) {
+				ProfileMetadata.get().moved(oldValue.toPath(), newValue.toPath());
+			}
 		});
 		
 	}
 	
 	/**
 	 * Rename actual file directory into new filename.
+	 * <p>
+	 * The name is checked here, the folders are moved by the profile switcher after
+	 * any queued activation. Errors while moving are shown by the switcher.
 	 * 
 	 * @param newFileName
+	 * @param switcher  writer that moves the folders
+	 * @param onRenamed run on the JavaFX thread once renamed
 	 * @throws InvalidPathException
 	 * @throws FactorioProfileManagerException
-	 * @throws IOException
 	 */
-	public void renameFile(String newFileName) throws InvalidPathException, FactorioProfileManagerException, IOException {
-		File ourFile = this.getDirectory();
+	public void renameFile(String newFileName, ProfileSwitcher switcher, Runnable onRenamed) throws InvalidPathException, FactorioProfileManagerException {
+		Path oldFilePath = this.getDirectory().toPath();
 		Path newFilePath = Paths.get(newFileName);
-		newFilePath = ourFile.toPath().getParent().resolve(newFilePath);
+		newFilePath = oldFilePath.getParent().resolve(newFilePath);
 		LOGGER.info("Profile directory rename to\n"+newFilePath);
 		if (newFilePath.toFile().exists()) {
 			throw new FactorioProfileManagerException("Invalid name. New file already exists!\n"+newFilePath);
 		}
-		
-		FileIO fileIO = new FileIO();
-		
-		if (isActive()) {
-			fileIO.revertMoveGeneral(register.getMoveMethod(), register.getFactorioDataPath(),
-					getDirectory().toPath());
+		if (switcher.isBusy()) {
+			// Whether we are active is only known once queued switches are done
+			throw new FactorioProfileManagerException("Profile folders are being moved, try again when done");
+		}
+		if (switcher.isUnresolved()) {
+			throw new FactorioProfileManagerException(switcher.unresolvedException().getMessage());
 		}
 		
-		Files.move(ourFile.toPath(), newFilePath);
-		
+		// Read here, the writer thread must not touch the registry
+		Path target = newFilePath;
+		boolean active = isActive();
+		Integer moveMethod = register.getMoveMethod();
+		Path dataPath = register.getUserDataPath(this);
+		FileIO fileIO = new FileIO();
+		ActivationJournal journal = ActivationJournal.get();
+		AtomicLong journalId = new AtomicLong(-1);
 		
-		if (newFilePath.toFile().exists()) {
-			this.directory.setValue(newFilePath.toFile());
-			if (isActive()) {
-				fileIO.performMoveGeneral(register.getMoveMethod(), register.getFactorioDataPath(), newFilePath);
+		switcher.submit("An error occurred while renaming", () -> {
+			if (switcher.isUnresolved()) throw switcher.unresolvedException();
+			long id = journal.beginRename(moveMethod, oldFilePath, target, active ? dataPath : null);
+			
+			// The table is updated when done, keep the watcher from doing it again
+			EventSuppressor.Token token = EventSuppressor.get().suppress(oldFilePath, target,
+					active ? dataPath.resolve(SettingsIO.FOLDER_NAME_MODS) : null,
+					active ? dataPath.resolve(SettingsIO.FOLDER_NAME_SAVES) : null);
+			try {
+				Path current = oldFilePath;
+				boolean foldersOut = active;
+				boolean renamed = false;
+				try {
+					if (active) {
+						fileIO.revertMoveGeneral(moveMethod, dataPath, oldFilePath);
+						foldersOut = false;
+					}
+					
+					Files.move(oldFilePath, target);
+					current = target;
+					
+					if (active) {
+						fileIO.performMoveGeneral(moveMethod, dataPath, target);
+						foldersOut = true;
+						switcher.activeRenamed(this, target, dataPath);
+					}
+					renamed = true;
+				} finally {
+					if (renamed) {
+						journalId.set(id); // Committed once settings are saved
+					} else if (undoRename(fileIO, moveMethod, active, dataPath, oldFilePath, current, foldersOut)) {
+						journal.abort(id);
+					} else {
+						switcher.setUnresolved(); // Left open, recovery finishes the rename on next start
+					}
+				}
+			} finally {
+				token.close();
+			}
+		}, () -> {
+			this.directory.setValue(target.toFile());
+			ProfileEventBus.get().publish(ProfileEvent.renamed(this, oldFilePath, target));
+			CompletableFuture<Void> saved = CompletableFuture.completedFuture(null);
+			if (active) {
 				register.setActiveProfile(this);
-				settingsIO.saveRegistry(register); // Save
+				saved = settingsIO.saveRegistry(register); // Save
+			}
+			saved.thenRun(() -> journal.commit(journalId.get()));
+			onRenamed.run();
+		});
+	}
+	
+	/**
+	 * Put the directory and folders back where they were before a failed rename
+	 * 
+	 * @return {@code true} if nothing is left for recovery
+	 */
+	private static boolean undoRename(FileIO fileIO, Integer moveMethod, boolean active, Path dataPath,
+			Path oldFilePath, Path current, boolean foldersOut) {
+		try {
+			if (! current.equals(oldFilePath)) {
+				Files.move(current, oldFilePath);
 			}
+			if (active && ! foldersOut) {
+				fileIO.performMoveGeneral(moveMethod, dataPath, oldFilePath);
+			}
+			return true;
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Could not undo failed rename of " + oldFilePath, e);
+			return false;
 		}
 	}
 	
 	public boolean isDirectory() { return this.isDirectory; }
 	
+	/**
+	 * @return metadata from the sidecar in our directory, {@code null} if there is none
+	 */
+	public ProfileMetadataJson getMetadata() {
+		if (! isDirectory) return null;
+		return ProfileMetadata.get().load(getDirectory().toPath());
+	}
+	
+	private void saveInstallation(String installationName) {
+		if (! isDirectory) return;
+		ProfileMetadata.get().update(getDirectory().toPath(), m -> m.installation = installationName);
+	}
+	
+	/**
+	 * @return file key of the directory when last scanned, used to detect renames.
+	 *         {@code null} if unknown or unsupported by the file system
+	 */
+	public String getFileKey() {
+		return this.fileKey;
+	}
+	
+	public void setFileKey(String fileKey) {
+		this.fileKey = fileKey;
+	}
+	
+	/**
+	 * @return last modified time of the directory when last scanned, -1 if unknown
+	 */
+	public long getLastModified() {
+		return this.lastModified;
+	}
+	
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+	
+	/**
+	 * Read our sidecar again, after the directory was changed outside Profilio
+	 */
+	public void reloadMetadata() {
+		if (! isDirectory) return;
+		ProfileMetadataJson meta = ProfileMetadata.get().reload(getDirectory().toPath());
+		if (meta != null && meta.installation != null && ! meta.installation.equals(getFactorioVersion())) {
+			this.factorioVersion.set(meta.installation);
+		}
+	}
+	
 	// ## Getters and setters below
 	
 	public FactorioInstallation getFactorioInstallation() {
@@ -163,6 +315,22 @@ public class Profile {
 		this.directory.setValue(directory);
 	}
 	
+	/**
+	 * Statistics are computed in the background by {@link ProfileStatsService},
+	 * {@code null} until known
+	 */
+	public ObjectProperty<ProfileStats> statsProperty() {
+		return stats;
+	}
+	
+	public ProfileStats getStats() {
+		return stats.getValue();
+	}
+	
+	public void setStats(ProfileStats stats) {
+		this.stats.setValue(stats);
+	}
+	
 	public BooleanProperty isActiveProperty() {
 		return isActive;
 	}
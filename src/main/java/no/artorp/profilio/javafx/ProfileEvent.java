@@ -0,0 +1,97 @@
+package no.artorp.profilio.javafx;
+
+import java.nio.file.Path;
+import java.util.EventObject;
+
+import no.artorp.profilio.utility.ProfileStats;
+
+/**
+ * Something that happened to a profile, published on the {@link ProfileEventBus}
+ * <p>
+ * The source is the object that published the event.
+ */
+public class ProfileEvent extends EventObject {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		/** A profile directory appeared, {@link #getPath()} is the directory */
+		ADDED,
+		/** A profile directory is gone */
+		REMOVED,
+		/** A profile directory was renamed from {@link #getPrevious()} to {@link #getPath()} */
+		RENAMED,
+		/** Profile switching finished, the path is the new active profile or {@code null} */
+		ACTIVATED,
+		/** Statistics of a profile were computed, see {@link #getStats()} */
+		STATS_UPDATED
+	}
+
+	private final Type type;
+	private final Path path;
+	private final Path previous;
+	private final ProfileStats stats;
+
+	private ProfileEvent(Object source, Type type, Path path, Path previous, ProfileStats stats) {
+		super(source);
+		this.type = type;
+		this.path = path;
+		this.previous = previous;
+		this.stats = stats;
+	}
+
+	public static ProfileEvent added(Object source, Path directory) {
+		return new ProfileEvent(source, Type.ADDED, directory, null, null);
+	}
+
+	public static ProfileEvent removed(Object source, Path directory) {
+		return new ProfileEvent(source, Type.REMOVED, directory, null, null);
+	}
+
+	public static ProfileEvent renamed(Object source, Path from, Path to) {
+		return new ProfileEvent(source, Type.RENAMED, to, from, null);
+	}
+
+	/**
+	 * @param active   directory of the active profile, {@code null} if none
+	 * @param previous directory of the profile active before, {@code null} if none
+	 */
+	public static ProfileEvent activated(Object source, Path active, Path previous) {
+		return new ProfileEvent(source, Type.ACTIVATED, active, previous, null);
+	}
+
+	public static ProfileEvent statsUpdated(Object source, Path directory, ProfileStats stats) {
+		return new ProfileEvent(source, Type.STATS_UPDATED, directory, null, stats);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return directory of the profile
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return old directory of a renamed profile, or the profile active before an activation
+	 */
+	public Path getPrevious() {
+		return previous;
+	}
+
+	/**
+	 * @return computed statistics, {@code null} if they could not be computed or for other events
+	 */
+	public ProfileStats getStats() {
+		return stats;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + (previous == null ? "" : previous + " -> ") + path;
+	}
+
+}
@@ -0,0 +1,104 @@
+package no.artorp.profilio.javafx;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * Carries profile events from background threads to the JavaFX thread
+ * <p>
+ * Events can be published from any thread. They are queued and handed to the
+ * listeners in one batch per animation pulse, so the table is updated and sorted
+ * once per frame however fast events arrive. At most {@link #MAX_EVENTS_PER_PULSE}
+ * events are dispatched per pulse, the rest wait for the next one. The timer only
+ * runs while events are queued.
+ */
+public class ProfileEventBus {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** Upper bound of events dispatched in one pulse */
+	public static final int MAX_EVENTS_PER_PULSE = 1000;
+
+	private static ProfileEventBus instance;
+
+	private final ConcurrentLinkedQueue<ProfileEvent> queue = new ConcurrentLinkedQueue<>();
+	private final List<ProfileEventListener> listeners = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	private final AnimationTimer dispatcher = new AnimationTimer() {
+		@Override
+		public void handle(long now) {
+			dispatch();
+		}
+	};
+
+	/**
+	 * @return the bus shared by all publishers
+	 */
+	public static synchronized ProfileEventBus get() {
+		if (instance == null) {
+			instance = new ProfileEventBus();
+		}
+		return instance;
+	}
+
+	/**
+	 * @param listener called with each batch of events
+	 */
+	public void addListener(ProfileEventListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ProfileEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Queue an event for the next pulse, may be called from any thread
+	 *
+	 * @param event event to publish
+	 */
+	public void publish(ProfileEvent event) {
+		queue.add(event);
+		if (running.compareAndSet(false, true)) {
+			Platform.runLater(dispatcher::start);
+		}
+	}
+
+	private void dispatch() {
+		List<ProfileEvent> batch = new ArrayList<>();
+		ProfileEvent event;
+		while (batch.size() < MAX_EVENTS_PER_PULSE && (event = queue.poll()) != null) {
+			batch.add(event);
+		}
+
+		if (queue.isEmpty()) {
+			// Stop pulsing while idle, unless an event was published meanwhile
+			dispatcher.stop();
+			running.set(false);
+			if (! queue.isEmpty() && running.compareAndSet(false, true)) {
+				dispatcher.start();
+			}
+		}
+
+		if (batch.isEmpty()) return;
+		LOGGER.finest("Dispatching " + batch.size() + " profile events");
+		for (ProfileEventListener listener : listeners) {
+			try {
+				listener.profileEvents(batch);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.SEVERE, "Profile event listener failed", e);
+			}
+		}
+	}
+
+}
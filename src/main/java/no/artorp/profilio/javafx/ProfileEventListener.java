@@ -0,0 +1,16 @@
+package no.artorp.profilio.javafx;
+
+import java.util.List;
+
+/**
+ * Receives the events of a {@link ProfileEventBus} in batches
+ */
+public interface ProfileEventListener {
+
+	/**
+	 * Called from the JavaFX thread at most once per pulse
+	 *
+	 * @param events events in the order they were published, never empty
+	 */
+	public void profileEvents(List<ProfileEvent> events);
+}
@@ -0,0 +1,294 @@
+package no.artorp.profilio.javafx;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.application.Platform;
+import no.artorp.profilio.utility.ChangeSet;
+import no.artorp.profilio.utility.DirectoryWatcher;
+import no.artorp.profilio.utility.ProfileMetadata;
+import no.artorp.profilio.utility.ProfileStats;
+import no.artorp.profilio.utility.SettingsIO;
+import no.artorp.profilio.utility.WatchEngine;
+
+/**
+ * Computes the statistics shown in the profile table in the background
+ * <p>
+ * Statistics are computed on first request and cached per profile until a watcher
+ * sees a change anywhere below the profile, after which they are computed again.
+ * Requests from visible cells are served newest first and ahead of the profiles
+ * queued by {@link #requestAll(List)}, so the rows in view fill in before the rest.
+ * Finished results are published on the {@link ProfileEventBus}, applied once per
+ * pulse, and stored in the profile's sidecar when they changed, so the next run
+ * starts out with them.
+ * <p>
+ * All methods except {@link #close()} must be called from the JavaFX thread.
+ */
+public class ProfileStatsService implements ProfileEventListener {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	private final Registry registry;
+
+	private final ThreadPoolExecutor workers;
+
+	// JavaFX thread only
+	private final Map<Path, ProfileStats> cache = new HashMap<>();
+	private final Map<Path, Task> pending = new HashMap<>();
+	private final Map<Path, DirectoryWatcher> watchers = new HashMap<>();
+	private Path profilesRoot;
+	private boolean polling;
+
+	/**
+	 * Computation of one profile's statistics
+	 */
+	private class Task implements Runnable {
+		final Profile profile;
+		final Path directory;
+		final Path folders;
+		final boolean visible;
+		volatile boolean cancelled = false;
+
+		Task(Profile profile, boolean visible) {
+			this.profile = profile;
+			this.directory = profile.getDirectory().toPath();
+			this.folders = registry.getProfileFoldersPath(profile);
+			this.visible = visible;
+		}
+
+		@Override
+		public void run() {
+			if (cancelled) return;
+			ProfileStats result = null;
+			try {
+				result = ProfileStats.compute(directory, folders);
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Could not compute statistics of " + directory, e);
+			}
+			ProfileEventBus.get().publish(ProfileEvent.statsUpdated(this, directory, result));
+		}
+	}
+
+	/**
+	 * @param registry profiles and where their folders are
+	 */
+	public ProfileStatsService(Registry registry) {
+		this.registry = registry;
+
+		// Visible rows first, most recent request first, then everything else in order
+		this.workers = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public boolean offer(Runnable r) {
+				return ((Task) r).visible ? super.offerFirst(r) : super.offerLast(r);
+			}
+		}, r -> {
+			Thread t = new Thread(r, "profile-stats");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+		this.workers.allowCoreThreadTimeOut(true);
+		ProfileEventBus.get().addListener(this);
+
+		// Folders move when a profile is activated or deactivated
+		registry.activeProfileProperty().addListener((ob, o, n) -> {
+			invalidate(o);
+			invalidate(n);
+			watchActiveFolders();
+		});
+	}
+
+	/**
+	 * Get the statistics of a profile shown in view, computing them if not cached
+	 *
+	 * @param profile profile of a visible row
+	 * @return cached statistics, or {@code null} if they are being computed. The
+	 *         profile's stats property is set when done
+	 */
+	public ProfileStats request(Profile profile) {
+		return request(profile, true);
+	}
+
+	/**
+	 * Compute the statistics of profiles in the background, after visible rows
+	 *
+	 * @param profiles profiles to compute
+	 */
+	public void requestAll(List<? extends Profile> profiles) {
+		for (Profile p : profiles) {
+			request(p, false);
+		}
+	}
+
+	private ProfileStats request(Profile profile, boolean visible) {
+		if (! profile.isDirectory()) return null;
+		Path dir = profile.getDirectory().toPath();
+		ProfileStats cached = cache.get(dir);
+		if (cached != null) return cached;
+
+		Task queued = pending.get(dir);
+		if (queued != null) {
+			if (queued.visible || ! visible) return null;
+			// Move it ahead, the queued task is skipped when reached
+			queued.cancelled = true;
+		}
+		Task task = new Task(profile, visible);
+		pending.put(dir, task);
+		workers.execute(task);
+		return null;
+	}
+
+	/**
+	 * Drop cached statistics of a profile and compute them again in the background
+	 *
+	 * @param profile profile that changed, may be {@code null}
+	 */
+	public void invalidate(Profile profile) {
+		if (profile == null) return;
+		Path dir = profile.getDirectory().toPath();
+		cache.remove(dir);
+		Task queued = pending.remove(dir);
+		if (queued != null) {
+			queued.cancelled = true;
+		}
+		request(profile, queued != null && queued.visible);
+	}
+
+	/**
+	 * Watch the profiles directory and the folders of the active profile for changes
+	 *
+	 * @param profilesRoot profiles directory
+	 * @param polling      whether to poll instead of relying on file system events
+	 */
+	public void watch(Path profilesRoot, boolean polling) {
+		stopWatching();
+		this.profilesRoot = profilesRoot;
+		this.polling = polling;
+		addWatcher(profilesRoot);
+		watchActiveFolders();
+	}
+
+	public void stopWatching() {
+		for (DirectoryWatcher watcher : watchers.values()) {
+			watcher.close();
+		}
+		watchers.clear();
+		profilesRoot = null;
+	}
+
+	/**
+	 * Stop watching and computing, may be called from any thread
+	 */
+	public void close() {
+		workers.shutdownNow();
+		if (Platform.isFxApplicationThread()) {
+			stopWatching();
+		} else {
+			Platform.runLater(this::stopWatching);
+		}
+	}
+
+	/**
+	 * Folders of the active profile are outside the profiles directory when moved
+	 * into the user data folder
+	 */
+	private void watchActiveFolders() {
+		if (profilesRoot == null) return;
+		Set<Path> wanted = new HashSet<>();
+		wanted.add(profilesRoot);
+		Profile active = registry.getActiveProfile();
+		if (active != null) {
+			Path folders = registry.getProfileFoldersPath(active);
+			if (! folders.startsWith(profilesRoot)) {
+				wanted.add(folders.resolve(SettingsIO.FOLDER_NAME_MODS));
+				wanted.add(folders.resolve(SettingsIO.FOLDER_NAME_SAVES));
+			}
+		}
+		watchers.entrySet().removeIf(entry -> {
+			if (wanted.contains(entry.getKey())) return false;
+			entry.getValue().close();
+			return true;
+		});
+		for (Path dir : wanted) {
+			if (! watchers.containsKey(dir)) {
+				addWatcher(dir);
+			}
+		}
+	}
+
+	private void addWatcher(Path dir) {
+		if (! Files.isDirectory(dir)) return;
+		DirectoryWatcher watcher = new DirectoryWatcher(dir, true);
+		watcher.setPolling(polling);
+		watcher.addBatchListener(changes -> Platform.runLater(() -> filesChanged(dir, changes)));
+		try {
+			WatchEngine.get().addRoot(watcher);
+			watchers.put(dir, watcher);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not watch " + dir + " for profile statistics", e);
+		}
+	}
+
+	/**
+	 * Invalidate the profiles a batch of changes happened below
+	 */
+	private void filesChanged(Path watched, ChangeSet changes) {
+		if (! watchers.containsKey(watched)) return; // Stopped meanwhile
+		Set<Profile> changed = new HashSet<>();
+		for (Set<Path> paths : Arrays.asList(changes.getCreated(), changes.getDeleted(), changes.getModified())) {
+			for (Path path : paths) {
+				// Writing our own sidecar does not change the statistics
+				if (path.getFileName().toString().startsWith(ProfileMetadata.FILE_NAME)) continue;
+				if (watched.equals(profilesRoot)) {
+					Path relative = profilesRoot.relativize(path);
+					if (relative.getNameCount() < 2) continue; // A profile itself, the table handles those
+					Profile p = registry.findProfile(profilesRoot.resolve(relative.getName(0)));
+					if (p != null) changed.add(p);
+				} else if (registry.getActiveProfile() != null) {
+					changed.add(registry.getActiveProfile());
+				}
+			}
+		}
+		for (Profile p : changed) {
+			invalidate(p);
+		}
+	}
+
+	/**
+	 * Hand finished results to their profiles
+	 */
+	@Override
+	public void profileEvents(List<ProfileEvent> events) {
+		for (ProfileEvent event : events) {
+			if (event.getType() != ProfileEvent.Type.STATS_UPDATED) continue;
+			Task task = pending.get(event.getPath());
+			if (task == null || task != event.getSource()) continue; // Invalidated meanwhile
+			pending.remove(task.directory);
+			ProfileStats stats = event.getStats();
+			if (stats == null) continue;
+			cache.put(task.directory, stats);
+			Profile profile = task.profile;
+			if (! profile.getDirectory().toPath().equals(task.directory)) continue; // Renamed
+			profile.setStats(stats);
+			if (! stats.sameValues(ProfileStats.fromMetadata(profile.getMetadata()))) {
+				ProfileMetadata.get().update(task.directory, stats::toMetadata);
+			}
+		}
+	}
+
+}
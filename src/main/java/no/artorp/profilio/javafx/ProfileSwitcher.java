@@ -0,0 +1,554 @@
+package no.artorp.profilio.javafx;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.scene.control.Alert;
+import no.artorp.profilio.utility.ActivationJournal;
+import no.artorp.profilio.utility.EventSuppressor;
+import no.artorp.profilio.utility.FileIO;
+import no.artorp.profilio.utility.ProfileMetadata;
+import no.artorp.profilio.utility.SettingsIO;
+
+/**
+ * Single writer for all file operations that move or link profile folders
+ * <p>
+ * Operations run one at a time on a background thread, in the order they were
+ * requested. Activation requests are coalesced, if several profiles are clicked
+ * while a switch is in progress only the last one is activated. The writer never
+ * waits for the JavaFX thread, what it needs is read when work is requested, and
+ * the steps to run on the JavaFX thread afterwards are queued so {@link #shutdown}
+ * can run them itself.
+ * <p>
+ * A switch that fails part way is rolled back. If the folders can not be put back
+ * its journal entry is left for recovery on next start, and no more folders are
+ * moved until then, so recovery starts from the state the entry describes.
+ * <p>
+ * All public methods must be called from the JavaFX thread.
+ */
+public class ProfileSwitcher {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/**
+	 * A file operation to be run on the writer thread
+	 */
+	@FunctionalInterface
+	public interface FileOperation {
+		void run() throws IOException;
+	}
+
+	private final Registry registry;
+	private final FileIO fileIO;
+	private final SettingsIO settingsIO;
+	private final ActivationJournal journal = ActivationJournal.get();
+
+	private static final String UNRESOLVED_MESSAGE = "The profile folders could not be put back after an error. "
+			+ "Restart Profilio to complete or report the unfinished switch, until then profiles can not be switched or renamed.";
+
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "profile-switcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final AtomicReference<SwitchState> pendingActivation = new AtomicReference<>();
+	private ActivationRequest latestActivation;
+
+	// Steps to run on the JavaFX thread once the writer is done with them
+	private final ConcurrentLinkedQueue<Runnable> finishing = new ConcurrentLinkedQueue<>();
+	private volatile boolean stopping = false;
+
+	// Set on the writer thread when a failed operation could not be undone
+	private volatile boolean unresolved = false;
+
+	// Writer thread only, the folders the last switch or rename left active, null if none ran yet
+	private ActiveFolders onDisk;
+
+	private final ObjectProperty<Profile> switchingTo = new SimpleObjectProperty<>(this, "switchingTo");
+	private final BooleanProperty busy = new SimpleBooleanProperty(this, "busy");
+	private final DoubleProperty progress = new SimpleDoubleProperty(this, "progress", 1);
+	private int queued = 0;
+
+	public ProfileSwitcher(Registry registry, FileIO fileIO, SettingsIO settingsIO) {
+		this.registry = registry;
+		this.fileIO = fileIO;
+		this.settingsIO = settingsIO;
+	}
+
+	/**
+	 * Request that a profile becomes the active one
+	 * <p>
+	 * If an earlier request has not started yet, it is replaced by this one
+	 *
+	 * @param profile profile to activate, {@code null} to deactivate the active profile
+	 */
+	public void activate(Profile profile) {
+		ActivationRequest request = new ActivationRequest(profile);
+		latestActivation = request;
+		switchingTo.set(profile);
+		if (pendingActivation.getAndSet(new SwitchState(request)) == null) {
+			enqueue(this::runPendingActivation);
+		}
+	}
+
+	/**
+	 * Queue a file operation behind any running activation
+	 *
+	 * @param description shown to the user if the operation fails
+	 * @param operation   the file work, run on the writer thread
+	 * @param onSuccess   run on the JavaFX thread if the operation succeeded, may be {@code null}
+	 */
+	public void submit(String description, FileOperation operation, Runnable onSuccess) {
+		enqueue(() -> {
+			try {
+				operation.run();
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.SEVERE, description, e);
+				runOnFx(() -> showError(e, description));
+				return;
+			}
+			if (onSuccess != null) {
+				runOnFx(onSuccess);
+			}
+		});
+	}
+
+	/**
+	 * Move the active profile's folders to another user data folder, when the custom
+	 * config path of its installation changes
+	 * <p>
+	 * The move is journaled, and rolled back if it fails. Settings are saved when
+	 * done, so they agree with where the folders are.
+	 *
+	 * @param profile     the active profile
+	 * @param from        user data folder its folders are in
+	 * @param to          user data folder to move them to
+	 * @param description shown to the user if the move fails
+	 * @param onSuccess   run on the JavaFX thread once moved, before settings are saved, may be {@code null}
+	 */
+	public void moveUserData(Profile profile, Path from, Path to, String description, Runnable onSuccess) {
+		Integer moveMethod = registry.getMoveMethod();
+		Path directory = profile.getDirectory().toPath();
+		enqueue(() -> {
+			if (unresolved) {
+				runOnFx(() -> showError(unresolvedException(), description));
+				return;
+			}
+			if (onDisk != null && (onDisk.profile != profile || ! from.equals(onDisk.dataPath))) {
+				// Switched or moved meanwhile, the folders are not where the request expected
+				IOException e = new IOException("The active profile changed, its folders were not moved");
+				runOnFx(() -> showError(e, description));
+				return;
+			}
+			if (! from.equals(to)) {
+				long journalId;
+				try {
+					journalId = journal.beginMove(moveMethod, directory, from, to);
+				} catch (IOException e) {
+					LOGGER.log(Level.SEVERE, "Could not write activation journal", e);
+					runOnFx(() -> showError(e, description));
+					return;
+				}
+
+				EventSuppressor.Token token = EventSuppressor.get().suppress(directory,
+						from.resolve(SettingsIO.FOLDER_NAME_MODS), from.resolve(SettingsIO.FOLDER_NAME_SAVES),
+						to.resolve(SettingsIO.FOLDER_NAME_MODS), to.resolve(SettingsIO.FOLDER_NAME_SAVES));
+				boolean movedIn = false;
+				try {
+					fileIO.revertMoveGeneral(moveMethod, from, directory);
+					movedIn = true;
+					fileIO.performMoveGeneral(moveMethod, to, directory);
+				} catch (IOException | RuntimeException e) {
+					LOGGER.log(Level.SEVERE, description, e);
+					Exception reported = undo(journalId, movedIn) ? e : unresolvedException(e);
+					if (! unresolved) {
+						onDisk = new ActiveFolders(profile, directory, from);
+					}
+					runOnFx(() -> showError(reported, description));
+					return;
+				} finally {
+					token.close();
+				}
+				onDisk = new ActiveFolders(profile, directory, to);
+				runOnFx(() -> {
+					if (onSuccess != null) {
+						onSuccess.run();
+					}
+					// Leave the entry open for recovery if settings never reach the disk
+					settingsIO.saveRegistry(registry).thenRun(() -> journal.commit(journalId));
+				});
+				return;
+			}
+			if (onSuccess != null) {
+				runOnFx(onSuccess);
+			}
+		});
+	}
+
+	private void enqueue(Runnable job) {
+		queued++;
+		busy.set(true);
+		writer.execute(() -> {
+			try {
+				job.run();
+			} finally {
+				Platform.runLater(() -> {
+					if (--queued == 0) {
+						busy.set(false);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Queue a step for the JavaFX thread, run by {@link #shutdown} if the application stops first
+	 */
+	private void runOnFx(Runnable step) {
+		finishing.add(step);
+		Platform.runLater(this::runFinishing);
+	}
+
+	private void runFinishing() {
+		Runnable step;
+		while ((step = finishing.poll()) != null) {
+			step.run();
+		}
+	}
+
+	/**
+	 * Record that the active profile's directory was renamed, on the writer thread
+	 *
+	 * @param profile      the active profile
+	 * @param newDirectory its directory after the rename
+	 * @param dataPath     user data folder its folders are in
+	 */
+	void activeRenamed(Profile profile, Path newDirectory, Path dataPath) {
+		onDisk = new ActiveFolders(profile, newDirectory, dataPath);
+	}
+
+	/**
+	 * Record that a failed operation could not be undone, on the writer thread
+	 */
+	void setUnresolved() {
+		unresolved = true;
+	}
+
+	/**
+	 * @return {@code true} if a failed operation left folders for recovery on next start,
+	 *         no more folders are moved until then
+	 */
+	public boolean isUnresolved() {
+		return unresolved;
+	}
+
+	/**
+	 * @return exception explaining why folders are not moved while {@link #isUnresolved()}
+	 */
+	IOException unresolvedException() {
+		return new IOException(UNRESOLVED_MESSAGE);
+	}
+
+	private static IOException unresolvedException(Exception cause) {
+		return new IOException(UNRESOLVED_MESSAGE + "\n\n" + cause.getMessage(), cause);
+	}
+
+	private void runPendingActivation() {
+		SwitchState requested = pendingActivation.getAndSet(null);
+		if (requested == null) return; // Consumed by an earlier job
+
+		// Earlier work may have changed the active folders since the request was made
+		SwitchState state = onDisk == null ? requested : requested.from(onDisk);
+
+		if (state.previous == state.target) {
+			runOnFx(() -> finishActivation(state, state.target, null, -1));
+			return;
+		}
+		if (unresolved) {
+			runOnFx(() -> finishActivation(requested, requested.previous, unresolvedException(), -1));
+			return;
+		}
+
+		LOGGER.info(String.format("Switching profile: %s -> %s",
+				state.previous == null ? null : state.previous.getName(),
+				state.target == null ? null : state.target.getName()));
+
+		long journalId;
+		try {
+			journalId = journal.beginActivation(state.moveMethod, state.previousDirectory, state.previousDataPath,
+					state.targetDirectory, state.targetDataPath);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Could not write activation journal", e);
+			runOnFx(() -> finishActivation(state, state.previous, e, -1));
+			return;
+		}
+
+		// Our own moves, the watchers need not report them
+		EventSuppressor.Token token = suppressEvents(state);
+		try {
+			setProgress(0);
+			if (state.previous != null) {
+				try {
+					fileIO.revertMoveGeneral(state.moveMethod, state.previousDataPath, state.previousDirectory);
+				} catch (IOException | RuntimeException e) {
+					LOGGER.log(Level.SEVERE, "Exception when reverting move", e);
+					rollBack(state, journalId, false, e);
+					return;
+				}
+			}
+			setProgress(0.5);
+
+			if (state.target != null) {
+				try {
+					fileIO.performMoveGeneral(state.moveMethod, state.targetDataPath, state.targetDirectory);
+				} catch (IOException | RuntimeException e) {
+					LOGGER.log(Level.SEVERE, "Exception when moving", e);
+					rollBack(state, journalId, true, e);
+					return;
+				}
+			}
+			setProgress(1);
+		} finally {
+			token.close();
+		}
+
+		onDisk = new ActiveFolders(state.target, state.targetDirectory, state.targetDataPath);
+		runOnFx(() -> finishActivation(state, state.target, null, journalId));
+	}
+
+	/**
+	 * Put the previous profile's folders back after a failed switch, on the writer thread
+	 * <p>
+	 * If that fails too the journal entry stays open and switching stops, so a later
+	 * switch can not leave recovery with an outdated entry.
+	 *
+	 * @param movedIn whether moving the target's folders in had started
+	 */
+	private void rollBack(SwitchState state, long journalId, boolean movedIn, Exception error) {
+		if (undo(journalId, movedIn)) {
+			onDisk = new ActiveFolders(state.previous, state.previousDirectory, state.previousDataPath);
+			runOnFx(() -> finishActivation(state, state.previous, error, -1));
+			return;
+		}
+		Exception reported = unresolvedException(error);
+		runOnFx(() -> finishActivation(state, movedIn ? null : state.previous, reported, -1));
+	}
+
+	/**
+	 * Roll back a failed operation from its journal entry, on the writer thread
+	 *
+	 * @return {@code true} if the folders were put back, otherwise no more folders are moved
+	 */
+	private boolean undo(long journalId, boolean movedIn) {
+		if (journal.rollBack(journalId, movedIn)) return true;
+		unresolved = true;
+		onDisk = null;
+		return false;
+	}
+
+	private static EventSuppressor.Token suppressEvents(SwitchState state) {
+		List<Path> paths = new ArrayList<>();
+		for (Path dataPath : new Path[] {state.previousDataPath, state.targetDataPath}) {
+			if (dataPath != null) {
+				paths.add(dataPath.resolve(SettingsIO.FOLDER_NAME_MODS));
+				paths.add(dataPath.resolve(SettingsIO.FOLDER_NAME_SAVES));
+			}
+		}
+		paths.add(state.previousDirectory);
+		paths.add(state.targetDirectory);
+		return EventSuppressor.get().suppress(paths.toArray(new Path[paths.size()]));
+	}
+
+	/**
+	 * Update profiles and registry once the file work is done, on the JavaFX thread
+	 *
+	 * @param state     state the switch started from
+	 * @param active    profile whose folders are now in the user data folder
+	 * @param error     exception to show, or {@code null}
+	 * @param journalId journal entry to commit once settings are saved, -1 if none
+	 */
+	private void finishActivation(SwitchState state, Profile active, Exception error, long journalId) {
+		if (state.previous != null && state.previous != active) {
+			state.previous.setIsActive(false);
+		}
+		if (state.target != null && state.target != active) {
+			state.target.setIsActive(false);
+		}
+		if (active != null) {
+			active.setIsActive(true);
+		}
+		CompletableFuture<Void> saved = CompletableFuture.completedFuture(null);
+		if (registry.getActiveProfile() != active) {
+			Profile previous = registry.getActiveProfile();
+			ProfileEventBus.get().publish(ProfileEvent.activated(this,
+					active == null ? null : active.getDirectory().toPath(),
+					previous == null ? null : previous.getDirectory().toPath()));
+			registry.setActiveProfile(active);
+			saved = settingsIO.saveRegistry(registry); // Save
+			if (active != null) {
+				long now = System.currentTimeMillis();
+				ProfileMetadata.get().update(active.getDirectory().toPath(), m -> m.lastActivated = now);
+			}
+		}
+		if (journalId != -1) {
+			// Leave the entry open for recovery if settings never reach the disk
+			saved.thenRun(() -> journal.commit(journalId));
+		}
+
+		if (state.request == latestActivation) {
+			switchingTo.set(null);
+		}
+
+		if (error != null) {
+			showError(error, "There was an error when moving profile folders");
+		}
+	}
+
+	private void showError(Exception error, String description) {
+		if (stopping) return; // Logged already, no dialogs while the application stops
+		Alert alert = new ExceptionDialog(error, description);
+		alert.showAndWait();
+	}
+
+	private void setProgress(double value) {
+		Platform.runLater(() -> progress.set(value));
+	}
+
+	/**
+	 * Stop accepting work and wait for queued operations to finish, then update
+	 * profiles and registry for the work done. Called from the JavaFX thread, so
+	 * settings saved afterwards include the outcome of the last switch
+	 *
+	 * @param timeout maximum time to wait
+	 * @param unit    unit of timeout
+	 * @return {@code true} if all work finished in time
+	 * @throws InterruptedException
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		stopping = true;
+		writer.shutdown();
+		boolean finished = writer.awaitTermination(timeout, unit);
+		runFinishing();
+		return finished;
+	}
+
+	/**
+	 * @return profile a pending or running activation will switch to,
+	 *         {@code null} if no activation is in progress or when deactivating
+	 */
+	public ReadOnlyObjectProperty<Profile> switchingToProperty() {
+		return switchingTo;
+	}
+	
+	public Profile getSwitchingTo() {
+		return switchingTo.get();
+	}
+
+	/**
+	 * @return {@code true} while any operation is queued or running
+	 */
+	public ReadOnlyBooleanProperty busyProperty() {
+		return busy;
+	}
+	
+	public boolean isBusy() {
+		return busy.get();
+	}
+
+	/**
+	 * @return progress of the running activation, between 0 and 1
+	 */
+	public ReadOnlyDoubleProperty progressProperty() {
+		return progress;
+	}
+
+	private static class ActivationRequest {
+		final Profile target;
+
+		ActivationRequest(Profile target) {
+			this.target = target;
+		}
+	}
+
+	/**
+	 * A profile whose folders are in the user data folder, {@code profile} is {@code null} if none
+	 */
+	private static class ActiveFolders {
+		final Profile profile;
+		final Path directory;
+		final Path dataPath;
+
+		ActiveFolders(Profile profile, Path directory, Path dataPath) {
+			this.profile = profile;
+			this.directory = directory;
+			this.dataPath = dataPath;
+		}
+	}
+
+	/**
+	 * Everything the writer thread needs, read on the JavaFX thread when activation is requested
+	 */
+	private class SwitchState {
+		final ActivationRequest request;
+		final Integer moveMethod;
+		final Profile previous;
+		final Path previousDirectory;
+		final Path previousDataPath;
+		final Profile target;
+		final Path targetDirectory;
+		final Path targetDataPath;
+
+		SwitchState(ActivationRequest request) {
+			Profile target = request.target;
+			this.request = request;
+			this.moveMethod = registry.getMoveMethod();
+			this.previous = registry.getActiveProfile();
+			this.previousDirectory = previous == null ? null : previous.getDirectory().toPath();
+			this.previousDataPath = registry.getUserDataPath(previous);
+			this.target = target;
+			this.targetDirectory = target == null ? null : target.getDirectory().toPath();
+			this.targetDataPath = registry.getUserDataPath(target);
+		}
+
+		private SwitchState(SwitchState state, ActiveFolders previous) {
+			this.request = state.request;
+			this.moveMethod = state.moveMethod;
+			this.previous = previous.profile;
+			this.previousDirectory = previous.directory;
+			this.previousDataPath = previous.dataPath;
+			this.target = state.target;
+			this.targetDirectory = state.targetDirectory;
+			this.targetDataPath = state.targetDataPath;
+		}
+
+		/**
+		 * @return this switch, starting from other active folders
+		 */
+		SwitchState from(ActiveFolders previous) {
+			return new SwitchState(this, previous);
+		}
+	}
+
+}
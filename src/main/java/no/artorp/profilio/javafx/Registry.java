@@ -1,10 +1,13 @@
 package no.artorp.profilio.javafx;
 
+import java.io.File;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javafx.beans.property.BooleanProperty;
@@ -15,9 +18,12 @@ import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
+import javafx.beans.value.ChangeListener;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.util.StringConverter;
+import no.artorp.profilio.utility.FileIO;
 
 /**
  * Holds data commonly loaded and saved
@@ -32,6 +38,7 @@ public class Registry {
 	private IntegerProperty moveMethod = new SimpleIntegerProperty();
 	
 	private BooleanProperty closeOnLaunch = new SimpleBooleanProperty();
+	private BooleanProperty pollForChanges = new SimpleBooleanProperty();
 	private BooleanProperty hasInitialized = new SimpleBooleanProperty();
 	
 	private ObjectProperty<Path> activeProfilePath = new SimpleObjectProperty<Path>();
@@ -43,6 +50,57 @@ public class Registry {
 	
 	private List<Profile> profiles = new ArrayList<>();
 	
+	// Hash indexes, kept in sync with the observable lists above
+	private final Map<String, FactorioInstallation> installationsByName = new HashMap<>();
+	private final Map<String, String> installationNameByProfile = new HashMap<>();
+	private final Map<Path, Profile> profilesByPath = new HashMap<>();
+	
+	private final ChangeListener<String> installationNameListener = (observable, oldValue, newValue) -> {
+		FactorioInstallation fi = (FactorioInstallation) ((StringProperty) observable).getBean();
+		if (oldValue != null && installationsByName.get(oldValue) == fi) {
+			installationsByName.remove(oldValue);
+		}
+		if (newValue != null) {
+			installationsByName.put(newValue, fi);
+		}
+	};
+	
+	private final ListChangeListener<FactorioInstallation> installationsListener = c -> {
+		while (c.next()) {
+			for (FactorioInstallation fi : c.getRemoved()) {
+				unindexInstallation(fi);
+			}
+			for (FactorioInstallation fi : c.getAddedSubList()) {
+				indexInstallation(fi);
+			}
+		}
+	};
+	
+	private final ListChangeListener<KeyValuePair<String, String>> profileToFactorioNameListener = c -> {
+		while (c.next()) {
+			for (KeyValuePair<String, String> pair : c.getRemoved()) {
+				installationNameByProfile.remove(pair.getKey(), pair.getValue());
+			}
+			for (KeyValuePair<String, String> pair : c.getAddedSubList()) {
+				installationNameByProfile.putIfAbsent(pair.getKey(), pair.getValue());
+			}
+		}
+	};
+	
+	private final ChangeListener<File> profileDirectoryListener = (observable, oldValue, newValue) -> {
+		Profile p = (Profile) ((ObjectProperty<?>) observable).getBean();
+		if (oldValue != null) {
+			profilesByPath.remove(oldValue.toPath(), p);
+		}
+		if (newValue != null) {
+			profilesByPath.put(newValue.toPath(), p);
+		}
+	};
+	
+	public Registry() {
+		this.factorioInstallations.addListener(installationsListener);
+		this.profileToFactorioName.addListener(profileToFactorioNameListener);
+	}
 	
 	
 	/**
@@ -56,6 +114,23 @@ public class Registry {
 	 */
 	public void setupPathProfileBindings(ObservableList<Profile> profiles) {
 		
+		// Index profiles by path, following renames
+		long start = System.nanoTime();
+		for (Profile p : profiles) {
+			indexProfile(p);
+		}
+		LOGGER.fine(String.format("Indexed %d profiles by path in %.1f ms", profiles.size(), (System.nanoTime() - start) / 1e6));
+		profiles.addListener((ListChangeListener.Change<? extends Profile> c) -> {
+			while (c.next()) {
+				for (Profile p : c.getRemoved()) {
+					unindexProfile(p);
+				}
+				for (Profile p : c.getAddedSubList()) {
+					indexProfile(p);
+				}
+			}
+		});
+		
 		this.activeProfile.addListener((observable, o, n)->{
 			LOGGER.info("Active profile was changed: " + (n == null ? n : n.getName()));
 		});
@@ -91,10 +166,9 @@ public class Registry {
 			@Override
 			public Profile fromString(String string) {
 				if (string == null) return null;
-				for (Profile p : profiles) {
-					if (p.getDirectory().toPath().equals(Paths.get(string))) {
-						return p;
-					}
+				Profile p = profilesByPath.get(Paths.get(string));
+				if (p != null) {
+					return p;
 				}
 				return activeProfile.getValue(); // Avoid setting path to null by returning last value
 			}
@@ -111,21 +185,81 @@ public class Registry {
 	}
 	
 	public FactorioInstallation findInstallation(String name) {
-		for (FactorioInstallation fi : factorioInstallations) {
-			if (fi.getName().equals(name)) {
-				return fi;
-			}
-		}
-		return null;
+		if (name == null) return null;
+		return installationsByName.get(name);
 	}
 	
 	public String findGameName(String name) {
-		for (KeyValuePair<String, String> pair : profileToFactorioName) {
-			if (pair.getKey().equals(name)) {
-				return pair.getValue();
+		if (name == null) return null;
+		return installationNameByProfile.get(name);
+	}
+	
+	/**
+	 * @param path directory of a profile
+	 * @return the profile in the tableview with this directory, {@code null} if none
+	 */
+	public Profile findProfile(Path path) {
+		if (path == null) return null;
+		return profilesByPath.get(path);
+	}
+	
+	/**
+	 * @param profile a profile, may be {@code null}
+	 * @return the user data folder the profile's "mods" and "saves" are moved or linked into,
+	 *         the custom config path of its installation if set, the global one otherwise
+	 */
+	public Path getUserDataPath(Profile profile) {
+		if (profile != null) {
+			FactorioInstallation fi = profile.getFactorioInstallation();
+			if (fi != null
+					&& fi.isUseCustomConfigPath()
+					&& fi.getCustomConfigPath() != null) {
+				return fi.getCustomConfigPath();
 			}
 		}
-		return null;
+		return getFactorioDataPath();
+	}
+	
+	/**
+	 * @param profile a profile
+	 * @return the folder currently holding the profile's "mods" and "saves", which is the user
+	 *         data folder for an active profile moved by rename, the profile directory otherwise
+	 */
+	public Path getProfileFoldersPath(Profile profile) {
+		if (profile.isActive()
+				&& getMoveMethod() != null
+				&& getMoveMethod().intValue() == FileIO.METHOD_RENAME) {
+			return getUserDataPath(profile);
+		}
+		return profile.getDirectory().toPath();
+	}
+	
+	private void indexInstallation(FactorioInstallation fi) {
+		fi.nameProperty().addListener(installationNameListener);
+		if (fi.getName() != null) {
+			installationsByName.putIfAbsent(fi.getName(), fi);
+		}
+	}
+	
+	private void unindexInstallation(FactorioInstallation fi) {
+		fi.nameProperty().removeListener(installationNameListener);
+		if (fi.getName() != null) {
+			installationsByName.remove(fi.getName(), fi);
+		}
+	}
+	
+	private void indexProfile(Profile p) {
+		p.directoryProperty().addListener(profileDirectoryListener);
+		if (p.getDirectory() != null) {
+			profilesByPath.put(p.getDirectory().toPath(), p);
+		}
+	}
+	
+	private void unindexProfile(Profile p) {
+		p.directoryProperty().removeListener(profileDirectoryListener);
+		if (p.getDirectory() != null) {
+			profilesByPath.remove(p.getDirectory().toPath(), p);
+		}
 	}
 
 	public ObjectProperty<Path> configPathProperty() {
@@ -188,6 +322,22 @@ public class Registry {
 		this.closeOnLaunch.setValue(closeOnLaunch);
 	}
 	
+	/**
+	 * @return whether watched folders are polled instead of relying on file system events,
+	 *         for network shares and sync folders that are not detected as such
+	 */
+	public BooleanProperty pollForChangesProperty() {
+		return this.pollForChanges;
+	}
+	
+	public Boolean getPollForChanges() {
+		return this.pollForChanges.getValue();
+	}
+	
+	public void setPollForChanges(Boolean pollForChanges) {
+		this.pollForChanges.setValue(pollForChanges);
+	}
+	
 	public BooleanProperty hasInitializedProperty() {
 		return this.hasInitialized;
 	}
@@ -229,7 +379,15 @@ public class Registry {
 	}
 
 	public void setFactorioInstallations(ObservableList<FactorioInstallation> factorioInstallations) {
+		this.factorioInstallations.removeListener(installationsListener);
+		for (FactorioInstallation fi : this.factorioInstallations) {
+			unindexInstallation(fi);
+		}
 		this.factorioInstallations = factorioInstallations;
+		for (FactorioInstallation fi : factorioInstallations) {
+			indexInstallation(fi);
+		}
+		this.factorioInstallations.addListener(installationsListener);
 	}
 
 	public ObservableList<KeyValuePair<String, String>> getProfileToFactorioName() {
@@ -237,7 +395,16 @@ public class Registry {
 	}
 
 	public void setProfileToFactorioName(ObservableList<KeyValuePair<String, String>> profileToFactorioName) {
+		this.profileToFactorioName.removeListener(profileToFactorioNameListener);
+		this.installationNameByProfile.clear();
 		this.profileToFactorioName = profileToFactorioName;
+		long start = System.nanoTime();
+		for (KeyValuePair<String, String> pair : profileToFactorioName) {
+			installationNameByProfile.putIfAbsent(pair.getKey(), pair.getValue());
+		}
+		LOGGER.fine(String.format("Indexed %d profile installations in %.1f ms",
+				profileToFactorioName.size(), (System.nanoTime() - start) / 1e6));
+		this.profileToFactorioName.addListener(profileToFactorioNameListener);
 	}
 	
 	public List<Profile> getProfiles() {
@@ -0,0 +1,168 @@
+package no.artorp.profilio.javafx;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.fxml.FXML;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.stage.Stage;
+import no.artorp.profilio.javafx.savebrowsercells.SaveInfoCell;
+import no.artorp.profilio.utility.DirectoryWatcher;
+import no.artorp.profilio.utility.FileIO;
+import no.artorp.profilio.utility.FileLocations;
+import no.artorp.profilio.utility.SaveIndex;
+import no.artorp.profilio.utility.SaveInfo;
+import no.artorp.profilio.utility.WatchEngine;
+
+/**
+ * Lists the saves of a profile with thumbnails
+ * <p>
+ * Saves are indexed in the background, and the folder is watched while the
+ * window is showing so new and changed saves show up
+ */
+public class SaveBrowserController {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	private static final double THUMBNAIL_WIDTH = 160;
+	private static final double THUMBNAIL_HEIGHT = 90;
+	private static final long THUMBNAIL_CACHE_BYTES = 32L * 1024 * 1024;
+	private static final String THUMBNAIL_FOLDER = "thumbnails";
+
+	private final Stage stage;
+	private final SaveIndex saveIndex = SaveIndex.get();
+	private final ThumbnailCache thumbnails = new ThumbnailCache(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+			THUMBNAIL_CACHE_BYTES, FileLocations.getConfigDirectory().resolve(THUMBNAIL_FOLDER));
+	private final ObservableList<SaveInfo> saves = FXCollections.observableArrayList();
+	private final Consumer<Path> indexListener = this::saveChanged;
+
+	private final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "save-browser");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private Path savesFolder;
+	private DirectoryWatcher watcher;
+	private boolean refreshQueued = false;
+
+	@FXML private ListView<SaveInfo> listViewSaves;
+	@FXML private Label labelStatus;
+	@FXML private Button buttonOpenFolder;
+	@FXML private Button buttonClose;
+
+	public SaveBrowserController(Stage stage) {
+		this.stage = stage;
+	}
+
+	@FXML
+	public void initialize() {
+		listViewSaves.setItems(saves);
+		listViewSaves.setFixedCellSize(THUMBNAIL_HEIGHT + 8);
+		listViewSaves.setCellFactory(listView -> new SaveInfoCell(thumbnails, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT));
+
+		buttonOpenFolder.setOnAction(event -> {
+			if (savesFolder != null && Files.isDirectory(savesFolder)) {
+				FileIO.browse(savesFolder.toUri());
+			}
+		});
+
+		buttonClose.setOnAction(event -> stage.hide());
+
+		stage.setOnHidden(event -> {
+			stopWatching();
+			saves.clear();
+		});
+
+		saveIndex.addChangeListener(indexListener);
+	}
+
+	/**
+	 * Show the saves of a folder, replacing the current one
+	 *
+	 * @param savesFolder a profile's "saves" folder
+	 */
+	public void show(Path savesFolder) {
+		stopWatching();
+		this.savesFolder = savesFolder;
+		saves.clear();
+		labelStatus.setText("Indexing saves...");
+
+		if (! Files.isDirectory(savesFolder)) {
+			labelStatus.setText("No saves folder");
+			return;
+		}
+
+		refresh();
+		startWatching(savesFolder);
+	}
+
+	private void refresh() {
+		Path folder = savesFolder;
+		indexer.execute(() -> {
+			long start = System.nanoTime();
+			List<SaveInfo> infos;
+			try {
+				infos = saveIndex.index(folder);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not index " + folder, e);
+				Platform.runLater(() -> labelStatus.setText("Could not read saves folder"));
+				return;
+			}
+			double millis = (System.nanoTime() - start) / 1e6;
+			Platform.runLater(() -> {
+				if (! folder.equals(savesFolder)) return; // Switched profile meanwhile
+				saves.setAll(infos);
+				labelStatus.setText(String.format("%d saves, indexed in %.0f ms", infos.size(), millis));
+			});
+		});
+	}
+
+	/**
+	 * Called by the save index from a background thread
+	 */
+	private void saveChanged(Path save) {
+		Platform.runLater(() -> {
+			if (savesFolder == null || ! savesFolder.equals(save.getParent()) || ! stage.isShowing()) return;
+			// Coalesce bursts of changes into one refresh
+			if (refreshQueued) return;
+			refreshQueued = true;
+			Platform.runLater(() -> {
+				refreshQueued = false;
+				refresh();
+			});
+		});
+	}
+
+	private void startWatching(Path folder) {
+		try {
+			DirectoryWatcher w = new DirectoryWatcher(folder, false);
+			w.addListener(saveIndex);
+			WatchEngine.get().addRoot(w);
+			watcher = w;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not watch " + folder, e);
+		}
+	}
+
+	private void stopWatching() {
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+}
@@ -6,10 +6,14 @@ import java.lang.invoke.MethodHandles;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javafx.application.Platform;
 import javafx.beans.Observable;
 import javafx.beans.value.ChangeListener;
 import javafx.collections.ObservableList;
@@ -29,6 +33,7 @@ import no.artorp.profilio.javafx.mainwindowcells.FacNameCell;
 import no.artorp.profilio.javafx.mainwindowcells.FacUseCustomPathCell;
 import no.artorp.profilio.utility.FileIO;
 import no.artorp.profilio.utility.FileLocations;
+import no.artorp.profilio.utility.ModStore;
 import no.artorp.profilio.utility.SettingsIO;
 import no.artorp.profilio.utility.WindowsJunctionUtility;
 
@@ -58,6 +63,8 @@ public class SettingsController {
 	@FXML private Button buttonMoreInfo;
 	
 	@FXML private CheckBox checkBoxClose;
+	@FXML private CheckBox checkBoxPollForChanges;
+	@FXML private Button buttonDeduplicateMods;
 	
 	@FXML private TableView<FactorioInstallation> tableViewInstallations;
 	@FXML private TableColumn<FactorioInstallation, String> columnName;
@@ -150,21 +157,24 @@ public class SettingsController {
 					} catch (IOException e) {
 						LOGGER.log(Level.SEVERE, "Error moving active profile to new location", e);
 					}
-					this.mainController.refreshProfiles();
+					this.mainController.refreshProfiles()
+							.thenRun(() -> settingsIO.saveRegistry(myRegistry)); // Save with the new profiles
+				} else {
+					settingsIO.saveRegistry(myRegistry); // Save
 				}
 				this.mainController.setupDirectoryWatcher(newDataPath.toPath());
-				settingsIO.saveRegistry(myRegistry); // Save
 			}
 		});
 		
 		buttonFirstTimeInit.setOnAction(event->{
 			if ( firstTimeInit() ) {
-				mainController.refreshProfiles();
-				Profile defaultActiveProfile = mainTableViewData.get(0);
-				defaultActiveProfile.setIsActive(true);
-				myRegistry.setActiveProfile(defaultActiveProfile);
-				mainController.setupDirectoryWatcher(myRegistry.getFactorioProfilesPath());
-				myRegistry.setHasInitialized(true);
+				mainController.refreshProfiles().thenRun(() -> {
+					Profile defaultActiveProfile = mainTableViewData.get(0);
+					defaultActiveProfile.setIsActive(true);
+					myRegistry.setActiveProfile(defaultActiveProfile);
+					mainController.setupDirectoryWatcher(myRegistry.getFactorioProfilesPath());
+					myRegistry.setHasInitialized(true);
+				});
 			}
 		});
 		
@@ -354,6 +364,48 @@ public class SettingsController {
 		
 		checkBoxClose.selectedProperty().bindBidirectional(myRegistry.closeOnLaunchProperty());
 		
+		checkBoxPollForChanges.setSelected(myRegistry.getPollForChanges().booleanValue());
+		checkBoxPollForChanges.selectedProperty().addListener((observable, oldValue, newValue) -> {
+			myRegistry.setPollForChanges(newValue);
+			settingsIO.saveRegistry(myRegistry); // Save
+			if (myRegistry.getHasInitialized().booleanValue()) {
+				mainController.restartWatchers();
+			}
+		});
+		
+		buttonDeduplicateMods.setOnAction(event->{
+			Path profilesPath = myRegistry.getFactorioProfilesPath();
+			if (profilesPath == null) return;
+			Integer currentMoveMethod = myRegistry.getMoveMethod();
+			boolean useSymlinks = currentMoveMethod != null && currentMoveMethod.intValue() == FileIO.METHOD_SYMLINK;
+			// Mods of the active profile may have been moved out of the profiles directory
+			List<Path> extraModsFolders = new ArrayList<>();
+			Profile active = myRegistry.getActiveProfile();
+			if (active != null && ! myRegistry.getProfileFoldersPath(active).startsWith(profilesPath)) {
+				extraModsFolders.add(myRegistry.getProfileFoldersPath(active).resolve(SettingsIO.FOLDER_NAME_MODS));
+			}
+			ModStore modStore = new ModStore(profilesPath, useSymlinks, extraModsFolders);
+			AtomicReference<ModStore.Report> report = new AtomicReference<>();
+			
+			buttonDeduplicateMods.setDisable(true);
+			mainController.getProfileSwitcher().submit(
+					"Error when deduplicating mods",
+					() -> {
+						try {
+							report.set(modStore.deduplicate());
+						} finally {
+							Platform.runLater(() -> buttonDeduplicateMods.setDisable(false));
+						}
+					},
+					() -> {
+						Alert alert = new Alert(AlertType.INFORMATION);
+						alert.setTitle("Deduplicate mods");
+						alert.setHeaderText("Identical mod zips are now shared between profiles");
+						alert.setContentText(report.get().toString());
+						alert.showAndWait();
+					});
+		});
+		
 		// Factorio installation tableview
 		ObservableList<FactorioInstallation> tableData = myRegistry.getFactorioInstallations();
 		
@@ -485,20 +537,8 @@ public class SettingsController {
 					to = global;
 				}
 				
-				try {
-					fileIO.revertMoveGeneral(myRegistry.getMoveMethod(),
-							from,
-							p.getDirectory().toPath());
-					fileIO.performMoveGeneral(myRegistry.getMoveMethod(),
-							to,
-							p.getDirectory().toPath());
-				} catch (IOException e) {
-					String errorMsg = "Error when moving profile directory to new user data directory";
-					LOGGER.log(Level.SEVERE, errorMsg, e);
-					Alert alert = new ExceptionDialog(e, errorMsg);
-					alert.showAndWait();
-				}
-				
+				mainController.getProfileSwitcher().moveUserData(p, from, to,
+						"Error when moving profile directory to new user data directory", null);
 			}
 		});
 		
@@ -526,23 +566,12 @@ public class SettingsController {
 			Profile p = myRegistry.getActiveProfile();
 			if (fi.isUseCustomConfigPath()
 					&& p != null && p.getFactorioInstallation().equals(fi)) {
-				try {
-					// If active profile has this installation, revert move of active profile
-					fileIO.revertMoveGeneral(myRegistry.getMoveMethod(),
-							previousUserDataPath,
-							p.getDirectory().toPath());
-					
-					// And move to new location
-					fileIO.performMoveGeneral(myRegistry.getMoveMethod(),
-							newUserDataPath.toPath(),
-							p.getDirectory().toPath());
-				} catch (IOException e) {
-					String errorMsg = "Error when moving profile folder";
-					LOGGER.log(Level.SEVERE, errorMsg, e);
-					Alert alert = new ExceptionDialog(e, errorMsg);
-					alert.showAndWait();
-					return;
-				}
+				// If active profile has this installation, move its folders to the new location
+				mainController.getProfileSwitcher().moveUserData(p, previousUserDataPath, newUserDataPath.toPath(),
+						"Error when moving profile folder",
+						// Finally, set installation values
+						() -> fi.setCustomConfigPath(newUserDataPath.toPath()));
+				return;
 			}
 			
 			// Finally, set installation values
@@ -0,0 +1,328 @@
+package no.artorp.profilio.javafx;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import no.artorp.profilio.utility.SaveInfo;
+import no.artorp.profilio.utility.ZipCentralDirectory;
+
+/**
+ * Loads save thumbnails in the background and keeps them in a memory bounded LRU cache
+ * <p>
+ * Only the {@code preview.png} entry of a save is read, and it is decoded at display
+ * size. The raw png is also kept in an optional disk cache so a thumbnail is extracted
+ * from its save only once. The disk cache is bounded by {@link #MAX_DISK_BYTES}, the
+ * pngs used least recently are deleted first. Requests are served newest first, so the rows currently
+ * scrolled into view load before rows that were only passed by.
+ * <p>
+ * {@link #request(SaveInfo, Consumer)} and {@link Ticket#cancel()} must be called
+ * from the JavaFX thread.
+ */
+public class ThumbnailCache {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	private static final String PREVIEW = "preview.png";
+	private static final int PREVIEW_LIMIT = 8 * 1024 * 1024;
+
+	/** Upper bound of the disk cache in bytes, it is trimmed to three quarters when exceeded */
+	public static final long MAX_DISK_BYTES = 64L * 1024 * 1024;
+
+	private final double width;
+	private final double height;
+	private final long maxBytes;
+	private final Path diskCache;
+
+	private final LinkedHashMap<String, Image> images = new LinkedHashMap<>(64, 0.75f, true);
+	private long bytes = 0;
+
+	// Guarded by diskLock, size of the disk cache, -1 until it has been listed
+	private final Object diskLock = new Object();
+	private long diskBytes = -1;
+
+	private final ThreadPoolExecutor loader;
+
+	/**
+	 * A pending thumbnail request
+	 */
+	public static class Ticket {
+		private final AtomicBoolean cancelled = new AtomicBoolean();
+
+		/**
+		 * The callback will not be called, and the thumbnail is not loaded if it has not started
+		 */
+		public void cancel() {
+			cancelled.set(true);
+		}
+
+		boolean isCancelled() {
+			return cancelled.get();
+		}
+	}
+
+	/**
+	 * @param width     display width of a thumbnail
+	 * @param height    display height of a thumbnail
+	 * @param maxBytes  upper bound of decoded pixels kept in memory, in bytes
+	 * @param diskCache folder for extracted png files, {@code null} to disable
+	 */
+	public ThumbnailCache(double width, double height, long maxBytes, Path diskCache) {
+		this.width = width;
+		this.height = height;
+		this.maxBytes = maxBytes;
+		this.diskCache = diskCache;
+
+		// Most recent request first, those are the rows in view
+		this.loader = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public boolean offer(Runnable r) {
+				return super.offerFirst(r);
+			}
+		}, r -> {
+			Thread t = new Thread(r, "thumbnail-loader");
+			t.setDaemon(true);
+			return t;
+		});
+		this.loader.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Get the thumbnail of a save
+	 *
+	 * @param save     save to get the thumbnail of
+	 * @param callback called on the JavaFX thread with the image, or {@code null} if the
+	 *                 save has no preview. Called immediately if the thumbnail is cached
+	 * @return ticket to cancel the request, for instance when a cell is reused
+	 */
+	public Ticket request(SaveInfo save, Consumer<Image> callback) {
+		Ticket ticket = new Ticket();
+		if (! save.hasPreview()) {
+			callback.accept(null);
+			return ticket;
+		}
+
+		String key = key(save);
+		Image cached;
+		synchronized (images) {
+			cached = images.get(key);
+		}
+		if (cached != null) {
+			callback.accept(cached);
+			return ticket;
+		}
+
+		loader.execute(() -> {
+			if (ticket.isCancelled()) return;
+			Image image = load(save, key);
+			Platform.runLater(() -> {
+				if (! ticket.isCancelled()) {
+					callback.accept(image);
+				}
+			});
+		});
+		return ticket;
+	}
+
+	private Image load(SaveInfo save, String key) {
+		synchronized (images) {
+			Image cached = images.get(key);
+			if (cached != null) return cached; // Loaded by an earlier request
+		}
+		try {
+			byte[] png = readCached(key);
+			if (png == null) {
+				png = extract(save.getPath());
+				if (png == null) return null;
+				writeCached(key, png);
+			}
+			// Decode at display size, the full preview is never kept
+			Image image = new Image(new ByteArrayInputStream(png), width, height, true, true);
+			if (image.isError()) {
+				LOGGER.log(Level.FINE, "Could not decode preview of " + save.getPath(), image.getException());
+				return null;
+			}
+			put(key, image);
+			return image;
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not read preview of " + save.getPath(), e);
+			return null;
+		}
+	}
+
+	private void put(String key, Image image) {
+		synchronized (images) {
+			Image previous = images.put(key, image);
+			if (previous != null) {
+				bytes -= sizeOf(previous);
+			}
+			bytes += sizeOf(image);
+			Iterator<Map.Entry<String, Image>> it = images.entrySet().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				Map.Entry<String, Image> eldest = it.next();
+				bytes -= sizeOf(eldest.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	private static long sizeOf(Image image) {
+		return (long) image.getWidth() * (long) image.getHeight() * 4;
+	}
+
+	/**
+	 * Read the preview entry of a save, without touching the rest of the archive
+	 */
+	private static byte[] extract(Path save) throws IOException {
+		try (ZipCentralDirectory zip = ZipCentralDirectory.open(save)) {
+			int entry = zip.findBaseName(PREVIEW, -1);
+			if (entry < 0 || zip.getSize(entry) > PREVIEW_LIMIT) return null;
+			ByteBuffer preview = zip.read(entry, PREVIEW_LIMIT);
+			byte[] bytes = new byte[preview.remaining()];
+			preview.get(bytes);
+			return bytes;
+		}
+	}
+
+	private byte[] readCached(String key) {
+		if (diskCache == null) return null;
+		Path file = diskCache.resolve(key + ".png");
+		try {
+			if (! Files.exists(file)) return null;
+			byte[] png = Files.readAllBytes(file);
+			// Mark as used, the disk cache is trimmed by modified time
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return png;
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not read cached thumbnail " + file, e);
+			return null;
+		}
+	}
+
+	private void writeCached(String key, byte[] png) {
+		if (diskCache == null) return;
+		try {
+			Files.createDirectories(diskCache);
+			Path temp = Files.createTempFile(diskCache, key, ".tmp");
+			Files.write(temp, png);
+			Files.move(temp, diskCache.resolve(key + ".png"), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not cache thumbnail " + key, e);
+			return;
+		}
+
+		// Saves are rewritten under new keys, old pngs are only removed by trimming
+		synchronized (diskLock) {
+			if (diskBytes < 0) {
+				diskBytes = trimDiskCache(MAX_DISK_BYTES);
+			} else {
+				diskBytes += png.length;
+				if (diskBytes > MAX_DISK_BYTES) {
+					diskBytes = trimDiskCache(MAX_DISK_BYTES * 3 / 4);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete the pngs used least recently until the disk cache fits, called holding diskLock
+	 *
+	 * @param limit size to trim the disk cache to
+	 * @return size of the disk cache afterwards
+	 */
+	private long trimDiskCache(long limit) {
+		List<Path> files = new ArrayList<>();
+		Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+		long total = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(diskCache, "*.png")) {
+			for (Path file : stream) {
+				BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+				files.add(file);
+				attributes.put(file, attrs);
+				total += attrs.size();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not list thumbnail cache " + diskCache, e);
+			return total;
+		}
+		if (total <= limit) return total;
+
+		files.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+		int deleted = 0;
+		for (Path file : files) {
+			if (total <= limit) break;
+			try {
+				Files.deleteIfExists(file);
+				total -= attributes.get(file).size();
+				deleted++;
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Could not delete cached thumbnail " + file, e);
+			}
+		}
+		LOGGER.fine(String.format("Trimmed thumbnail cache, %d deleted, %d KiB left", deleted, total / 1024));
+		return total;
+	}
+
+	/**
+	 * @return key that changes whenever the save is written to
+	 */
+	private static String key(SaveInfo save) {
+		String id = save.getPath().toAbsolutePath() + "|" + save.getSize() + "|" + save.getLastModified();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder sb = new StringBuilder(40);
+			for (byte b : digest.digest(id.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return bytes of decoded thumbnails currently kept in memory
+	 */
+	public long getBytesCached() {
+		synchronized (images) {
+			return bytes;
+		}
+	}
+
+	/**
+	 * Drop queued requests and stop the loader threads
+	 */
+	public void shutdown() {
+		loader.shutdownNow();
+	}
+
+}
@@ -16,7 +16,10 @@ public class FacVersionNameCell extends TableCell<Profile, String> {
 	
 	private final ComboBox<FactorioInstallation> comboBox = new ComboBox<>();
 
+	private final Registry registry;
+
 	public FacVersionNameCell(Registry registry) {
+		this.registry = registry;
 		
 		comboBox.addEventFilter(KeyEvent.KEY_RELEASED, e -> {
             if (e.getCode() == KeyCode.ESCAPE) {
@@ -75,23 +78,13 @@ public class FacVersionNameCell extends TableCell<Profile, String> {
 	}
 	
 	private boolean versionNameInList() {
-		ObservableList<FactorioInstallation> installs = comboBox.getItems();
-		
 		Profile profile = (Profile) getTableRow().getItem();
 		
 		if (profile == null) {
 			return false;
 		}
-		if (profile.getFactorioVersion() == null) {
-			return false;
-		}
 		
-		for (FactorioInstallation fi : installs) {
-			if (profile.getFactorioVersion().equals(fi.getName())) {
-				return true;
-			}
-		}
-		return false;
+		return registry.findInstallation(profile.getFactorioVersion()) != null;
 	}
 	
 	@Override
@@ -116,14 +109,9 @@ public class FacVersionNameCell extends TableCell<Profile, String> {
 	public void startEdit() {
 		super.startEdit();
 		Profile p = (Profile) getTableRow().getItem();
-		String facVersion = p.getFactorioVersion();
-		if (facVersion != null) {
-			for (FactorioInstallation f : comboBox.getItems()) {
-				if (facVersion.equals(f.getName())) {
-					comboBox.setValue(f);
-					break;
-				}
-			}
+		FactorioInstallation current = registry.findInstallation(p.getFactorioVersion());
+		if (current != null) {
+			comboBox.setValue(current);
 		}
 		
 		setText(null);
@@ -1,27 +1,34 @@
 package no.artorp.profilio.javafx.mainwindowcells;
 
-import java.io.IOException;
 import java.lang.invoke.MethodHandles;
-import java.nio.file.Path;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.WeakChangeListener;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.TableCell;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.control.Alert.AlertType;
-import no.artorp.profilio.javafx.ExceptionDialog;
 import no.artorp.profilio.javafx.Profile;
+import no.artorp.profilio.javafx.ProfileSwitcher;
 import no.artorp.profilio.javafx.Registry;
-import no.artorp.profilio.utility.FileIO;
-import no.artorp.profilio.utility.SettingsIO;
 
 public class ProfileIsActiveTableCell extends TableCell<Profile, Boolean> {
 	
 	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
 	
 	private Registry registry;
+	private ProfileSwitcher switcher;
+	
+	// Set while the toggle is updated to match the model, so no switch is requested
+	private boolean syncing = false;
+	
+	private final ProgressIndicator progressIndicator = new ProgressIndicator();
+	
+	// Strong reference, the switcher only holds a weak one
+	private final ChangeListener<Profile> switchingListener = (observable, oldValue, newValue) -> updateSwitchingState();
 	
 	private final ToggleButton toggleRadioButton = new ToggleButton("Active"){
 		@Override public void fire() {
@@ -38,68 +45,55 @@ public class ProfileIsActiveTableCell extends TableCell<Profile, Boolean> {
 		}
 	};
 
-	public ProfileIsActiveTableCell(ToggleGroup tGroup, Registry registry, FileIO fileIO, SettingsIO settingsIO) {
+	public ProfileIsActiveTableCell(ToggleGroup tGroup, Registry registry, ProfileSwitcher switcher) {
 		this.registry = registry;
+		this.switcher = switcher;
 		toggleRadioButton.setToggleGroup(tGroup);
 		toggleRadioButton.setMaxWidth(Double.MAX_VALUE);
 		
+		progressIndicator.setPrefSize(16, 16);
+		progressIndicator.progressProperty().bind(switcher.progressProperty());
+		
 		toggleRadioButton.selectedProperty().addListener((observable, oldVal, newVal)->{
+			if (syncing) return;
 			Profile p = (Profile) getTableRow().getItem();
 			if (p == null || newVal == null) return;
 			if (newVal.booleanValue()) {
 				LOGGER.info("Toggle radio button was changed");
-				Profile previousActive = registry.getActiveProfile();
-				Path previousProfileDataPath;
-				Path newProfileDataPath;
-				
-				if (previousActive != null
-						&& previousActive.getFactorioInstallation() != null
-						&& previousActive.getFactorioInstallation().isUseCustomConfigPath()
-						&& previousActive.getFactorioInstallation().getCustomConfigPath() != null) {
-					previousProfileDataPath = previousActive.getFactorioInstallation().getCustomConfigPath();
-				} else {
-					previousProfileDataPath = registry.getFactorioDataPath();
-				}
-				
-				if (p.getFactorioInstallation() != null
-						&& p.getFactorioInstallation().isUseCustomConfigPath()
-						&& p.getFactorioInstallation().getCustomConfigPath() != null) {
-					newProfileDataPath = p.getFactorioInstallation().getCustomConfigPath();
-				} else {
-					newProfileDataPath = registry.getFactorioDataPath();
-				}
-				
-				if (previousActive != null) {
-					try {
-						fileIO.revertMoveGeneral(registry.getMoveMethod(),
-								previousProfileDataPath,
-								previousActive.getDirectory().toPath());
-						previousActive.setIsActive(false);
-					} catch (IOException e) {
-						LOGGER.log(Level.SEVERE, "Exception when reverting move", e);
-						Alert alert = new ExceptionDialog(e);
-						alert.showAndWait();
-					}
-				}
-				
-				try {
-					fileIO.performMoveGeneral(registry.getMoveMethod(),
-							newProfileDataPath,
-							p.getDirectory().toPath());
-				} catch (IOException e) {
-					LOGGER.log(Level.SEVERE, "Exception when moving", e);
-					Alert alert = new ExceptionDialog(e);
-					alert.showAndWait();
-					return;
-				}
-				
-				p.setIsActive(true);
-				registry.setActiveProfile(p);
-				settingsIO.saveRegistry(registry); // Save
-			} else {
-				p.setIsActive(false);
+				// File work happens on the switcher thread, isActive is updated when done
+				switcher.activate(p);
 			}
 		});
+		
+		switcher.switchingToProperty().addListener(new WeakChangeListener<>(switchingListener));
+	}
+	
+	/**
+	 * Show progress on the profile being switched to, and
+	 * reset the toggle to the model once switching is done
+	 */
+	private void updateSwitchingState() {
+		Profile p = getTableRow() == null ? null : (Profile) getTableRow().getItem();
+		if (p == null || isEmpty()) return;
+		if (p == switcher.getSwitchingTo()) {
+			toggleRadioButton.setText("Activating");
+			toggleRadioButton.setGraphic(progressIndicator);
+		} else {
+			toggleRadioButton.setText("Active");
+			toggleRadioButton.setGraphic(null);
+			if (switcher.getSwitchingTo() == null) {
+				setSelectedSilently(p.isActive());
+			}
+		}
+	}
+	
+	private void setSelectedSilently(boolean selected) {
+		syncing = true;
+		try {
+			toggleRadioButton.setSelected(selected);
+		} finally {
+			syncing = false;
+		}
 	}
 
 	@Override
@@ -110,9 +104,10 @@ public class ProfileIsActiveTableCell extends TableCell<Profile, Boolean> {
 			setGraphic(null);
 			setText(null);
 		} else {
-			toggleRadioButton.setSelected(item);
+			setSelectedSilently(item);
 			setGraphic(toggleRadioButton);
 			setText(null);
+			updateSwitchingState();
 		}
 	}
 	
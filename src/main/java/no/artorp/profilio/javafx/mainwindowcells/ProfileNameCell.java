@@ -1,31 +1,34 @@
 package no.artorp.profilio.javafx.mainwindowcells;
 
-import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.InvalidPathException;
-import java.nio.file.Path;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javafx.scene.control.Alert;
 import javafx.scene.control.TableCell;
+import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import no.artorp.profilio.exceptions.FactorioProfileManagerException;
 import no.artorp.profilio.javafx.ExceptionDialog;
-import no.artorp.profilio.javafx.MainWindowController;
 import no.artorp.profilio.javafx.Profile;
+import no.artorp.profilio.javafx.ProfileSwitcher;
 
 public class ProfileNameCell extends TableCell<Profile, Profile> {
 	
 	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
 	
 	private TextField textField = new TextField();
-	private MainWindowController mainController;
+	
+	private final ProfileSwitcher profileSwitcher;
 
-	public ProfileNameCell(MainWindowController controller) {
-		this.mainController = controller;
+	/**
+	 * @param profileSwitcher moves the folders of renamed profiles
+	 */
+	public ProfileNameCell(ProfileSwitcher profileSwitcher) {
+		this.profileSwitcher = profileSwitcher;
 		
 		// Let escape cancel editing
         textField.addEventFilter(KeyEvent.KEY_RELEASED, e -> {
@@ -93,34 +96,24 @@ public class ProfileNameCell extends TableCell<Profile, Profile> {
 		
 		String newName = textField.getText();
 		
-		Path oldPath = profile.getDirectory().toPath();
-		Path newPath = oldPath.getParent().resolve(newName);
-		
-		// Make sure file events are suppressed in main controller
-		this.mainController.ignoreTheseEvents(oldPath, newPath);
-		
+		TableView<Profile> table = getTableView();
 		try {
-			profile.renameFile(newName);
+			profile.renameFile(newName, profileSwitcher, () -> {
+				table.refresh();
+				table.sort();
+			});
 		} catch (InvalidPathException | FactorioProfileManagerException e_1) {
 			LOGGER.log(Level.SEVERE, "Invalid filename", e_1);
 			Alert exceptionDialog = new ExceptionDialog(e_1, "Invalid filename.");
 			exceptionDialog.showAndWait();
 			cancelEdit();
-			this.mainController.stopIgnoreTheseEvents(oldPath, newPath);
-			return;
-		} catch (IOException e_2) {
-			LOGGER.log(Level.SEVERE, "An error occurred while renaming", e_2);
-			Alert exceptionDialog = new ExceptionDialog(e_2, "An error occurred while renaming.");
-			exceptionDialog.showAndWait();
-			cancelEdit();
-			this.mainController.stopIgnoreTheseEvents(oldPath, newPath);
 			return;
 		}
 		
+		// The new name is shown once the folders are moved
 		setText(profile.getDirectory().getName());
 		setGraphic(null);
 		super.commitEdit(newValue);
-		getTableView().sort();
 	}
 
 	
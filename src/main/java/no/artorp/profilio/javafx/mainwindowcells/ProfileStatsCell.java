@@ -0,0 +1,44 @@
+package no.artorp.profilio.javafx.mainwindowcells;
+
+import java.util.function.Function;
+
+import javafx.scene.control.TableCell;
+import no.artorp.profilio.javafx.Profile;
+import no.artorp.profilio.javafx.ProfileStatsService;
+import no.artorp.profilio.utility.ProfileStats;
+
+/**
+ * Shows one value of a profile's statistics, asking for them to be computed while in view
+ */
+public class ProfileStatsCell extends TableCell<Profile, ProfileStats> {
+
+	private final ProfileStatsService statsService;
+	private final Function<ProfileStats, String> formatter;
+
+	/**
+	 * @param statsService computes statistics of profiles in view
+	 * @param formatter    text of the value shown in this column
+	 */
+	public ProfileStatsCell(ProfileStatsService statsService, Function<ProfileStats, String> formatter) {
+		this.statsService = statsService;
+		this.formatter = formatter;
+	}
+
+	@Override
+	protected void updateItem(ProfileStats item, boolean empty) {
+		super.updateItem(item, empty);
+
+		Profile profile = getTableRow() == null ? null : (Profile) getTableRow().getItem();
+		if (empty || profile == null) {
+			setText(null);
+			setStyle("");
+			return;
+		}
+
+		// Stale values from last run are shown until fresh ones arrive
+		statsService.request(profile);
+		setText(item == null ? "..." : formatter.apply(item));
+		setStyle(item == null || item.isFresh() ? "" : "-fx-text-fill: gray;");
+	}
+
+}
@@ -0,0 +1,85 @@
+package no.artorp.profilio.javafx.savebrowsercells;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import javafx.geometry.Insets;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
+import no.artorp.profilio.javafx.ThumbnailCache;
+import no.artorp.profilio.utility.SaveInfo;
+
+/**
+ * Shows a save with its thumbnail, the thumbnail is requested when the cell
+ * gets a save and the request is cancelled when the cell is reused
+ */
+public class SaveInfoCell extends ListCell<SaveInfo> {
+	
+	private final ThumbnailCache thumbnails;
+	private final ImageView imageView = new ImageView();
+	private final Label labelName = new Label();
+	private final Label labelDetails = new Label();
+	private final Label labelMods = new Label();
+	private final HBox layout;
+	private final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+	private ThumbnailCache.Ticket ticket;
+	
+	public SaveInfoCell(ThumbnailCache thumbnails, double thumbnailWidth, double thumbnailHeight) {
+		this.thumbnails = thumbnails;
+		
+		imageView.setFitWidth(thumbnailWidth);
+		imageView.setFitHeight(thumbnailHeight);
+		imageView.setPreserveRatio(true);
+		
+		// Fixed size so rows don't jump when thumbnails arrive
+		StackPane imageHolder = new StackPane(imageView);
+		imageHolder.setMinSize(thumbnailWidth, thumbnailHeight);
+		imageHolder.setPrefSize(thumbnailWidth, thumbnailHeight);
+		imageHolder.setMaxSize(thumbnailWidth, thumbnailHeight);
+		
+		labelName.setStyle("-fx-font-weight: bold;");
+		VBox text = new VBox(2, labelName, labelDetails, labelMods);
+		layout = new HBox(10, imageHolder, text);
+		layout.setPadding(new Insets(2));
+	}
+	
+	@Override
+	protected void updateItem(SaveInfo item, boolean empty) {
+		super.updateItem(item, empty);
+		
+		if (ticket != null) {
+			ticket.cancel();
+			ticket = null;
+		}
+		imageView.setImage(null);
+		
+		if (empty || item == null) {
+			setText(null);
+			setGraphic(null);
+			return;
+		}
+		
+		labelName.setText(item.getName());
+		labelDetails.setText(String.format("%s  |  %s  |  %.1f MB",
+				item.getGameVersion() == null ? "Unknown version" : "Factorio " + item.getGameVersion(),
+				dateFormat.format(new Date(item.getLastModified())),
+				item.getSize() / 1048576.0));
+		int modCount = Math.max(0, item.getMods().size() - 1); // Base is listed as a mod
+		labelMods.setText(item.getLevelName() == null || item.getLevelName().isEmpty()
+				? modCount + " mods"
+				: item.getLevelName() + ", " + modCount + " mods");
+		setText(null);
+		setGraphic(layout);
+		
+		ticket = thumbnails.request(item, image -> {
+			if (getItem() == item) {
+				imageView.setImage(image);
+			}
+		});
+	}
+	
+}
@@ -0,0 +1,18 @@
+package no.artorp.profilio.json_models;
+
+/**
+ * Json modal class for Gson
+ * <p>
+ * One line of the activation journal. Paths are {@code null} when not
+ * relevant for the operation
+ */
+public class JournalRecordJson {
+	public String type;
+	public long id;
+	public String operation;
+	public int moveMethod;
+	public String previousProfile;
+	public String previousDataPath;
+	public String targetProfile;
+	public String targetDataPath;
+}
@@ -0,0 +1,18 @@
+package no.artorp.profilio.json_models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Json modal class for Gson
+ */
+public class ModCatalogEntryJson {
+	public String path;
+	public long size;
+	public long lastModified;
+	public String name;
+	public String version;
+	public String title;
+	public String factorioVersion;
+	public List<String> dependencies = new ArrayList<>();
+}
@@ -0,0 +1,13 @@
+package no.artorp.profilio.json_models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Json modal to be used by Gson
+ * <p>
+ * Contains the cached metadata of all catalogued mods
+ */
+public class ModCatalogJson {
+	public List<ModCatalogEntryJson> mods = new ArrayList<>();
+}
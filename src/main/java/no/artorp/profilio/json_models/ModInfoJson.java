@@ -0,0 +1,20 @@
+package no.artorp.profilio.json_models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Json modal class for Gson
+ * <p>
+ * The info.json of a mod, only fields used by Profilio
+ */
+public class ModInfoJson {
+	public String name;
+	public String version;
+	public String title;
+	@SerializedName("factorio_version")
+	public String factorioVersion;
+	public List<String> dependencies = new ArrayList<>();
+}
@@ -0,0 +1,20 @@
+package no.artorp.profilio.json_models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Json modal to be used by Gson
+ * <p>
+ * The mod-list.json in a mods folder, holding which mods are enabled
+ */
+public class ModListJson {
+	
+	public List<Entry> mods = new ArrayList<>();
+	
+	public static class Entry {
+		public String name;
+		public boolean enabled;
+	}
+	
+}
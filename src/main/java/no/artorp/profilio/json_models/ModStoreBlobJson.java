@@ -0,0 +1,17 @@
+package no.artorp.profilio.json_models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Json modal class for Gson
+ */
+public class ModStoreBlobJson {
+	public String hash;
+	public long size;
+	
+	/**
+	 * Mod files linked to this blob, relative to the profiles directory
+	 */
+	public List<String> references = new ArrayList<>();
+}
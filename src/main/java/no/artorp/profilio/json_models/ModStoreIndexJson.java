@@ -0,0 +1,15 @@
+package no.artorp.profilio.json_models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Json modal to be used by Gson
+ * <p>
+ * Contains fields for the index of the shared mod store
+ */
+public class ModStoreIndexJson {
+	
+	public List<ModStoreBlobJson> blobs = new ArrayList<>();
+	
+}
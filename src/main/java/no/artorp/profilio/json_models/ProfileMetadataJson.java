@@ -0,0 +1,25 @@
+package no.artorp.profilio.json_models;
+
+/**
+ * Json modal class for Gson
+ * <p>
+ * Contents of the sidecar file kept in each profile directory. Timestamps are
+ * epoch milliseconds, 0 if unknown. Statistics are cached values, valid as of
+ * {@code statsUpdated}. A size limit in bytes warns when exceeded, 0 for none
+ */
+public class ProfileMetadataJson {
+	public int version = 1;
+	public String id;
+	public String installation;
+	public long created;
+	public long modified;
+	public long lastActivated;
+
+	public long statsUpdated;
+	public long size;
+	public int saves;
+	public int mods;
+	public long newestSave;
+
+	public long sizeLimit;
+}
@@ -0,0 +1,19 @@
+package no.artorp.profilio.json_models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Json modal class for Gson
+ */
+public class SaveInfoJson {
+	public String path;
+	public long size;
+	public long lastModified;
+	public String gameVersion;
+	public String campaign;
+	public String levelName;
+	public String baseMod;
+	public List<String> mods = new ArrayList<>();
+	public boolean hasPreview;
+}
@@ -15,6 +15,7 @@ public class SettingsJson {
 	public String factorioProfilesPath;
 	public int moveMethod;
 	public boolean closeOnLaunch;
+	public boolean pollForChanges;
 	public boolean hasInitialized;
 	public String activeProfilePath;
 	
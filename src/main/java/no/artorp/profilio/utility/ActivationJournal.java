@@ -0,0 +1,630 @@
+package no.artorp.profilio.utility;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import no.artorp.profilio.json_models.JournalRecordJson;
+
+/**
+ * Write-ahead journal for operations that move or link profile folders
+ * <p>
+ * Before an activation, a rename of the active profile, a move of its folders to
+ * another user data folder or the initial setup touches the disk, its intent is appended to the journal and synced. Once the
+ * file work is done and settings are saved the entry is committed. An entry
+ * without commit means the application stopped half way; on the next start
+ * {@link #recover()} inspects the few folders involved and completes the
+ * operation, or reports what could not be resolved. Entries that could not be
+ * resolved are kept in the journal, so they are tried again on the next start.
+ * A committed operation that moved the active folders supersedes all earlier
+ * unfinished ones, the folders were consistent when it began.
+ * <p>
+ * An operation that fails while the application runs is undone with
+ * {@link #rollBack(long, boolean)} and aborted, its entry is only left open if
+ * the folders could not be put back.
+ */
+public class ActivationJournal {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	public static final String FILE_NAME = "activation.journal";
+
+	private static final String TYPE_BEGIN = "BEGIN";
+	private static final String TYPE_COMMIT = "COMMIT";
+	private static final String TYPE_ABORT = "ABORT";
+
+	private static final String OP_ACTIVATE = "ACTIVATE";
+	private static final String OP_RENAME = "RENAME";
+	private static final String OP_SETUP = "SETUP";
+	private static final String OP_MOVE = "MOVE";
+
+	private static final String[] FOLDERS = { SettingsIO.FOLDER_NAME_MODS, SettingsIO.FOLDER_NAME_SAVES };
+
+	private static ActivationJournal instance;
+
+	private final Path journalFile;
+	private final Gson gson = new Gson();
+	private final DirectoryMover mover = new DirectoryMover(true);
+	private FileChannel channel;
+	private long nextId = 1;
+	private Recovery recovery = new Recovery();
+
+	// Entries begun but not committed, in the order they began
+	private final Map<Long, JournalRecordJson> inFlight = new LinkedHashMap<>();
+
+	private ActivationJournal(Path journalFile) {
+		this.journalFile = journalFile;
+	}
+
+	/**
+	 * Open the journal in the config directory and recover unfinished operations
+	 * <p>
+	 * The journal is started over, with only the entries recovery could not resolve.
+	 *
+	 * @param configDirectory directory holding settings.json
+	 * @return the journal, also available through {@link #get()}
+	 * @throws IOException if the journal can not be opened for writing
+	 */
+	public static synchronized ActivationJournal open(Path configDirectory) throws IOException {
+		if (instance == null) {
+			ActivationJournal journal = new ActivationJournal(configDirectory.resolve(FILE_NAME));
+			List<JournalRecordJson> unresolved = new ArrayList<>();
+			journal.recovery = journal.recover(unresolved);
+			journal.channel = FileChannel.open(journal.journalFile,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			journal.channel.truncate(0);
+			for (JournalRecordJson r : unresolved) {
+				journal.append(r);
+				journal.inFlight.put(r.id, r);
+			}
+			journal.channel.force(true);
+			instance = journal;
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the journal opened by {@link #open(Path)}
+	 */
+	public static synchronized ActivationJournal get() {
+		if (instance == null) {
+			throw new IllegalStateException("Activation journal has not been opened");
+		}
+		return instance;
+	}
+
+	/**
+	 * @return outcome of the recovery done when the journal was opened
+	 */
+	public Recovery getRecovery() {
+		return recovery;
+	}
+
+	/**
+	 * Record the intent to switch active profile
+	 *
+	 * @param moveMethod       move method of the registry
+	 * @param previousProfile  directory of the active profile, {@code null} if none
+	 * @param previousDataPath user data folder of the active profile, {@code null} if none
+	 * @param targetProfile    directory of the profile to activate, {@code null} to deactivate
+	 * @param targetDataPath   user data folder of the profile to activate, {@code null} to deactivate
+	 * @return id to pass to {@link #commit(long)}
+	 * @throws IOException
+	 */
+	public long beginActivation(int moveMethod, Path previousProfile, Path previousDataPath,
+			Path targetProfile, Path targetDataPath) throws IOException {
+		JournalRecordJson r = new JournalRecordJson();
+		r.operation = OP_ACTIVATE;
+		r.moveMethod = moveMethod;
+		r.previousProfile = toString(previousProfile);
+		r.previousDataPath = toString(previousDataPath);
+		r.targetProfile = toString(targetProfile);
+		r.targetDataPath = toString(targetDataPath);
+		return begin(r);
+	}
+
+	/**
+	 * Record the intent to rename a profile directory
+	 *
+	 * @param moveMethod move method of the registry
+	 * @param from       current directory of the profile
+	 * @param to         new directory of the profile
+	 * @param dataPath   user data folder if the profile is active, {@code null} otherwise
+	 * @return id to pass to {@link #commit(long)}
+	 * @throws IOException
+	 */
+	public long beginRename(int moveMethod, Path from, Path to, Path dataPath) throws IOException {
+		JournalRecordJson r = new JournalRecordJson();
+		r.operation = OP_RENAME;
+		r.moveMethod = moveMethod;
+		r.previousProfile = toString(from);
+		r.targetProfile = toString(to);
+		r.targetDataPath = toString(dataPath);
+		return begin(r);
+	}
+
+	/**
+	 * Record the intent to move the active profile's folders to another user data folder
+	 * <p>
+	 * Recorded as an activation of the profile from one user data folder to the other,
+	 * and recovered and rolled back the same way
+	 *
+	 * @param moveMethod   move method of the registry
+	 * @param profile      directory of the active profile
+	 * @param fromDataPath user data folder the folders are in
+	 * @param toDataPath   user data folder to move them to
+	 * @return id to pass to {@link #commit(long)}
+	 * @throws IOException
+	 */
+	public long beginMove(int moveMethod, Path profile, Path fromDataPath, Path toDataPath) throws IOException {
+		JournalRecordJson r = new JournalRecordJson();
+		r.operation = OP_MOVE;
+		r.moveMethod = moveMethod;
+		r.previousProfile = toString(profile);
+		r.previousDataPath = toString(fromDataPath);
+		r.targetProfile = toString(profile);
+		r.targetDataPath = toString(toDataPath);
+		return begin(r);
+	}
+
+	/**
+	 * Record the intent to move the user data folders into the first profile
+	 *
+	 * @param moveMethod move method of the registry
+	 * @param profile    directory of the first profile
+	 * @param dataPath   the user data folder
+	 * @return id to pass to {@link #commit(long)}
+	 * @throws IOException
+	 */
+	public long beginSetup(int moveMethod, Path profile, Path dataPath) throws IOException {
+		JournalRecordJson r = new JournalRecordJson();
+		r.operation = OP_SETUP;
+		r.moveMethod = moveMethod;
+		r.targetProfile = toString(profile);
+		r.targetDataPath = toString(dataPath);
+		return begin(r);
+	}
+
+	private synchronized long begin(JournalRecordJson record) throws IOException {
+		record.type = TYPE_BEGIN;
+		record.id = nextId++;
+		append(record);
+		inFlight.put(record.id, record);
+		return record.id;
+	}
+
+	/**
+	 * Mark an operation as finished, its folders and settings are consistent
+	 *
+	 * @param id returned when the operation began
+	 */
+	public synchronized void commit(long id) {
+		JournalRecordJson committed = inFlight.remove(id);
+		if (committed != null && movesFolders(committed)) {
+			inFlight.values().removeIf(earlier -> {
+				if (earlier.id > id || ! movesFolders(earlier)) return false;
+				LOGGER.info("Journal entry " + earlier.id + " superseded by " + id);
+				return true;
+			});
+		}
+		close(id, TYPE_COMMIT);
+	}
+
+	/**
+	 * Mark an operation as abandoned after its changes were undone, nothing is left to recover
+	 *
+	 * @param id returned when the operation began
+	 */
+	public synchronized void abort(long id) {
+		LOGGER.info("Journal entry " + id + " aborted");
+		inFlight.remove(id);
+		close(id, TYPE_ABORT);
+	}
+
+	private void close(long id, String type) {
+		JournalRecordJson r = new JournalRecordJson();
+		r.type = type;
+		r.id = id;
+		try {
+			if (inFlight.isEmpty()) {
+				// Nothing in flight, start over instead of growing the file
+				channel.truncate(0);
+				channel.force(true);
+			} else {
+				append(r);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not close journal entry " + id, e);
+		}
+	}
+
+	/**
+	 * Put the folders back where they were before a failed activation began, then abort it
+	 * <p>
+	 * If they can not be put back the entry is left open for recovery on next start,
+	 * and no other operation may move folders until then.
+	 *
+	 * @param id      returned when the activation began
+	 * @param movedIn whether moving the target's folders in had started
+	 * @return {@code true} if the folders were put back and the entry aborted
+	 */
+	public boolean rollBack(long id, boolean movedIn) {
+		JournalRecordJson r;
+		synchronized (this) {
+			r = inFlight.get(id);
+		}
+		if (r == null || ! (OP_ACTIVATE.equals(r.operation) || OP_MOVE.equals(r.operation))) return false;
+		LOGGER.warning("Rolling back: " + gson.toJson(r));
+		try {
+			restoreActivation(r, movedIn);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Could not roll back " + describe(r), e);
+			return false;
+		}
+		abort(id);
+		return true;
+	}
+
+	private void append(JournalRecordJson record) throws IOException {
+		byte[] line = (gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.wrap(line);
+		long position = channel.size();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		channel.force(true);
+	}
+
+	/**
+	 * Complete operations that began but never committed
+	 *
+	 * @param unresolved filled with the entries that could not be completed
+	 */
+	private Recovery recover(List<JournalRecordJson> unresolved) {
+		Recovery result = new Recovery();
+		if (! Files.exists(journalFile)) return result;
+
+		Map<Long, JournalRecordJson> pending = new LinkedHashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) continue;
+				JournalRecordJson r;
+				try {
+					r = gson.fromJson(line, JournalRecordJson.class);
+				} catch (JsonParseException e) {
+					// Torn write, the operation never started
+					LOGGER.warning("Ignoring unreadable journal line: " + line);
+					continue;
+				}
+				if (r == null) continue;
+				nextId = Math.max(nextId, r.id + 1); // Kept entries keep their ids
+				if (TYPE_BEGIN.equals(r.type)) {
+					pending.put(r.id, r);
+				} else if (TYPE_COMMIT.equals(r.type)) {
+					JournalRecordJson committed = pending.remove(r.id);
+					long id = r.id;
+					if (committed != null && movesFolders(committed)) {
+						// The folders were consistent when it began
+						pending.values().removeIf(earlier -> earlier.id < id && movesFolders(earlier));
+					}
+				} else if (TYPE_ABORT.equals(r.type)) {
+					pending.remove(r.id);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Could not read activation journal", e);
+			result.problems.add("Could not read " + journalFile + ": " + e.getMessage());
+			return result;
+		}
+
+		for (JournalRecordJson r : pending.values()) {
+			LOGGER.warning("Recovering unfinished operation: " + gson.toJson(r));
+			result.recovered = true;
+			try {
+				switch (r.operation) {
+				case OP_ACTIVATE:
+				case OP_MOVE:
+					recoverActivation(r, result);
+					break;
+				case OP_RENAME:
+					recoverRename(r, result);
+					break;
+				case OP_SETUP:
+					recoverSetup(r, result);
+					break;
+				default:
+					result.problems.add("Unknown journal operation " + r.operation);
+				}
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.SEVERE, "Recovery failed", e);
+				result.problems.add(describe(r) + "\n" + e.getMessage());
+				unresolved.add(r);
+			}
+		}
+		return result;
+	}
+
+	private void recoverActivation(JournalRecordJson r, Recovery result) throws IOException {
+		Path previous = toPath(r.previousProfile);
+		Path previousData = toPath(r.previousDataPath);
+		Path target = toPath(r.targetProfile);
+		Path targetData = toPath(r.targetDataPath);
+
+		if (r.moveMethod == FileIO.METHOD_RENAME) {
+			// Folders are moved back to the previous profile before the target's are moved in
+			for (String folder : FOLDERS) {
+				if (previous == null) break;
+				Path inData = previousData.resolve(folder);
+				Path inProfile = previous.resolve(folder);
+				boolean targetDone = target != null && previousData.equals(targetData)
+						&& ! exists(target.resolve(folder));
+				// Moving a profile between user data folders, already moved on to the new one
+				boolean movedOn = previous.equals(target) && exists(targetData.resolve(folder));
+				if (exists(inData) && ! exists(inProfile)) {
+					move(inData, inProfile);
+				} else if (exists(inData) && ! targetDone) {
+					throw new IOException("Folder exists in both locations\n" + inData + "\n" + inProfile);
+				} else if (! exists(inData) && ! exists(inProfile) && ! movedOn) {
+					throw new IOException("Folder missing\n" + inProfile);
+				}
+			}
+			if (target != null) {
+				for (String folder : FOLDERS) {
+					ensureMovedIn(target.resolve(folder), targetData.resolve(folder));
+				}
+			}
+		} else {
+			if (previous != null && (target == null || ! previousData.equals(targetData))) {
+				for (String folder : FOLDERS) {
+					deleteIfLink(previousData.resolve(folder));
+				}
+			}
+			if (target != null) {
+				ensureLinks(r.moveMethod, target, targetData);
+			}
+		}
+		result.setActiveProfile(target);
+	}
+
+	/**
+	 * Undo a failed activation, leaving the previous profile active
+	 */
+	private void restoreActivation(JournalRecordJson r, boolean movedIn) throws IOException {
+		Path previous = toPath(r.previousProfile);
+		Path previousData = toPath(r.previousDataPath);
+		Path target = toPath(r.targetProfile);
+		Path targetData = toPath(r.targetDataPath);
+
+		if (movedIn && target != null) {
+			for (String folder : FOLDERS) {
+				Path inData = targetData.resolve(folder);
+				Path inProfile = target.resolve(folder);
+				if (r.moveMethod != FileIO.METHOD_RENAME) {
+					if (isLink(inData) && pointsTo(inData, inProfile)) {
+						Files.delete(inData);
+					}
+				} else if (exists(inData) && ! exists(inProfile)) {
+					move(inData, inProfile);
+				}
+			}
+		}
+		if (previous != null) {
+			if (r.moveMethod == FileIO.METHOD_RENAME) {
+				for (String folder : FOLDERS) {
+					ensureMovedIn(previous.resolve(folder), previousData.resolve(folder));
+				}
+			} else {
+				ensureLinks(r.moveMethod, previous, previousData);
+			}
+		}
+	}
+
+	private void recoverRename(JournalRecordJson r, Recovery result) throws IOException {
+		Path from = toPath(r.previousProfile);
+		Path to = toPath(r.targetProfile);
+		Path dataPath = toPath(r.targetDataPath);
+
+		Path directory = exists(to) ? to : from;
+		if (! exists(directory)) {
+			throw new IOException("Profile directory missing\n" + from + "\n" + to);
+		}
+		if (dataPath == null) return; // Inactive profile, the rename itself is atomic
+
+		if (r.moveMethod == FileIO.METHOD_RENAME) {
+			for (String folder : FOLDERS) {
+				ensureMovedIn(directory.resolve(folder), dataPath.resolve(folder));
+			}
+		} else {
+			ensureLinks(r.moveMethod, directory, dataPath);
+		}
+		result.setActiveProfile(directory);
+	}
+
+	private void recoverSetup(JournalRecordJson r, Recovery result) throws IOException {
+		Path profile = toPath(r.targetProfile);
+		Path dataPath = toPath(r.targetDataPath);
+
+		Files.createDirectories(profile);
+		if (r.moveMethod != FileIO.METHOD_RENAME) {
+			for (String folder : FOLDERS) {
+				Path inData = dataPath.resolve(folder);
+				Path inProfile = profile.resolve(folder);
+				if (exists(inData) && ! isLink(inData)) {
+					if (exists(inProfile)) {
+						throw new IOException("Folder exists in both locations\n" + inData + "\n" + inProfile);
+					}
+					move(inData, inProfile);
+				}
+			}
+			ensureLinks(r.moveMethod, profile, dataPath);
+		}
+		result.setActiveProfile(profile);
+		result.setupCompleted = true;
+	}
+
+	/**
+	 * Move a folder from the profile into the user data folder, unless already done
+	 */
+	private void ensureMovedIn(Path inProfile, Path inData) throws IOException {
+		if (exists(inProfile) && ! exists(inData)) {
+			move(inProfile, inData);
+		} else if (exists(inProfile)) {
+			throw new IOException("Folder exists in both locations\n" + inProfile + "\n" + inData);
+		} else if (! exists(inData)) {
+			throw new IOException("Folder missing\n" + inProfile);
+		}
+	}
+
+	/**
+	 * Make the user data folders link to the profile's folders, replacing partial links
+	 */
+	private void ensureLinks(int moveMethod, Path profile, Path dataPath) throws IOException {
+		for (String folder : FOLDERS) {
+			Path link = dataPath.resolve(folder);
+			Path linkTarget = profile.resolve(folder);
+			if (! exists(linkTarget)) {
+				throw new IOException("Folder missing\n" + linkTarget);
+			}
+			if (isLink(link)) {
+				if (pointsTo(link, linkTarget)) continue;
+				Files.delete(link);
+			} else if (Files.exists(link, LinkOption.NOFOLLOW_LINKS)) {
+				throw new IOException("Expected a link, found a folder\n" + link);
+			}
+			LOGGER.info("Recreating link " + link + " -> " + linkTarget);
+			if (moveMethod == FileIO.METHOD_JUNCTION) {
+				new WindowsJunctionUtility().createJunction(link, linkTarget);
+			} else {
+				Files.createSymbolicLink(link, linkTarget);
+			}
+		}
+	}
+
+	private void move(Path source, Path target) throws IOException {
+		LOGGER.info("Completing move " + source + " -> " + target);
+		mover.move(source, target);
+	}
+
+	private static void deleteIfLink(Path path) throws IOException {
+		if (isLink(path)) {
+			Files.delete(path);
+		}
+	}
+
+	private static boolean exists(Path path) {
+		return Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+	}
+
+	/**
+	 * @return {@code true} for symbolic links and junctions, also dangling ones
+	 */
+	private static boolean isLink(Path path) {
+		if (Files.isSymbolicLink(path)) return true;
+		if (! exists(path)) return false;
+		try {
+			// Junctions are not reported as symbolic links, compare against the resolved parent
+			Path parent = path.toAbsolutePath().getParent();
+			return ! path.toRealPath().equals(parent.toRealPath().resolve(path.getFileName()));
+		} catch (IOException e) {
+			return true; // Can not be resolved, a dangling junction
+		}
+	}
+
+	private static boolean pointsTo(Path link, Path target) {
+		try {
+			return link.toRealPath().equals(target.toRealPath());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return {@code true} if the operation moves or links the folders in a user data folder
+	 */
+	private static boolean movesFolders(JournalRecordJson r) {
+		return ! OP_RENAME.equals(r.operation) || r.targetDataPath != null;
+	}
+
+	private static String describe(JournalRecordJson r) {
+		return String.format("%s %s -> %s", r.operation.toLowerCase(), r.previousProfile, r.targetProfile);
+	}
+
+	private static String toString(Path path) {
+		return path == null ? null : path.toAbsolutePath().toString();
+	}
+
+	private static Path toPath(String path) {
+		return path == null ? null : Paths.get(path);
+	}
+
+	/**
+	 * What startup recovery found and did
+	 */
+	public static class Recovery {
+		private boolean recovered = false;
+		private boolean activeProfileKnown = false;
+		private Path activeProfilePath;
+		private boolean setupCompleted = false;
+		private final List<String> problems = new ArrayList<>();
+
+		private void setActiveProfile(Path path) {
+			this.activeProfileKnown = true;
+			this.activeProfilePath = path;
+		}
+
+		/**
+		 * @return {@code true} if any unfinished operation was found
+		 */
+		public boolean isRecovered() {
+			return recovered;
+		}
+
+		/**
+		 * @return {@code true} if {@link #getActiveProfilePath()} should replace the saved active profile
+		 */
+		public boolean isActiveProfileKnown() {
+			return activeProfileKnown;
+		}
+
+		/**
+		 * @return the profile whose folders are in the user data folder, {@code null} if none
+		 */
+		public Path getActiveProfilePath() {
+			return activeProfilePath;
+		}
+
+		/**
+		 * @return {@code true} if an interrupted initial setup was completed
+		 */
+		public boolean isSetupCompleted() {
+			return setupCompleted;
+		}
+
+		/**
+		 * @return descriptions of operations that could not be completed automatically
+		 */
+		public List<String> getProblems() {
+			return Collections.unmodifiableList(problems);
+		}
+	}
+
+}
@@ -0,0 +1,14 @@
+package no.artorp.profilio.utility;
+
+/**
+ * Receives the changes of a {@link DirectoryWatcher} in batches, see {@link ChangeSet}
+ */
+public interface BatchWatcherListener {
+
+	/**
+	 * Called from the watcher thread once the directory has been quiet for the batch window
+	 *
+	 * @param changes coalesced changes, never empty
+	 */
+	public void filesChanged(ChangeSet changes);
+}
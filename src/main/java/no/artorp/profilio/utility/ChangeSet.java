@@ -0,0 +1,138 @@
+package no.artorp.profilio.utility;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesced file system changes collected over a time window
+ * <p>
+ * Each path appears at most once. A path created and deleted within the window is
+ * left out, a path deleted and created again is reported as modified, and repeated
+ * modifications are merged.
+ */
+public class ChangeSet {
+
+	private enum Change { CREATED, DELETED, MODIFIED }
+
+	private final Set<Path> created;
+	private final Set<Path> deleted;
+	private final Set<Path> modified;
+
+	private ChangeSet(Set<Path> created, Set<Path> deleted, Set<Path> modified) {
+		this.created = Collections.unmodifiableSet(created);
+		this.deleted = Collections.unmodifiableSet(deleted);
+		this.modified = Collections.unmodifiableSet(modified);
+	}
+
+	/**
+	 * @return paths that did not exist at the start of the window, in the order they appeared
+	 */
+	public Set<Path> getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return paths that existed at the start of the window and are gone
+	 */
+	public Set<Path> getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * @return paths that existed before and after the window, and were written to or replaced
+	 */
+	public Set<Path> getModified() {
+		return modified;
+	}
+
+	public boolean isEmpty() {
+		return created.isEmpty() && deleted.isEmpty() && modified.isEmpty();
+	}
+
+	public int size() {
+		return created.size() + deleted.size() + modified.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d created, %d deleted, %d modified", created.size(), deleted.size(), modified.size());
+	}
+
+	/**
+	 * Collects raw events into a {@link ChangeSet}, not thread safe
+	 */
+	public static class Builder {
+		private final Map<Path, Change> changes = new LinkedHashMap<>();
+		private int events = 0;
+
+		public Builder created(Path path) {
+			events++;
+			Change previous = changes.get(path);
+			if (previous == Change.DELETED) {
+				// Replaced within the window
+				changes.put(path, Change.MODIFIED);
+			} else if (previous == null) {
+				changes.put(path, Change.CREATED);
+			}
+			return this;
+		}
+
+		public Builder deleted(Path path) {
+			events++;
+			Change previous = changes.get(path);
+			if (previous == Change.CREATED) {
+				// Never seen by listeners
+				changes.remove(path);
+			} else {
+				changes.put(path, Change.DELETED);
+			}
+			return this;
+		}
+
+		public Builder modified(Path path) {
+			events++;
+			if (! changes.containsKey(path)) {
+				changes.put(path, Change.MODIFIED);
+			}
+			return this;
+		}
+
+		/**
+		 * @return {@code true} if no events were added since the last {@link #build()}
+		 */
+		public boolean isEmpty() {
+			return events == 0;
+		}
+
+		/**
+		 * @return number of raw events added since the last {@link #build()}
+		 */
+		public int getEventCount() {
+			return events;
+		}
+
+		/**
+		 * @return the coalesced changes, the builder is cleared for the next window
+		 */
+		public ChangeSet build() {
+			Set<Path> created = new LinkedHashSet<>();
+			Set<Path> deleted = new LinkedHashSet<>();
+			Set<Path> modified = new LinkedHashSet<>();
+			for (Map.Entry<Path, Change> e : changes.entrySet()) {
+				switch (e.getValue()) {
+				case CREATED: created.add(e.getKey()); break;
+				case DELETED: deleted.add(e.getKey()); break;
+				case MODIFIED: modified.add(e.getKey()); break;
+				}
+			}
+			changes.clear();
+			events = 0;
+			return new ChangeSet(created, deleted, modified);
+		}
+	}
+
+}
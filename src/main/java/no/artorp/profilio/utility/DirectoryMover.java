@@ -0,0 +1,288 @@
+package no.artorp.profilio.utility;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Moves a directory tree, also when source and target are on different file systems
+ * <p>
+ * Within one {@link java.nio.file.FileStore FileStore} a move is a plain rename. Across
+ * file stores {@link Files#move(Path, Path, java.nio.file.CopyOption...)} can not move
+ * a non-empty directory, so the tree is copied instead: files are copied in parallel with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * timestamps and permissions are kept, every copy is verified, and only then is the
+ * source deleted. If anything fails the partial copy is removed and the source is left untouched.
+ */
+public class DirectoryMover {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+	private static final int CHECKSUM_BUFFER = 1024 * 1024;
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(POOL_SIZE, r -> {
+		Thread t = new Thread(r, "directory-mover");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final boolean verifyChecksums;
+
+	/**
+	 * @param verifyChecksums compare CRC32 of source and copy before deleting the source,
+	 *                        sizes are always compared
+	 */
+	public DirectoryMover(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+	}
+
+	/**
+	 * @param source an existing file or directory
+	 * @param target a path that does not exist yet
+	 * @return {@code true} if the target's parent directory is on the same file store as the source
+	 * @throws IOException
+	 */
+	public static boolean isSameFileStore(Path source, Path target) throws IOException {
+		Path targetParent = target.toAbsolutePath().getParent();
+		return Files.getFileStore(source).equals(Files.getFileStore(targetParent));
+	}
+
+	/**
+	 * Move a directory tree from source to target
+	 *
+	 * @param source directory to move
+	 * @param target new location, must not exist
+	 * @throws IOException
+	 */
+	public void move(Path source, Path target) throws IOException {
+		if (isSameFileStore(source, target)) {
+			Files.move(source, target);
+			return;
+		}
+
+		LOGGER.info(String.format("Cross file store move, copying\n%s\nto\n%s", source, target));
+		long start = System.nanoTime();
+		long bytes;
+		try {
+			bytes = copyTree(source, target, null);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Copy failed, removing partial copy " + target, e);
+			try {
+				deleteTree(target);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
+		deleteTree(source);
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		LOGGER.info(String.format("Moved %d MB in %.2f s (%.1f MB/s)",
+				bytes >> 20, seconds, (bytes / 1048576.0) / Math.max(seconds, 1e-9)));
+	}
+
+	/**
+	 * Copy and verify a directory tree
+	 * <p>
+	 * The partial copy is left in place if this fails
+	 *
+	 * @param source       directory to copy
+	 * @param target       new location, must not exist
+	 * @param hardLinkable files that may be hard linked instead of copied, may be {@code null}.
+	 *                     Falls back to copying if the link can not be created
+	 * @return number of bytes copied, hard linked files excluded
+	 * @throws IOException
+	 */
+	public long copyTree(Path source, Path target, Predicate<Path> hardLinkable) throws IOException {
+		if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+			throw new IOException("Target already exists\n" + target);
+		}
+
+		List<Path[]> directories = new ArrayList<>();
+		List<Path[]> files = new ArrayList<>();
+
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Path dirTarget = target.resolve(source.relativize(dir).toString());
+				Files.createDirectory(dirTarget);
+				directories.add(new Path[] { dir, dirTarget });
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path fileTarget = target.resolve(source.relativize(file).toString());
+				if (attrs.isRegularFile()) {
+					if (hardLinkable != null && hardLinkable.test(file) && tryHardLink(fileTarget, file)) {
+						return FileVisitResult.CONTINUE;
+					}
+					files.add(new Path[] { file, fileTarget });
+				} else {
+					// Links and other special files are few, copy them as they are
+					Files.copy(file, fileTarget, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.COPY_ATTRIBUTES);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		List<Future<Long>> copies = new ArrayList<>(files.size());
+		for (Path[] pair : files) {
+			copies.add(POOL.submit(() -> copyFile(pair[0], pair[1])));
+		}
+
+		long bytes = 0;
+		IOException failure = null;
+		for (Future<Long> f : copies) {
+			try {
+				bytes += f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = new IOException("Interrupted while copying " + source, e);
+				cancelAll(copies);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof IOException
+							? (IOException) e.getCause()
+							: new IOException(e.getCause());
+					cancelAll(copies);
+				}
+			}
+		}
+		if (failure != null) {
+			// Let running copies finish before the partial tree is deleted
+			awaitAll(copies);
+			throw failure;
+		}
+
+		// Directory times change while filling them, set them last, deepest first
+		Collections.reverse(directories);
+		for (Path[] pair : directories) {
+			copyAttributes(pair[0], pair[1]);
+		}
+		return bytes;
+	}
+
+	private static boolean tryHardLink(Path link, Path existing) {
+		try {
+			Files.createLink(link, existing);
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			LOGGER.fine("Could not hard link, copying instead: " + existing + " (" + e + ")");
+			return false;
+		}
+	}
+
+	private long copyFile(Path source, Path target) throws IOException {
+		long size;
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			size = in.size();
+			long position = 0;
+			while (position < size) {
+				long transferred = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+				if (transferred <= 0) break;
+				position += transferred;
+			}
+			out.force(true);
+		}
+		copyAttributes(source, target);
+
+		long targetSize = Files.size(target);
+		if (targetSize != size) {
+			throw new IOException(String.format("Size mismatch after copy, %d != %d\n%s", targetSize, size, target));
+		}
+		if (verifyChecksums && checksum(source) != checksum(target)) {
+			throw new IOException("Checksum mismatch after copy\n" + target);
+		}
+		return size;
+	}
+
+	private static void copyAttributes(Path source, Path target) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		PosixFileAttributeView posix = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+		if (posix != null) {
+			posix.setPermissions(Files.getPosixFilePermissions(source));
+		}
+		Files.getFileAttributeView(target, BasicFileAttributeView.class)
+				.setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), attrs.creationTime());
+	}
+
+	private static long checksum(Path file) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static void cancelAll(List<Future<Long>> futures) {
+		for (Future<Long> f : futures) {
+			f.cancel(false);
+		}
+	}
+
+	private static void awaitAll(List<Future<Long>> futures) {
+		for (Future<Long> f : futures) {
+			try {
+				if (! f.isCancelled()) f.get();
+			} catch (Exception e) {
+				// Already reported
+			}
+		}
+	}
+
+	/**
+	 * Delete a directory tree, links are deleted and not followed
+	 *
+	 * @param root file or directory to delete
+	 * @throws IOException
+	 */
+	public static void deleteTree(Path root) throws IOException {
+		if (! Files.exists(root, LinkOption.NOFOLLOW_LINKS)) return;
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if (exc != null) throw exc;
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+}
@@ -0,0 +1,167 @@
+package no.artorp.profilio.utility;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Names, file keys and modification times of the children of one directory
+ * <p>
+ * Kept up to date from watch events by {@link DirectoryWatcher}, and compared with a
+ * fresh listing when events were lost, so only the actual differences are reported.
+ * When polling, {@link #looksUnchanged()} avoids the full listing while nothing changes.
+ */
+public class DirectorySnapshot {
+
+	private final Path directory;
+	private final Map<Path, ProfileEntry> entries;
+	private long directoryModified;
+
+	private DirectorySnapshot(Path directory, Map<Path, ProfileEntry> entries, long directoryModified) {
+		this.directory = directory;
+		this.entries = entries;
+		this.directoryModified = directoryModified;
+	}
+
+	/**
+	 * @param directory directory to list, links are not followed
+	 * @return snapshot of the directory as it is now
+	 * @throws IOException if the directory could not be listed
+	 */
+	public static DirectorySnapshot take(Path directory) throws IOException {
+		// Read before listing, so a change during the listing is seen next time
+		long modified = Files.getLastModifiedTime(directory).toMillis();
+		Map<Path, ProfileEntry> entries = new HashMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path child : stream) {
+				ProfileEntry entry = read(child);
+				if (entry != null) {
+					entries.put(child, entry);
+				}
+			}
+		}
+		return new DirectorySnapshot(directory, entries, modified);
+	}
+
+	/**
+	 * @return snapshot of a directory that does not exist
+	 */
+	public static DirectorySnapshot empty(Path directory) {
+		return new DirectorySnapshot(directory, new HashMap<>(), 0);
+	}
+
+	private static ProfileEntry read(Path child) throws IOException {
+		try {
+			return ProfileEntry.fromAttributes(child,
+					Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+		} catch (NoSuchFileException e) {
+			return null; // Deleted while listing
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Record the current attributes of a child, or its removal if it is gone
+	 */
+	public void update(Path child) {
+		try {
+			ProfileEntry entry = read(child);
+			if (entry == null) {
+				entries.remove(child);
+			} else {
+				entries.put(child, entry);
+			}
+		} catch (IOException e) {
+			// Leave as is, a later reconcile will catch up
+		}
+	}
+
+	public void remove(Path child) {
+		entries.remove(child);
+	}
+
+	/**
+	 * Record the current modification time of the directory, after its events were applied
+	 */
+	public void touch() {
+		try {
+			directoryModified = Files.getLastModifiedTime(directory).toMillis();
+		} catch (IOException e) {
+			directoryModified = 0;
+		}
+	}
+
+	/**
+	 * Cheap check for changes, one stat of the directory and a listing of names without
+	 * reading their attributes
+	 *
+	 * @return {@code true} if the modification time and number of entries are as recorded
+	 */
+	public boolean looksUnchanged() {
+		try {
+			if (Files.getLastModifiedTime(directory).toMillis() != directoryModified) return false;
+			int count = 0;
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (@SuppressWarnings("unused") Path child : stream) {
+					count++;
+				}
+			}
+			return count == entries.size();
+		} catch (IOException e) {
+			// Gone, unchanged if it was already gone
+			return directoryModified == 0 && entries.isEmpty();
+		}
+	}
+
+	/**
+	 * Report the differences from this snapshot to a newer one
+	 * <p>
+	 * A child replaced by a different file, with a different file key, is reported as
+	 * deleted and then created. Same file key and a different modification time is
+	 * reported as modified.
+	 *
+	 * @param current newer snapshot of the same directory
+	 * @param out     receives one event per difference
+	 * @return number of events reported
+	 */
+	public int diff(DirectorySnapshot current, WatcherListener out) {
+		int events = 0;
+		for (Map.Entry<Path, ProfileEntry> e : entries.entrySet()) {
+			if (! current.entries.containsKey(e.getKey())) {
+				out.fileDeleted(e.getKey());
+				events++;
+			}
+		}
+		for (Map.Entry<Path, ProfileEntry> e : current.entries.entrySet()) {
+			ProfileEntry before = entries.get(e.getKey());
+			ProfileEntry after = e.getValue();
+			if (before == null) {
+				out.fileCreated(e.getKey());
+				events++;
+			} else if (before.getFileKey() != null && ! before.getFileKey().equals(after.getFileKey())
+					|| before.isDirectory() != after.isDirectory()) {
+				out.fileDeleted(e.getKey());
+				out.fileCreated(e.getKey());
+				events += 2;
+			} else if (before.getLastModified() != after.getLastModified()) {
+				out.fileModified(e.getKey());
+				events++;
+			}
+		}
+		return events;
+	}
+
+}
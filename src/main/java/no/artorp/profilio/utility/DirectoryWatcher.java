@@ -2,7 +2,6 @@ package no.artorp.profilio.utility;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
-import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -11,59 +10,250 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Watches one root directory, optionally recursively, and sends its changes to listeners
+ * <p>
+ * A watcher does not own a thread, it is served by a {@link WatchEngine} together with
+ * every other watched root. Start it with {@link WatchEngine#addRoot(DirectoryWatcher)}
+ * after adding listeners, and stop it with {@link #close()}. Listeners are called from
+ * the engine thread.
+ * <p>
+ * On network shares and sync folders, where native events are missing or late, the
+ * root is polled instead. Each directory is checked by modification time and entry
+ * count, and listed in full only when those change. The interval backs off while
+ * nothing changes. Native roots are also checked now and then, and switch to polling
+ * if changes were missed.
+ */
+public class DirectoryWatcher {
 
-public class DirectoryWatcher implements Runnable {
-	
 	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
 
-	private final WatchService watcher;
-	private final Map<WatchKey, Path> keys;
+	private final Map<WatchKey, Path> keys = new HashMap<>();
 	private final boolean recursive;
 	private boolean trace = false;
-	
-	private Path watchingDir;
-	
+
+	private final Path watchingDir;
+	private volatile WatchEngine engine;
+
 	private final CopyOnWriteArrayList<WatcherListener> listeners = new CopyOnWriteArrayList<>();
+	private final CopyOnWriteArrayList<BatchWatcherListener> batchListeners = new CopyOnWriteArrayList<>();
+
+	/** Quiet time before a batch is delivered */
+	public static final long DEFAULT_BATCH_WINDOW = 150;
+	/** A batch is delivered after this long even if events keep coming */
+	public static final long MAX_BATCH_DELAY = 1000;
+
+	private long batchWindow = DEFAULT_BATCH_WINDOW;
+	private final ChangeSet.Builder pending = new ChangeSet.Builder();
+	private long batchStarted;
+	private long lastEvent;
+
+	// Children of each watched directory, to find what changed when events are lost
+	private final Map<Path, DirectorySnapshot> snapshots = new HashMap<>();
 
-	public DirectoryWatcher(Path dir, boolean recursive) throws IOException {
+	/** First poll interval, and the interval right after a change */
+	public static final long MIN_POLL_INTERVAL = 1000;
+	/** Poll interval reached after being idle for a while */
+	public static final long MAX_POLL_INTERVAL = 30000;
+	/** How often native roots are checked for missed changes */
+	public static final long VERIFY_INTERVAL = 60000;
+	/** Native roots switch to polling after this many checks in a row found missed changes */
+	private static final int MISSED_LIMIT = 2;
+
+	// File systems where native events are missing or late
+	private static final Set<String> REMOTE_FILE_STORES = new HashSet<>(Arrays.asList(
+			"cifs", "smb", "smbfs", "smb2", "smb3", "nfs", "nfs4", "afpfs", "webdav", "davfs",
+			"9p", "sshfs", "fuse", "osxfuse", "macfuse"));
+	private static final String[] SYNC_FOLDER_NAMES = {
+			"Dropbox", "OneDrive", "Google Drive", "iCloud Drive", "Mobile Documents", "Nextcloud", "ownCloud" };
+
+	private boolean forcePolling = false;
+	private boolean polling = false;
+	private long pollInterval = MIN_POLL_INTERVAL;
+	private long nextPoll = Long.MAX_VALUE;
+	private int missedChecks = 0;
+
+	private final EventSuppressor suppressor = EventSuppressor.get();
+
+	/**
+	 * Sends an event to the listeners, both for events from the watch service and
+	 * for those found when reconciling with a snapshot. Events caused by Profilio's
+	 * own operations are dropped here
+	 */
+	private final WatcherListener dispatcher = new WatcherListener() {
+		@Override
+		public void fileCreated(Path fileCreated) {
+			if (suppressor.isSuppressed(fileCreated)) return;
+			markEvent();
+			for (WatcherListener listener : listeners) listener.fileCreated(fileCreated);
+			if (! batchListeners.isEmpty()) pending.created(fileCreated);
+		}
+
+		@Override
+		public void fileDeleted(Path fileDeleted) {
+			if (suppressor.isSuppressed(fileDeleted)) return;
+			markEvent();
+			for (WatcherListener listener : listeners) listener.fileDeleted(fileDeleted);
+			if (! batchListeners.isEmpty()) pending.deleted(fileDeleted);
+		}
+
+		@Override
+		public void fileModified(Path fileModified) {
+			if (suppressor.isSuppressed(fileModified)) return;
+			markEvent();
+			for (WatcherListener listener : listeners) listener.fileModified(fileModified);
+			if (! batchListeners.isEmpty()) pending.modified(fileModified);
+		}
+	};
+
+	public DirectoryWatcher(Path dir, boolean recursive) {
 		this.watchingDir = dir;
-		this.watcher = FileSystems.getDefault().newWatchService();
-		this.keys = new HashMap<WatchKey, Path>();
 		this.recursive = recursive;
-		
-		LOGGER.setLevel(Level.FINE);
-		
+	}
+
+	public Path getRoot() {
+		return watchingDir;
+	}
+
+	public void addListener(WatcherListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Receive coalesced changes once per batch window instead of one call per event
+	 */
+	public void addBatchListener(BatchWatcherListener listener) {
+		this.batchListeners.add(listener);
+	}
+
+	/**
+	 * @param millis quiet time before a batch is delivered, set before starting the watcher
+	 */
+	public void setBatchWindow(long millis) {
+		this.batchWindow = millis;
+	}
+
+	/**
+	 * @param forcePolling poll even if native events look reliable, set before starting the watcher
+	 */
+	public void setPolling(boolean forcePolling) {
+		this.forcePolling = forcePolling;
+	}
+
+	/**
+	 * @return {@code true} if the root is polled instead of using native events
+	 */
+	public boolean isPolling() {
+		return polling;
+	}
+
+	/**
+	 * Guess whether native file system events can be trusted for a directory
+	 *
+	 * @return {@code true} for network file systems, FUSE mounts and cloud sync folders
+	 */
+	public static boolean isEventsUnreliable(Path dir) {
+		Path absolute = dir.toAbsolutePath();
+		if (absolute.toString().startsWith("\\\\")) return true; // Windows UNC path
+		for (Path part : absolute) {
+			for (String name : SYNC_FOLDER_NAMES) {
+				if (part.toString().startsWith(name)) return true;
+			}
+		}
+		try {
+			String type = Files.getFileStore(absolute).type().toLowerCase(Locale.ROOT);
+			// Not fuseblk, that is a local disk, ie ntfs-3g
+			return REMOTE_FILE_STORES.contains(type) || type.startsWith("fuse.");
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Stop watching, pending batched changes are dropped
+	 */
+	public void close() {
+		WatchEngine e = engine;
+		if (e != null) {
+			e.removeRoot(this);
+		}
+	}
+
+	/**
+	 * Remember the engine about to start this root, so {@link #close()} works before it has
+	 */
+	void attach(WatchEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Register the root, called from the engine thread after {@link WatchEngine#addRoot(DirectoryWatcher)}
+	 */
+	void start(WatchEngine engine) throws IOException {
+		this.engine = engine;
+		this.polling = forcePolling || isEventsUnreliable(watchingDir);
+		if (polling) {
+			LOGGER.info(String.format("Polling %s for changes", watchingDir));
+		}
 		if (recursive) {
-			LOGGER.info(String.format("Scanning %s ...", dir));
-			registerAll(dir);
-			LOGGER.info(String.format("Done scanning %s", dir));
+			LOGGER.info(String.format("Scanning %s ...", watchingDir));
+			registerAll(watchingDir);
+			LOGGER.info(String.format("Done scanning %s", watchingDir));
 		} else {
-			register(dir);
+			register(watchingDir);
 		}
-		
+
 		// Enable trace after initial register
 		this.trace = true;
+		this.nextPoll = System.currentTimeMillis() + (polling ? pollInterval : VERIFY_INTERVAL);
 	}
-	
-	public void addListener(WatcherListener listener) {
-		this.listeners.add(listener);
+
+	/**
+	 * Forget all keys, called by {@link WatchEngine#removeRoot(DirectoryWatcher)}
+	 *
+	 * @return the keys this root had registered
+	 */
+	List<WatchKey> stop() {
+		List<WatchKey> registered = releaseKeys();
+		snapshots.clear();
+		pending.build();
+		engine = null;
+		return registered;
 	}
-	
+
+	/**
+	 * @return the keys of this root, which are forgotten
+	 */
+	List<WatchKey> releaseKeys() {
+		List<WatchKey> registered = new ArrayList<>(keys.keySet());
+		keys.clear();
+		return registered;
+	}
+
 	private void register(Path dir) throws IOException {
-		WatchKey key = dir.register(watcher,
-				StandardWatchEventKinds.ENTRY_CREATE,
-				StandardWatchEventKinds.ENTRY_DELETE,
-				StandardWatchEventKinds.ENTRY_MODIFY);
-		
+		if (polling) {
+			// Snapshot only, changes are found by polling
+			if (! snapshots.containsKey(dir)) {
+				snapshots.put(dir, DirectorySnapshot.take(dir));
+			}
+			return;
+		}
+		WatchKey key = engine.register(this, dir);
+
 		if (trace) {
 			Path prev = keys.get(key);
 			if (prev == null) {
@@ -75,8 +265,16 @@ public class DirectoryWatcher implements Runnable {
 			}
 		}
 		keys.put(key, dir);
+		if (! snapshots.containsKey(dir)) {
+			try {
+				snapshots.put(dir, DirectorySnapshot.take(dir));
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not list " + dir, e);
+				snapshots.put(dir, DirectorySnapshot.empty(dir));
+			}
+		}
 	}
-	
+
 	private void registerAll(final Path start) throws IOException {
 		// Register directory and all subdirectories
 		Files.walkFileTree(start, new SimpleFileVisitor<Path>(){
@@ -86,89 +284,210 @@ public class DirectoryWatcher implements Runnable {
 				register(dir);
 				return FileVisitResult.CONTINUE;
 			}
-			
+
 		});
 	}
-	
-	@Override
-	public void run() {
-		LOGGER.info("Watcher watching " + this.watchingDir);
-		processEvents();
-		LOGGER.info("Watcher done watching " + this.watchingDir);
+
+	/**
+	 * Process the events of one of this root's keys, called from the engine thread
+	 */
+	void processEvents(WatchKey key, List<WatchEvent<?>> events) {
+		Path dir = keys.get(key);
+		if (dir == null) {
+			LOGGER.warning("Watchkey not recognized!");
+			return;
+		}
+
+		DirectorySnapshot snapshot = snapshots.get(dir);
+		for (WatchEvent<?> event : events) {
+			Kind<?> kind = event.kind();
+
+			if (kind == StandardWatchEventKinds.OVERFLOW) {
+				// Events were lost, find them by comparing with the snapshot
+				LOGGER.warning("Watcher overflow in " + dir + ", reconciling");
+				reconcile(dir);
+				snapshot = snapshots.get(dir);
+				continue;
+			}
+
+			Path name = (Path) event.context(); // Overflow skipped above, will always be path
+			Path child = dir.resolve(name);
+
+			// Print out event
+			LOGGER.fine(String.format("%s: %s", event.kind().name(), child));
+
+			if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+				snapshot.remove(child);
+			} else {
+				snapshot.update(child);
+			}
+
+			// If directory is created and watching recursively,
+			// register it and it's subdirectories, a moved in directory has them already
+			if (recursive && (kind == StandardWatchEventKinds.ENTRY_CREATE)) {
+				try {
+					if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+						registerAll(child);
+					}
+				} catch (IOException e) {
+					LOGGER.log(Level.SEVERE, "Error registering dir "+child, e);
+				}
+			}
+
+			// Send events to listeners
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+				dispatcher.fileCreated(child);
+			} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+				dispatcher.fileDeleted(child);
+			} else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+				dispatcher.fileModified(child);
+			}
+		}
+		snapshot.touch();
 	}
-	
+
 	/**
-	 * Process all events for keys queued to the watcher
+	 * One of this root's keys is no longer valid, its directory was deleted, moved or replaced
+	 *
+	 * @return {@code false} if the root has nothing left to watch
 	 */
-	void processEvents() {
-		while (! Thread.currentThread().isInterrupted()) {
-			// Wait for key to be signaled
-			WatchKey key;
+	boolean keyInvalidated(WatchKey key) {
+		Path dir = keys.remove(key);
+		if (dir == null) return ! keys.isEmpty();
+		// Register again if it was replaced, report what is gone or changed
+		if (Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
 			try {
-				key = watcher.take();
-			} catch (InterruptedException e) {
-				LOGGER.info("Watcher interrupted, exiting...");
-				//e.printStackTrace();
-				break;
+				register(dir);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not register " + dir + " again", e);
 			}
-			
-			Path dir = keys.get(key);
-			if (dir == null) {
-				LOGGER.warning("Watchkey not recognized!");
-				continue;
+		}
+		reconcile(dir);
+		if (! keys.containsValue(dir)) {
+			snapshots.remove(dir);
+		}
+		if (keys.isEmpty()) {
+			// All directories are inaccessible
+			flushBatch();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return time the root should be polled or checked next
+	 */
+	long getPollDue() {
+		return nextPoll;
+	}
+
+	/**
+	 * Poll the root for changes, or check a native root for missed changes
+	 *
+	 * @return {@code true} if the root switched from native events to polling, its
+	 *         keys should be released
+	 */
+	boolean poll() {
+		int differences = 0;
+		for (Path dir : new ArrayList<>(snapshots.keySet())) {
+			DirectorySnapshot snapshot = snapshots.get(dir);
+			if (snapshot == null || snapshot.looksUnchanged()) continue;
+			differences += reconcile(dir);
+			if (! dir.equals(watchingDir) && ! Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+				snapshots.remove(dir); // Subdirectory deleted
 			}
-			
-			for (WatchEvent<?> event : key.pollEvents()) {
-				Kind<?> kind = event.kind();
-				
-				if (kind == StandardWatchEventKinds.OVERFLOW) {
-					// Maybe handle overflow?
-					continue;
-				}
-				
-				Path name = (Path) event.context(); // Overflow skipped above, will always be path
-				Path child = dir.resolve(name);
-				
-				// Print out event
-				LOGGER.fine(String.format("%s: %s", event.kind().name(), child));
-				
-				
-				// If directory is created and watching recursively,
-				// register it and it's subdirectories
-				if (recursive && (kind == StandardWatchEventKinds.ENTRY_CREATE)) {
+		}
+
+		long now = System.currentTimeMillis();
+		if (polling) {
+			// Back off while idle
+			pollInterval = differences > 0 ? MIN_POLL_INTERVAL : Math.min(pollInterval * 2, MAX_POLL_INTERVAL);
+			nextPoll = now + pollInterval;
+			return false;
+		}
+
+		nextPoll = now + VERIFY_INTERVAL;
+		if (differences == 0) {
+			missedChecks = 0;
+			return false;
+		}
+		LOGGER.warning(String.format("Native events missed %d changes in %s", differences, watchingDir));
+		if (++missedChecks < MISSED_LIMIT) return false;
+
+		LOGGER.warning("Switching to polling " + watchingDir);
+		polling = true;
+		pollInterval = MIN_POLL_INTERVAL;
+		nextPoll = now + pollInterval;
+		return true;
+	}
+
+	/**
+	 * Compare a directory with its snapshot and send synthetic events for the differences
+	 *
+	 * @return number of differences
+	 */
+	private int reconcile(Path dir) {
+		DirectorySnapshot old = snapshots.get(dir);
+		if (old == null) return 0;
+		DirectorySnapshot current;
+		try {
+			current = DirectorySnapshot.take(dir);
+		} catch (IOException e) {
+			current = DirectorySnapshot.empty(dir);
+		}
+		snapshots.put(dir, current);
+		int events = old.diff(current, new WatcherListener() {
+			@Override
+			public void fileCreated(Path fileCreated) {
+				if (recursive && Files.isDirectory(fileCreated, LinkOption.NOFOLLOW_LINKS)) {
 					try {
-						if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
-							register(child);
-						}
+						registerAll(fileCreated);
 					} catch (IOException e) {
-						LOGGER.log(Level.SEVERE, "Error registering dir "+child, e);
-					}
-				}
-				
-				// Send events to listeners
-				for (WatcherListener listener : listeners) {
-					if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-						listener.fileCreated(child);
-					} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-						listener.fileDeleted(child);
-					} else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-						listener.fileModified(child);
+						LOGGER.log(Level.SEVERE, "Error registering dir " + fileCreated, e);
 					}
 				}
-				
+				dispatcher.fileCreated(fileCreated);
 			}
-			
-			// Reset key and remove from watchlist if dir no longer accessible
-			boolean valid = key.reset();
-			if (!valid) {
-				keys.remove(key);
-				
-				// all directories are inaccessible
-				if (keys.isEmpty()) {
-					break;
-				}
+
+			@Override
+			public void fileDeleted(Path fileDeleted) {
+				dispatcher.fileDeleted(fileDeleted);
 			}
-			
+
+			@Override
+			public void fileModified(Path fileModified) {
+				dispatcher.fileModified(fileModified);
+			}
+		});
+		if (events > 0 || ! polling) {
+			LOGGER.info(String.format("Reconciled %s, %d differences", dir, events));
+		}
+		return events;
+	}
+
+	private void markEvent() {
+		if (pending.isEmpty()) {
+			batchStarted = System.currentTimeMillis();
+		}
+		lastEvent = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return time the pending batch is due, {@link Long#MAX_VALUE} if there is none
+	 */
+	long getBatchDue() {
+		if (pending.isEmpty()) return Long.MAX_VALUE;
+		return Math.min(lastEvent + batchWindow, batchStarted + MAX_BATCH_DELAY);
+	}
+
+	void flushBatch() {
+		if (pending.isEmpty()) return;
+		int events = pending.getEventCount();
+		ChangeSet changes = pending.build();
+		LOGGER.fine(String.format("Batch of %d events: %s", events, changes));
+		if (changes.isEmpty()) return;
+		for (BatchWatcherListener listener : batchListeners) {
+			listener.filesChanged(changes);
 		}
 	}
 
@@ -0,0 +1,616 @@
+package no.artorp.profilio.utility;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Disk usage of every profile below the profiles directory, kept up to date without
+ * walking everything again
+ * <p>
+ * The first scan walks the tree in parallel on a fork/join pool and remembers the
+ * direct file sizes of each directory together with its modified time. Later scans
+ * only list directories whose modified time changed, and {@link #update(ChangeSet)}
+ * lists only the directories a watcher saw changes in. Results are persisted with
+ * {@link #save()} so the next run starts from them.
+ * <p>
+ * Files with several hard links are counted once, in the first directory that links
+ * them. This needs a file system that reports link counts and file keys; elsewhere,
+ * such as on Windows, every link is counted.
+ * <p>
+ * Methods are synchronized, one scan or update runs at a time.
+ */
+public class DiskUsage {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	public static final String FILE_NAME = "disk_usage.json";
+
+	private static final int VERSION = 1;
+
+	private static final String UNIX_ATTRIBUTES = "unix:size,nlink,fileKey,isRegularFile,isDirectory";
+
+	private static final String[] NONE = new String[0];
+
+	private final Path root;
+	private final Path stateFile;
+	private final boolean unix;
+	private final ForkJoinPool pool;
+
+	private final Map<Path, Dir> dirs = new ConcurrentHashMap<>();
+	// Guarded by itself
+	private final Map<String, Link> links = new HashMap<>();
+
+	private final AtomicLong listed = new AtomicLong();
+	private long lastScan = 0;
+
+	/**
+	 * Files directly in one directory
+	 */
+	private static class Dir {
+		final long modified;
+		final long bytes;
+		final int files;
+		final String[] subdirs;
+		/** File keys of the hard linked files, counted in {@link Link} */
+		final String[] linked;
+
+		Dir(long modified, long bytes, int files, String[] subdirs, String[] linked) {
+			this.modified = modified;
+			this.bytes = bytes;
+			this.files = files;
+			this.subdirs = subdirs;
+			this.linked = linked;
+		}
+	}
+
+	/**
+	 * A file with several hard links, and the directories linking it
+	 */
+	private static class Link {
+		final long size;
+		final TreeMap<Path, Integer> dirs = new TreeMap<>();
+
+		Link(long size) {
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Sizes of one profile
+	 */
+	public static class Usage {
+		private final String name;
+		private long mods;
+		private long saves;
+		private long other;
+
+		Usage(String name) {
+			this.name = name;
+		}
+
+		void add(String folder, long bytes) {
+			if (SettingsIO.FOLDER_NAME_MODS.equals(folder)) {
+				mods += bytes;
+			} else if (SettingsIO.FOLDER_NAME_SAVES.equals(folder)) {
+				saves += bytes;
+			} else {
+				other += bytes;
+			}
+		}
+
+		/**
+		 * @return directory name of the profile, empty for files directly in the profiles directory
+		 */
+		public String getName() { return name; }
+		public long getMods() { return mods; }
+		public long getSaves() { return saves; }
+		public long getOther() { return other; }
+		public long getTotal() { return mods + saves + other; }
+	}
+
+	/**
+	 * Disk usage of all profiles at one point in time
+	 */
+	public static class Report {
+		private final Map<String, Usage> profiles;
+		private final long total;
+		private final int directories;
+		private final long scanned;
+
+		Report(Map<String, Usage> profiles, long total, int directories, long scanned) {
+			this.profiles = profiles;
+			this.total = total;
+			this.directories = directories;
+			this.scanned = scanned;
+		}
+
+		/**
+		 * @param name directory name of a profile
+		 * @return its usage, {@code null} if not found
+		 */
+		public Usage get(String name) {
+			return profiles.get(name);
+		}
+
+		/**
+		 * @return usage of all profiles, largest first
+		 */
+		public List<Usage> getProfiles() {
+			List<Usage> list = new ArrayList<>(profiles.values());
+			list.sort((a, b) -> Long.compare(b.getTotal(), a.getTotal()));
+			return list;
+		}
+
+		public long getTotal() { return total; }
+		public int getDirectories() { return directories; }
+
+		/**
+		 * @return when the tree was last scanned or updated, epoch milliseconds
+		 */
+		public long getScanned() { return scanned; }
+	}
+
+	/**
+	 * @param root      profiles directory
+	 * @param stateFile where results are persisted between runs
+	 */
+	public DiskUsage(Path root, Path stateFile) {
+		this.root = root.toAbsolutePath().normalize();
+		this.stateFile = stateFile;
+		this.unix = root.getFileSystem().supportedFileAttributeViews().contains("unix");
+		this.pool = new ForkJoinPool(Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors())));
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * Bring every directory up to date, listing only those changed since last seen
+	 * <p>
+	 * Without earlier results this walks the whole tree. A file rewritten in place
+	 * does not change the modified time of its directory, and is only noticed through
+	 * {@link #update(ChangeSet)}.
+	 */
+	public synchronized void scan() {
+		long start = System.nanoTime();
+		listed.set(0);
+		if (Files.isDirectory(root)) {
+			pool.invoke(new Scan(root, false, true));
+		} else {
+			removeTree(root);
+		}
+		lastScan = System.currentTimeMillis();
+		LOGGER.info(String.format("Disk usage of %s scanned in %.0f ms, %d of %d directories listed",
+				root, (System.nanoTime() - start) / 1e6, listed.get(), dirs.size()));
+	}
+
+	/**
+	 * List again the directories a batch of changes happened in
+	 *
+	 * @param changes changes below the root
+	 */
+	public synchronized void update(ChangeSet changes) {
+		Set<Path> changed = new LinkedHashSet<>();
+		for (Set<Path> paths : Arrays.asList(changes.getCreated(), changes.getDeleted(), changes.getModified())) {
+			for (Path path : paths) {
+				path = path.toAbsolutePath().normalize();
+				if (! path.startsWith(root)) continue;
+				if (dirs.containsKey(path)) {
+					changed.add(path); // A directory's own entries changed
+				}
+				// Closest directory we know, new directories are listed from there
+				Path parent = path.getParent();
+				while (parent != null && parent.startsWith(root) && ! dirs.containsKey(parent)) {
+					parent = parent.getParent();
+				}
+				if (parent != null && parent.startsWith(root)) {
+					changed.add(parent);
+				}
+			}
+		}
+		if (changed.isEmpty()) return;
+		listed.set(0);
+		List<Scan> scans = new ArrayList<>();
+		for (Path dir : changed) {
+			scans.add(new Scan(dir, true, false));
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(scans);
+			}
+		});
+		lastScan = System.currentTimeMillis();
+		LOGGER.fine(String.format("Disk usage updated, %d directories listed for %d changes", listed.get(), changes.size()));
+	}
+
+	/**
+	 * Visit one directory, and its subdirectories in parallel
+	 */
+	private class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final boolean forceList;
+		private final boolean recurse;
+
+		/**
+		 * @param forceList list the directory even if its modified time is unchanged
+		 * @param recurse   visit known subdirectories too, new ones are always visited
+		 */
+		Scan(Path dir, boolean forceList, boolean recurse) {
+			this.dir = dir;
+			this.forceList = forceList;
+			this.recurse = recurse;
+		}
+
+		@Override
+		protected void compute() {
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				removeTree(dir);
+				return;
+			}
+			if (! attrs.isDirectory()) {
+				removeTree(dir);
+				return;
+			}
+
+			Dir old = dirs.get(dir);
+			long modified = attrs.lastModifiedTime().toMillis();
+			List<Scan> next = new ArrayList<>();
+			if (old != null && ! forceList && old.modified == modified) {
+				if (recurse) {
+					for (String name : old.subdirs) {
+						next.add(new Scan(dir.resolve(name), false, true));
+					}
+				}
+			} else {
+				Dir listedDir;
+				try {
+					listedDir = list(dir, modified);
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "Could not list " + dir, e);
+					removeTree(dir);
+					return;
+				}
+				replace(dir, listedDir);
+				Set<String> known = new LinkedHashSet<>();
+				if (old != null) {
+					Collections.addAll(known, old.subdirs);
+				}
+				for (String name : listedDir.subdirs) {
+					if (! known.remove(name)) {
+						next.add(new Scan(dir.resolve(name), false, true));
+					} else if (recurse) {
+						next.add(new Scan(dir.resolve(name), false, true));
+					}
+				}
+				for (String gone : known) {
+					removeTree(dir.resolve(gone));
+				}
+			}
+			invokeAll(next);
+		}
+	}
+
+	private Dir list(Path dir, long modified) throws IOException {
+		long bytes = 0;
+		int files = 0;
+		List<String> subdirs = new ArrayList<>();
+		List<String> linked = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path child : stream) {
+				try {
+					if (unix) {
+						Map<String, Object> a = Files.readAttributes(child, UNIX_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+						if ((Boolean) a.get("isDirectory")) {
+							subdirs.add(child.getFileName().toString());
+						} else if ((Boolean) a.get("isRegularFile")) {
+							files++;
+							long size = (Long) a.get("size");
+							Object key = a.get("fileKey");
+							if ((Integer) a.get("nlink") > 1 && key != null) {
+								linked.add(key.toString());
+								link(key.toString(), size);
+							} else {
+								bytes += size;
+							}
+						}
+					} else {
+						BasicFileAttributes a = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						if (a.isDirectory()) {
+							subdirs.add(child.getFileName().toString());
+						} else if (a.isRegularFile()) {
+							files++;
+							bytes += a.size();
+						}
+					}
+				} catch (NoSuchFileException e) {
+					// Removed while listing
+				}
+			}
+		}
+		listed.incrementAndGet();
+		return new Dir(modified, bytes, files, subdirs.toArray(NONE), linked.toArray(NONE));
+	}
+
+	private void link(String key, long size) {
+		synchronized (links) {
+			if (! links.containsKey(key)) {
+				links.put(key, new Link(size));
+			}
+		}
+	}
+
+	/**
+	 * Store the listing of a directory, moving the hard links it counts
+	 */
+	private void replace(Path dir, Dir entry) {
+		synchronized (links) {
+			Dir old = dirs.put(dir, entry);
+			if (old != null) {
+				unlink(dir, old);
+			}
+			for (String key : entry.linked) {
+				Link link = links.get(key);
+				if (link != null) {
+					link.dirs.merge(dir, 1, Integer::sum);
+				}
+			}
+		}
+	}
+
+	private void unlink(Path dir, Dir old) {
+		for (String key : old.linked) {
+			Link link = links.get(key);
+			if (link == null) continue;
+			Integer count = link.dirs.get(dir);
+			if (count == null || count <= 1) {
+				link.dirs.remove(dir);
+			} else {
+				link.dirs.put(dir, count - 1);
+			}
+			if (link.dirs.isEmpty()) {
+				links.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Forget a directory and everything known below it
+	 */
+	private void removeTree(Path dir) {
+		Dir old;
+		synchronized (links) {
+			old = dirs.remove(dir);
+			if (old == null) return;
+			unlink(dir, old);
+		}
+		for (String name : old.subdirs) {
+			removeTree(dir.resolve(name));
+		}
+	}
+
+	/**
+	 * @return usage per profile as of the last scan or update
+	 */
+	public synchronized Report report() {
+		Map<String, Usage> profiles = new HashMap<>();
+		long total = 0;
+		for (Map.Entry<Path, Dir> entry : dirs.entrySet()) {
+			total += entry.getValue().bytes;
+			add(profiles, entry.getKey(), entry.getValue().bytes);
+		}
+		synchronized (links) {
+			for (Link link : links.values()) {
+				if (link.dirs.isEmpty()) continue;
+				total += link.size;
+				add(profiles, link.dirs.firstKey(), link.size);
+			}
+		}
+		return new Report(profiles, total, dirs.size(), lastScan);
+	}
+
+	private void add(Map<String, Usage> profiles, Path dir, long bytes) {
+		Path relative = root.relativize(dir);
+		String name = relative.getNameCount() == 0 || relative.toString().isEmpty() ? "" : relative.getName(0).toString();
+		String folder = relative.getNameCount() >= 2 ? relative.getName(1).toString() : null;
+		profiles.computeIfAbsent(name, Usage::new).add(folder, bytes);
+	}
+
+	/**
+	 * Read results of an earlier run, if they are of the same root
+	 *
+	 * @return {@code true} if earlier results were found
+	 */
+	public synchronized boolean load() {
+		if (! Files.isRegularFile(stateFile)) return false;
+		long start = System.nanoTime();
+		Map<String, Long> linkSizes = new HashMap<>();
+		Map<Path, Dir> loaded = new HashMap<>();
+		try (BufferedReader br = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8);
+				JsonReader reader = new JsonReader(br)) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+				case "version":
+					if (reader.nextInt() != VERSION) return false;
+					break;
+				case "root":
+					if (! Paths.get(reader.nextString()).equals(root)) return false;
+					break;
+				case "scanned":
+					lastScan = reader.nextLong();
+					break;
+				case "links":
+					reader.beginArray();
+					while (reader.hasNext()) {
+						reader.beginArray();
+						linkSizes.put(reader.nextString(), reader.nextLong());
+						reader.endArray();
+					}
+					reader.endArray();
+					break;
+				case "dirs":
+					reader.beginArray();
+					while (reader.hasNext()) {
+						readDir(reader, loaded);
+					}
+					reader.endArray();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch (IOException | JsonParseException | IllegalStateException | NumberFormatException e) {
+			LOGGER.log(Level.WARNING, "Ignoring unreadable disk usage " + stateFile, e);
+			return false;
+		}
+
+		dirs.clear();
+		synchronized (links) {
+			links.clear();
+			for (Map.Entry<String, Long> entry : linkSizes.entrySet()) {
+				links.put(entry.getKey(), new Link(entry.getValue()));
+			}
+			for (Map.Entry<Path, Dir> entry : loaded.entrySet()) {
+				replace(entry.getKey(), entry.getValue());
+			}
+		}
+		LOGGER.info(String.format("Loaded disk usage of %d directories in %.0f ms",
+				dirs.size(), (System.nanoTime() - start) / 1e6));
+		return true;
+	}
+
+	/**
+	 * A directory is written as an array: path relative to the root, modified time,
+	 * bytes, files, subdirectories, hard linked file keys
+	 */
+	private void readDir(JsonReader reader, Map<Path, Dir> loaded) throws IOException {
+		reader.beginArray();
+		Path dir = root.resolve(reader.nextString());
+		long modified = reader.nextLong();
+		long bytes = reader.nextLong();
+		int files = reader.nextInt();
+		String[] subdirs = readStrings(reader);
+		String[] linked = readStrings(reader);
+		reader.endArray();
+		loaded.put(dir, new Dir(modified, bytes, files, subdirs, linked));
+	}
+
+	private static String[] readStrings(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return NONE;
+		}
+		List<String> list = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			list.add(reader.nextString());
+		}
+		reader.endArray();
+		return list.toArray(NONE);
+	}
+
+	/**
+	 * Persist the results, replacing the file atomically
+	 *
+	 * @throws IOException if the file could not be written
+	 */
+	public synchronized void save() throws IOException {
+		Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			BufferedWriter bw = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.name()));
+			JsonWriter writer = new JsonWriter(bw);
+			writer.beginObject();
+			writer.name("version").value(VERSION);
+			writer.name("root").value(root.toString());
+			writer.name("scanned").value(lastScan);
+			writer.name("links").beginArray();
+			synchronized (links) {
+				for (Map.Entry<String, Link> entry : links.entrySet()) {
+					writer.beginArray().value(entry.getKey()).value(entry.getValue().size).endArray();
+				}
+			}
+			writer.endArray();
+			writer.name("dirs").beginArray();
+			for (Map.Entry<Path, Dir> entry : dirs.entrySet()) {
+				Dir d = entry.getValue();
+				writer.beginArray();
+				writer.value(root.relativize(entry.getKey()).toString());
+				writer.value(d.modified).value(d.bytes).value(d.files);
+				writer.beginArray();
+				for (String s : d.subdirs) writer.value(s);
+				writer.endArray();
+				if (d.linked.length == 0) {
+					writer.nullValue();
+				} else {
+					writer.beginArray();
+					for (String s : d.linked) writer.value(s);
+					writer.endArray();
+				}
+				writer.endArray();
+			}
+			writer.endArray();
+			writer.endObject();
+			writer.flush();
+			channel.force(true);
+		}
+		try {
+			Files.move(temp, stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Stop the walker threads
+	 */
+	public void close() {
+		pool.shutdown();
+	}
+
+}
@@ -0,0 +1,108 @@
+package no.artorp.profilio.utility;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Keeps watcher events caused by Profilio's own file operations away from listeners
+ * <p>
+ * An operation opens a {@link Token} covering the paths it touches, and closes it when
+ * done. While open, and for a short grace period after, {@link DirectoryWatcher} drops
+ * events for those paths and everything below them. Tokens that are never closed
+ * expire after {@link #MAX_LIFETIME}. Safe to use from any thread.
+ */
+public class EventSuppressor {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** Events may arrive a little after the operation finished */
+	public static final long GRACE_PERIOD = 1000;
+	/** Tokens not closed by then are dropped */
+	public static final long MAX_LIFETIME = 10 * 60 * 1000;
+
+	private static EventSuppressor instance;
+
+	private final CopyOnWriteArrayList<Token> tokens = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Suppression of a set of paths, close it when the operation is done
+	 */
+	public class Token implements AutoCloseable {
+		private final List<Path> paths;
+		private volatile long expires;
+
+		private Token(List<Path> paths) {
+			this.paths = Collections.unmodifiableList(paths);
+			this.expires = System.currentTimeMillis() + MAX_LIFETIME;
+		}
+
+		public List<Path> getPaths() {
+			return paths;
+		}
+
+		boolean covers(Path path) {
+			for (Path p : paths) {
+				if (path.startsWith(p)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Stop suppressing after the grace period
+		 */
+		@Override
+		public void close() {
+			expires = Math.min(expires, System.currentTimeMillis() + GRACE_PERIOD);
+		}
+	}
+
+	/**
+	 * @return the suppressor consulted by all watchers
+	 */
+	public static synchronized EventSuppressor get() {
+		if (instance == null) {
+			instance = new EventSuppressor();
+		}
+		return instance;
+	}
+
+	/**
+	 * Start suppressing events for some paths and their children
+	 *
+	 * @param paths paths the operation will touch, {@code null} elements are ignored
+	 * @return token to close when the operation is done
+	 */
+	public Token suppress(Path... paths) {
+		List<Path> list = new ArrayList<>(paths.length);
+		for (Path p : paths) {
+			if (p != null) {
+				list.add(p.toAbsolutePath().normalize());
+			}
+		}
+		Token token = new Token(list);
+		tokens.add(token);
+		LOGGER.fine("Suppressing events for " + list);
+		return token;
+	}
+
+	/**
+	 * @param path path of an event
+	 * @return {@code true} if an open or recently closed token covers the path
+	 */
+	public boolean isSuppressed(Path path) {
+		if (tokens.isEmpty()) return false;
+		long now = System.currentTimeMillis();
+		tokens.removeIf(t -> t.expires < now);
+		Path absolute = path.toAbsolutePath().normalize();
+		for (Token t : tokens) {
+			if (t.covers(absolute)) return true;
+		}
+		return false;
+	}
+
+}
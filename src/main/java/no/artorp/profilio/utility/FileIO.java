@@ -2,15 +2,22 @@ package no.artorp.profilio.utility;
 
 import java.awt.Desktop;
 import java.awt.Desktop.Action;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.invoke.MethodHandles;
 import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +36,8 @@ public class FileIO {
 	public static final int METHOD_JUNCTION = 2;
 	public static final int METHOD_SYMLINK = 3;
 	
+	private final DirectoryMover mover = new DirectoryMover(true);
+	
 	
 	public void createProfilesDir(Registry registry) {
 		File profileDir = registry.getFactorioProfilesPath().toFile();
@@ -119,13 +128,15 @@ public class FileIO {
 		
 		
 		if (performFileOperations) {
+			
+			long journalId = ActivationJournal.get().beginSetup(moveMethod, profilePath, factorioUserDataPath);
 
 			profilePath.toFile().mkdir();
 			
 			// No need to move files back and forth
 			if (moveMethod != METHOD_RENAME) {
-				Files.move(modsPath, newModsPath);
-				Files.move(savesPath, newSavesPath);
+				mover.move(modsPath, newModsPath);
+				mover.move(savesPath, newSavesPath);
 			}
 			
 			if (moveMethod == METHOD_JUNCTION) {
@@ -152,6 +163,7 @@ public class FileIO {
 				*/
 			}
 			
+			ActivationJournal.get().commit(journalId);
 		}
 		
 		return operationsReadable.toString();
@@ -236,6 +248,9 @@ public class FileIO {
 	
 	/**
 	 * Moves files from profile folder to user data folder
+	 * <p>
+	 * If the folders are on different file systems the files are copied and verified
+	 * before the originals are deleted, see {@link DirectoryMover}
 	 * 
 	 * @param profileDirectory
 	 * @param userDataFolder
@@ -243,8 +258,8 @@ public class FileIO {
 	 */
 	public void performProfileMove(Path profileDirectory, Path userDataFolder) throws IOException {
 		// Move the files
-		Files.move(profileDirectory.resolve(SettingsIO.FOLDER_NAME_MODS), userDataFolder.resolve(SettingsIO.FOLDER_NAME_MODS));
-		Files.move(profileDirectory.resolve(SettingsIO.FOLDER_NAME_SAVES), userDataFolder.resolve(SettingsIO.FOLDER_NAME_SAVES));
+		mover.move(profileDirectory.resolve(SettingsIO.FOLDER_NAME_MODS), userDataFolder.resolve(SettingsIO.FOLDER_NAME_MODS));
+		mover.move(profileDirectory.resolve(SettingsIO.FOLDER_NAME_SAVES), userDataFolder.resolve(SettingsIO.FOLDER_NAME_SAVES));
 	}
 	
 	/**
@@ -256,8 +271,8 @@ public class FileIO {
 	 */
 	public void revertProfileMove(Path userDataFolder, Path profileDirectory) throws IOException {
 		// Move the files
-		Files.move(userDataFolder.resolve(SettingsIO.FOLDER_NAME_MODS), profileDirectory.resolve(SettingsIO.FOLDER_NAME_MODS));
-		Files.move(userDataFolder.resolve(SettingsIO.FOLDER_NAME_SAVES), profileDirectory.resolve(SettingsIO.FOLDER_NAME_SAVES));
+		mover.move(userDataFolder.resolve(SettingsIO.FOLDER_NAME_MODS), profileDirectory.resolve(SettingsIO.FOLDER_NAME_MODS));
+		mover.move(userDataFolder.resolve(SettingsIO.FOLDER_NAME_SAVES), profileDirectory.resolve(SettingsIO.FOLDER_NAME_SAVES));
 	}
 	
 	/**
@@ -378,6 +393,152 @@ public class FileIO {
 		}
 	}
 	
+	/**
+	 * Check that the "mods" and "saves" folders in user data are as Profilio left them
+	 * for the active profile
+	 * 
+	 * @param moveMethod       move method in use
+	 * @param factorioUserData user data folder of the active profile
+	 * @param profilePath      directory of the active profile
+	 * @return a description of each folder that was changed by someone else, empty if none
+	 */
+	public static List<String> checkProfileFolders(Integer moveMethod, Path factorioUserData, Path profilePath) {
+		List<String> problems = new ArrayList<>();
+		if (moveMethod == null || factorioUserData == null || profilePath == null) return problems;
+		for (String name : new String[] {SettingsIO.FOLDER_NAME_MODS, SettingsIO.FOLDER_NAME_SAVES}) {
+			Path inData = factorioUserData.resolve(name);
+			if (! Files.exists(inData, LinkOption.NOFOLLOW_LINKS)) {
+				problems.add(inData + " is missing");
+				continue;
+			}
+			boolean isLink;
+			try {
+				// Compare against the resolved parent, links higher up are fine
+				isLink = Files.isSymbolicLink(inData) || ! inData.toRealPath().equals(
+						factorioUserData.toRealPath().resolve(name));
+			} catch (IOException e) {
+				isLink = true; // Dangling junction
+			}
+			if (moveMethod.intValue() == METHOD_RENAME) {
+				if (isLink) {
+					problems.add(inData + " is a link, expected the folder of the active profile");
+				}
+			} else if (! isLink) {
+				problems.add(inData + " is no longer a link to the active profile");
+			} else {
+				try {
+					if (! inData.toRealPath().equals(profilePath.resolve(name).toRealPath())) {
+						problems.add(inData + " links to " + inData.toRealPath() + ", not the active profile");
+					}
+				} catch (IOException e) {
+					problems.add(inData + " links to a folder that does not exist");
+				}
+			}
+		}
+		return problems;
+	}
+	
+	/**
+	 * Create a copy of a profile
+	 * <p>
+	 * Each folder is first cloned with copy-on-write reflinks where the file system
+	 * supports them. Otherwise mod zips, which are never changed in place, are hard
+	 * linked, and the remaining files are copied in parallel.
+	 * 
+	 * @param profileDirectory the profile to clone
+	 * @param foldersDirectory where the profile's "mods" and "saves" currently are, differs
+	 *                         from profileDirectory for an active profile moved by rename
+	 * @param target           directory of the new profile, must not exist
+	 * @throws IOException
+	 */
+	public void cloneProfile(Path profileDirectory, Path foldersDirectory, Path target) throws IOException {
+		if (target.toFile().exists()) {
+			throw new FileAlreadyExistsException(target.toString());
+		}
+		try {
+			cloneTree(profileDirectory, target);
+			if (! foldersDirectory.equals(profileDirectory)) {
+				cloneTree(foldersDirectory.resolve(SettingsIO.FOLDER_NAME_MODS),
+						target.resolve(SettingsIO.FOLDER_NAME_MODS));
+				cloneTree(foldersDirectory.resolve(SettingsIO.FOLDER_NAME_SAVES),
+						target.resolve(SettingsIO.FOLDER_NAME_SAVES));
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Clone failed, removing partial copy " + target, e);
+			try {
+				DirectoryMover.deleteTree(target);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
+	}
+	
+	private void cloneTree(Path source, Path target) throws IOException {
+		long start = System.nanoTime();
+		if (reflinkCopy(source, target)) {
+			LOGGER.info(String.format("Reflinked %s in %.1f ms", source, (System.nanoTime() - start) / 1e6));
+			return;
+		}
+		long bytes = mover.copyTree(source, target, FileIO::isModZip);
+		LOGGER.info(String.format("Cloned %s in %.1f ms, %d MB copied",
+				source, (System.nanoTime() - start) / 1e6, bytes >> 20));
+	}
+	
+	private static boolean isModZip(Path file) {
+		Path parent = file.getParent();
+		return parent != null
+				&& parent.getFileName() != null
+				&& parent.getFileName().toString().equals(SettingsIO.FOLDER_NAME_MODS)
+				&& file.getFileName().toString().toLowerCase().endsWith(".zip");
+	}
+	
+	/**
+	 * Copy a directory tree with copy-on-write clones using the system {@code cp},
+	 * supported on Linux (btrfs, xfs, ...) and macOS (APFS)
+	 * 
+	 * @return {@code true} if the tree was cloned, {@code false} if reflinks are not
+	 *         supported, in which case nothing is left at target
+	 * @throws IOException
+	 */
+	private boolean reflinkCopy(Path source, Path target) throws IOException {
+		List<String> commands;
+		if (FileLocations.isLinuxUnix()) {
+			commands = Arrays.asList("cp", "-a", "--reflink=always", source.toString(), target.toString());
+		} else if (FileLocations.isMac()) {
+			commands = Arrays.asList("cp", "-c", "-R", "-p", source.toString(), target.toString());
+		} else {
+			return false;
+		}
+		
+		int exitCode;
+		try {
+			Process process = new ProcessBuilder(commands)
+					.redirectErrorStream(true)
+					.start();
+			try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = output.readLine()) != null) {
+					LOGGER.finer(line);
+				}
+			}
+			exitCode = process.waitFor();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not run cp", e);
+			exitCode = -1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while cloning " + source, e);
+		}
+		
+		if (exitCode != 0) {
+			LOGGER.fine("Reflinks not supported for " + source);
+			DirectoryMover.deleteTree(target);
+			return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * Browse uri if Desktop supported
 	 * 
@@ -0,0 +1,86 @@
+package no.artorp.profilio.utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The mods of one mods folder, with the enabled flags of its mod-list.json
+ */
+public class InstalledMods {
+
+	private final List<ModInfo> mods;
+	private final Map<String, Boolean> enabled;
+
+	public InstalledMods(List<ModInfo> mods, Map<String, Boolean> enabled) {
+		this.mods = Collections.unmodifiableList(new ArrayList<>(mods));
+		this.enabled = Collections.unmodifiableMap(new HashMap<>(enabled));
+	}
+
+	/**
+	 * @return all mods in the folder, enabled or not
+	 */
+	public List<ModInfo> getMods() {
+		return mods;
+	}
+
+	/**
+	 * @param name mod name
+	 * @return {@code true} if enabled in mod-list.json, mods missing from the list are
+	 *         enabled, as Factorio enables new mods it finds
+	 */
+	public boolean isEnabled(String name) {
+		Boolean value = enabled.get(name);
+		return value == null || value.booleanValue();
+	}
+
+	/**
+	 * @return enabled mods, only the newest version if several versions are installed
+	 */
+	public Map<String, ModInfo> getEnabledMods() {
+		Map<String, ModInfo> result = new HashMap<>();
+		for (ModInfo mod : mods) {
+			if (mod.getName() == null || ! isEnabled(mod.getName())) continue;
+			ModInfo other = result.get(mod.getName());
+			if (other == null || compareVersions(mod.getVersion(), other.getVersion()) > 0) {
+				result.put(mod.getName(), mod);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the enabled flags of mod-list.json, including mods that are not installed
+	 */
+	public Map<String, Boolean> getModList() {
+		return enabled;
+	}
+
+	/**
+	 * Compare dotted version strings numerically, missing parts count as 0
+	 *
+	 * @return negative, zero or positive like {@link Comparable#compareTo(Object)}
+	 */
+	public static int compareVersions(String a, String b) {
+		if (a == null || b == null) return a == null ? (b == null ? 0 : -1) : 1;
+		String[] pa = a.trim().split("\\.");
+		String[] pb = b.trim().split("\\.");
+		for (int i = 0; i < Math.max(pa.length, pb.length); i++) {
+			int va = i < pa.length ? parsePart(pa[i]) : 0;
+			int vb = i < pb.length ? parsePart(pb[i]) : 0;
+			if (va != vb) return Integer.compare(va, vb);
+		}
+		return 0;
+	}
+
+	private static int parsePart(String part) {
+		try {
+			return Integer.parseInt(part.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package no.artorp.profilio.utility;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Releases memory-mapped buffers
+ * <p>
+ * A mapping otherwise lives until the buffer is garbage collected, and on Windows
+ * the file can not be moved, replaced or deleted until then.
+ */
+public class MappedBuffers {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	private static final Consumer<ByteBuffer> UNMAPPER = findUnmapper();
+
+	private MappedBuffers() {
+	}
+
+	/**
+	 * Unmap a buffer now, if the JVM allows it. The buffer, and any buffer sliced
+	 * from it, must not be used after this
+	 *
+	 * @param buffer mapped buffer to release
+	 */
+	public static void unmap(MappedByteBuffer buffer) {
+		if (buffer != null && UNMAPPER != null) {
+			UNMAPPER.accept(buffer);
+		}
+	}
+
+	/**
+	 * There is no public way to unmap a buffer before it is garbage collected, use
+	 * the one of the running JVM if it can be reached
+	 */
+	private static Consumer<ByteBuffer> findUnmapper() {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Object unsafe = theUnsafe.get(null);
+			return buffer -> {
+				try {
+					invokeCleaner.invoke(unsafe, buffer);
+				} catch (ReflectiveOperationException e) {
+					LOGGER.log(Level.FINE, "Could not unmap buffer", e);
+				}
+			};
+		} catch (NoSuchMethodException e) {
+			// Java 8
+			try {
+				Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+				Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+				return buffer -> {
+					try {
+						clean.invoke(cleaner.invoke(buffer));
+					} catch (ReflectiveOperationException e2) {
+						LOGGER.log(Level.FINE, "Could not unmap buffer", e2);
+					}
+				};
+			} catch (ReflectiveOperationException e2) {
+				LOGGER.log(Level.FINE, "Buffers are unmapped when garbage collected", e2);
+				return null;
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "Buffers are unmapped when garbage collected", e);
+			return null;
+		}
+	}
+
+}
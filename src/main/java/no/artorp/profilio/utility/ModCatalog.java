@@ -0,0 +1,312 @@
+package no.artorp.profilio.utility;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import no.artorp.profilio.json_models.ModCatalogEntryJson;
+import no.artorp.profilio.json_models.ModCatalogJson;
+import no.artorp.profilio.json_models.ModInfoJson;
+import no.artorp.profilio.json_models.ModListJson;
+
+/**
+ * Catalog of installed mods
+ * <p>
+ * Reads {@code info.json} from mod zips through the zip central directory, and from
+ * unpacked mod directories. Results are cached by path, size and last modified time in
+ * the config directory, so rescanning a mods folder only opens mods that changed.
+ * Entries of mods folders that no longer exist, such as those of deleted or renamed
+ * profiles, are dropped when the cache is saved.
+ */
+public class ModCatalog {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	public static final String FILE_NAME = "mod_catalog.json";
+	public static final String MOD_LIST = "mod-list.json";
+	private static final String INFO_JSON = "info.json";
+	private static final int INFO_JSON_LIMIT = 1024 * 1024;
+
+	private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(POOL_SIZE,
+			new java.util.concurrent.ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "mod-catalog-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static ModCatalog instance;
+
+	private final File cacheFile;
+	private final Gson gson = new Gson();
+	private final Map<Path, ModInfo> mods = new ConcurrentHashMap<>();
+	private boolean loaded = false;
+	private int lastRead = 0;
+
+	public ModCatalog(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * @return the shared catalog, its cache is kept in the config directory
+	 */
+	public static synchronized ModCatalog get() {
+		if (instance == null) {
+			instance = new ModCatalog(FileLocations.getConfigDirectory().resolve(FILE_NAME).toFile());
+		}
+		return instance;
+	}
+
+	/**
+	 * Catalog a mods folder, reading only mods that changed since last time
+	 *
+	 * @param modsFolder a profile's "mods" folder
+	 * @return the mods and their enabled flags
+	 * @throws IOException if the folder could not be listed
+	 */
+	public InstalledMods scan(Path modsFolder) throws IOException {
+		long start = System.nanoTime();
+		ensureLoaded();
+
+		List<ModInfo> result = new ArrayList<>();
+		List<Future<ModInfo>> pending = new ArrayList<>();
+		Set<Path> present = new HashSet<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(modsFolder)) {
+			for (Path child : stream) {
+				BasicFileAttributes attrs;
+				Path keyFile;
+				try {
+					if (Files.isDirectory(child)) {
+						keyFile = child.resolve(INFO_JSON);
+						if (! Files.exists(keyFile)) continue;
+					} else if (child.getFileName().toString().toLowerCase().endsWith(".zip")) {
+						keyFile = child;
+					} else {
+						continue;
+					}
+					attrs = Files.readAttributes(keyFile, BasicFileAttributes.class);
+				} catch (NoSuchFileException e) {
+					continue; // Deleted while listing
+				}
+				present.add(child);
+
+				boolean directory = keyFile != child;
+				long size = directory ? -1 : attrs.size();
+				long modified = attrs.lastModifiedTime().toMillis();
+				ModInfo cached = mods.get(child);
+				if (cached != null && cached.isCurrent(size, modified)) {
+					result.add(cached);
+				} else {
+					pending.add(POOL.submit(() -> readMod(child, directory, size, modified)));
+				}
+			}
+		}
+
+		for (Future<ModInfo> f : pending) {
+			try {
+				ModInfo info = f.get();
+				mods.put(info.getPath(), info);
+				result.add(info);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading mods in " + modsFolder, e);
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Could not read mod info", e.getCause());
+			}
+		}
+
+		boolean removed = mods.keySet().removeIf(p -> modsFolder.equals(p.getParent()) && ! present.contains(p));
+		if (removed || ! pending.isEmpty()) {
+			POOL.execute(this::save);
+		}
+
+		lastRead = pending.size();
+		LOGGER.fine(String.format("Catalogued %s: %d mods, %d read, %.1f ms",
+				modsFolder, result.size(), pending.size(), (System.nanoTime() - start) / 1e6));
+		return new InstalledMods(result, readModList(modsFolder));
+	}
+
+	/**
+	 * @return number of mods read from disk by the last {@link #scan(Path)}, the rest came from the cache
+	 */
+	public int getLastRead() {
+		return lastRead;
+	}
+
+	private ModInfo readMod(Path mod, boolean directory, long size, long modified) throws IOException {
+		ModInfoJson json;
+		if (directory) {
+			try (Reader r = Files.newBufferedReader(mod.resolve(INFO_JSON), StandardCharsets.UTF_8)) {
+				json = gson.fromJson(r, ModInfoJson.class);
+			}
+		} else {
+			json = readZipInfo(mod);
+		}
+		if (json == null) {
+			throw new IOException("No info.json in " + mod);
+		}
+		return new ModInfo(mod, size, modified, json.name, json.version, json.title,
+				json.factorioVersion, json.dependencies);
+	}
+
+	/**
+	 * Read info.json from the top folder of a mod zip, without touching other entries
+	 */
+	private ModInfoJson readZipInfo(Path zipPath) throws IOException {
+		try (ZipCentralDirectory zip = ZipCentralDirectory.open(zipPath)) {
+			int entry = zip.findBaseName(INFO_JSON, 1);
+			if (entry < 0) return null;
+			if (zip.getSize(entry) > INFO_JSON_LIMIT) {
+				throw new IOException("info.json larger than " + INFO_JSON_LIMIT + " bytes in " + zipPath);
+			}
+			ByteBuffer bytes = zip.read(entry, INFO_JSON_LIMIT);
+			try (Reader r = new InputStreamReader(new ByteArrayInputStream(
+					bytes.array(), bytes.arrayOffset(), bytes.remaining()), StandardCharsets.UTF_8)) {
+				return gson.fromJson(r, ModInfoJson.class);
+			} catch (JsonParseException e) {
+				throw new IOException("Invalid info.json in " + zipPath, e);
+			}
+		}
+	}
+
+	/**
+	 * @param modsFolder a mods folder
+	 * @return enabled flag of each mod in mod-list.json, empty if there is none
+	 */
+	public Map<String, Boolean> readModList(Path modsFolder) {
+		Map<String, Boolean> enabled = new HashMap<>();
+		Path modList = modsFolder.resolve(MOD_LIST);
+		if (! Files.exists(modList)) return enabled;
+		try (Reader r = Files.newBufferedReader(modList, StandardCharsets.UTF_8)) {
+			ModListJson json = gson.fromJson(r, ModListJson.class);
+			if (json != null && json.mods != null) {
+				for (ModListJson.Entry e : json.mods) {
+					if (e.name != null) {
+						enabled.put(e.name, e.enabled);
+					}
+				}
+			}
+		} catch (IOException | JsonParseException e) {
+			LOGGER.log(Level.WARNING, "Could not read " + modList, e);
+		}
+		return enabled;
+	}
+
+	private synchronized void ensureLoaded() {
+		if (loaded) return;
+		loaded = true;
+		if (! cacheFile.exists()) return;
+
+		ModCatalogJson json;
+		try (Reader r = new BufferedReader(
+				new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8))) {
+			json = gson.fromJson(r, ModCatalogJson.class);
+		} catch (IOException | JsonParseException e) {
+			LOGGER.log(Level.WARNING, "Could not read mod catalog, ignoring it", e);
+			return;
+		}
+		if (json == null) return;
+
+		for (ModCatalogEntryJson m : json.mods) {
+			Path path = Paths.get(m.path);
+			mods.put(path, new ModInfo(path, m.size, m.lastModified, m.name, m.version, m.title,
+					m.factorioVersion, m.dependencies));
+		}
+	}
+
+	/**
+	 * Drop entries of mods folders that no longer exist, each folder is checked once
+	 */
+	private void pruneMissingFolders() {
+		Map<Path, Boolean> folderExists = new HashMap<>();
+		int before = mods.size();
+		mods.keySet().removeIf(p -> ! folderExists.computeIfAbsent(p.getParent(), Files::isDirectory));
+		if (mods.size() < before) {
+			LOGGER.fine(String.format("Dropped %d mods of missing folders from the catalog", before - mods.size()));
+		}
+	}
+
+	/**
+	 * Write the catalog to disk, replacing the cache file atomically
+	 */
+	public synchronized void save() {
+		pruneMissingFolders();
+		ModCatalogJson json = new ModCatalogJson();
+		for (ModInfo info : mods.values()) {
+			ModCatalogEntryJson m = new ModCatalogEntryJson();
+			m.path = info.getPath().toString();
+			m.size = info.getSize();
+			m.lastModified = info.getLastModified();
+			m.name = info.getName();
+			m.version = info.getVersion();
+			m.title = info.getTitle();
+			m.factorioVersion = info.getFactorioVersion();
+			m.dependencies.addAll(info.getDependencies());
+			json.mods.add(m);
+		}
+		Path target = cacheFile.toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				// Not closed here, that would close the channel before it is forced
+				Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+				gson.toJson(json, writer);
+				writer.flush();
+				channel.force(true);
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not write mod catalog " + cacheFile, e);
+		}
+	}
+
+}
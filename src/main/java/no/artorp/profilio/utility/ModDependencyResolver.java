@@ -0,0 +1,362 @@
+package no.artorp.profilio.utility;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import no.artorp.profilio.json_models.ModInfoJson;
+
+/**
+ * Checks the enabled mods of a mods folder against each other and the game version
+ * <p>
+ * Reports what Factorio would refuse to load: missing or disabled required
+ * dependencies, dependency versions out of range, incompatible mods, circular
+ * dependencies and mods made for another game version.
+ */
+public class ModDependencyResolver {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	private static final Pattern DEPENDENCY = Pattern.compile(
+			"^\\s*(!|\\?|\\(\\?\\)|~)?\\s*(.+?)\\s*(?:(<=|>=|<|>|=)\\s*(\\d+(?:\\.\\d+)*))?\\s*$");
+
+	private static final String BASE = "base";
+
+	private final Map<Path, GameInfo> gameInfoCache = new ConcurrentHashMap<>();
+	private final Gson gson = new Gson();
+
+	public enum DependencyType {
+		REQUIRED, OPTIONAL, HIDDEN_OPTIONAL, INCOMPATIBLE,
+		/** Required, but does not affect load order */
+		UNORDERED
+	}
+
+	/**
+	 * A parsed entry of the dependencies in info.json
+	 */
+	public static class Dependency {
+		private final DependencyType type;
+		private final String name;
+		private final String operator;
+		private final String version;
+
+		private Dependency(DependencyType type, String name, String operator, String version) {
+			this.type = type;
+			this.name = name;
+			this.operator = operator;
+			this.version = version;
+		}
+
+		/**
+		 * @param text a dependency string, ie "? bobplates >= 0.17.0"
+		 * @return the dependency, {@code null} if it could not be parsed
+		 */
+		public static Dependency parse(String text) {
+			if (text == null) return null;
+			Matcher m = DEPENDENCY.matcher(text);
+			if (! m.matches()) return null;
+			String prefix = m.group(1);
+			DependencyType type = DependencyType.REQUIRED;
+			if ("!".equals(prefix)) {
+				type = DependencyType.INCOMPATIBLE;
+			} else if ("?".equals(prefix)) {
+				type = DependencyType.OPTIONAL;
+			} else if ("(?)".equals(prefix)) {
+				type = DependencyType.HIDDEN_OPTIONAL;
+			} else if ("~".equals(prefix)) {
+				type = DependencyType.UNORDERED;
+			}
+			return new Dependency(type, m.group(2), m.group(3), m.group(4));
+		}
+
+		public DependencyType getType() {
+			return type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isRequired() {
+			return type == DependencyType.REQUIRED || type == DependencyType.UNORDERED;
+		}
+
+		/**
+		 * @param candidate version of the installed dependency
+		 * @return {@code true} if the version is in range, or there is no range
+		 */
+		public boolean accepts(String candidate) {
+			if (operator == null) return true;
+			int c = InstalledMods.compareVersions(candidate, version);
+			switch (operator) {
+			case "<": return c < 0;
+			case "<=": return c <= 0;
+			case "=": return c == 0;
+			case ">=": return c >= 0;
+			case ">": return c > 0;
+			default: return true;
+			}
+		}
+
+		/**
+		 * @return the version range, ie ">= 0.17.0", empty if none
+		 */
+		public String getRange() {
+			return operator == null ? "" : operator + " " + version;
+		}
+	}
+
+	/**
+	 * Something that would stop or likely break the game
+	 */
+	public static class Problem {
+		private final String mod;
+		private final String message;
+
+		Problem(String mod, String message) {
+			this.mod = mod;
+			this.message = message;
+		}
+
+		public String getMod() {
+			return mod;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return mod + ": " + message;
+		}
+	}
+
+	/**
+	 * Version of an installation and the mods shipped with it
+	 */
+	public static class GameInfo {
+		private final String version;
+		private final long lastModified;
+		private final Map<String, String> builtinMods;
+
+		GameInfo(String version, long lastModified, Map<String, String> builtinMods) {
+			this.version = version;
+			this.lastModified = lastModified;
+			this.builtinMods = Collections.unmodifiableMap(builtinMods);
+		}
+
+		/**
+		 * @return game version, ie "1.1.87", {@code null} if unknown
+		 */
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return name and version of the mods in the data folder, base included
+		 */
+		public Map<String, String> getBuiltinMods() {
+			return builtinMods;
+		}
+	}
+
+	/**
+	 * Check the enabled mods
+	 *
+	 * @param mods installed mods of the profile
+	 * @param game the installation to launch, see {@link #readGameInfo(Path)}
+	 * @return problems found, empty if the mods should load
+	 */
+	public List<Problem> check(InstalledMods mods, GameInfo game) {
+		long start = System.nanoTime();
+		List<Problem> problems = new ArrayList<>();
+
+		// Name to version of everything that will be loaded
+		Map<String, String> loaded = new HashMap<>();
+		for (Map.Entry<String, String> builtin : game.getBuiltinMods().entrySet()) {
+			if (builtin.getKey().equals(BASE) || mods.getModList().getOrDefault(builtin.getKey(), false)) {
+				loaded.put(builtin.getKey(), builtin.getValue());
+			}
+		}
+		Map<String, ModInfo> enabled = mods.getEnabledMods();
+		for (ModInfo mod : enabled.values()) {
+			loaded.put(mod.getName(), mod.getVersion());
+		}
+
+		Map<String, List<String>> loadOrderEdges = new HashMap<>();
+		for (ModInfo mod : enabled.values()) {
+			String name = mod.getName();
+			checkGameVersion(mod, game.getVersion(), problems);
+
+			List<String> edges = new ArrayList<>();
+			for (String text : mod.getDependencies()) {
+				Dependency dep = Dependency.parse(text);
+				if (dep == null) {
+					problems.add(new Problem(name, "Can not parse dependency \"" + text + "\""));
+					continue;
+				}
+				String installed = loaded.get(dep.getName());
+				if (dep.getType() == DependencyType.INCOMPATIBLE) {
+					if (installed != null) {
+						problems.add(new Problem(name, "Incompatible with " + dep.getName()));
+					}
+					continue;
+				}
+				if (installed == null) {
+					if (dep.isRequired()) {
+						problems.add(new Problem(name, String.format("Requires %s, which is %s",
+								(dep.getName() + " " + dep.getRange()).trim(),
+								isInstalled(mods, dep.getName()) ? "disabled" : "not installed")));
+					}
+					continue;
+				}
+				if (! dep.accepts(installed)) {
+					problems.add(new Problem(name, String.format("Requires %s %s, found %s",
+							dep.getName(), dep.getRange(), installed)));
+				}
+				if (dep.getType() != DependencyType.UNORDERED) {
+					edges.add(dep.getName());
+				}
+			}
+			loadOrderEdges.put(name, edges);
+		}
+
+		findCycles(loadOrderEdges, problems);
+
+		LOGGER.fine(String.format("Checked %d mods in %.2f ms, %d problems",
+				enabled.size(), (System.nanoTime() - start) / 1e6, problems.size()));
+		return problems;
+	}
+
+	private static boolean isInstalled(InstalledMods mods, String name) {
+		for (ModInfo mod : mods.getMods()) {
+			if (name.equals(mod.getName())) return true;
+		}
+		return false;
+	}
+
+	private static void checkGameVersion(ModInfo mod, String gameVersion, List<Problem> problems) {
+		if (gameVersion == null || mod.getFactorioVersion() == null) return;
+		String[] game = gameVersion.split("\\.");
+		String[] wanted = mod.getFactorioVersion().trim().split("\\.");
+		if (game.length < 2 || wanted.length < 2) return;
+		String gameMajorMinor = game[0] + "." + game[1];
+		String wantedMajorMinor = wanted[0] + "." + wanted[1];
+		// Factorio 1.0 also loads mods made for 0.18
+		if (gameMajorMinor.equals(wantedMajorMinor)
+				|| (gameMajorMinor.equals("1.0") && wantedMajorMinor.equals("0.18"))) {
+			return;
+		}
+		problems.add(new Problem(mod.getName(), String.format("Made for Factorio %s, game is %s",
+				mod.getFactorioVersion(), gameVersion)));
+	}
+
+	/**
+	 * Report dependency cycles, which Factorio can not order
+	 */
+	private static void findCycles(Map<String, List<String>> edges, List<Problem> problems) {
+		Set<String> done = new HashSet<>();
+		Set<String> onPath = new HashSet<>();
+		for (String mod : edges.keySet()) {
+			List<String> path = new ArrayList<>();
+			visit(mod, edges, done, onPath, path, problems);
+		}
+	}
+
+	private static void visit(String mod, Map<String, List<String>> edges, Set<String> done,
+			Set<String> onPath, List<String> path, List<Problem> problems) {
+		if (done.contains(mod)) return;
+		if (onPath.contains(mod)) {
+			List<String> cycle = new ArrayList<>(path.subList(path.indexOf(mod), path.size()));
+			cycle.add(mod);
+			problems.add(new Problem(mod, "Circular dependency " + String.join(" -> ", cycle)));
+			return;
+		}
+		onPath.add(mod);
+		path.add(mod);
+		for (String dep : edges.getOrDefault(mod, Collections.<String>emptyList())) {
+			visit(dep, edges, done, onPath, path, problems);
+		}
+		path.remove(path.size() - 1);
+		onPath.remove(mod);
+		done.add(mod);
+	}
+
+	/**
+	 * Read the game version and the bundled mods of an installation, cached until
+	 * base/info.json changes
+	 *
+	 * @param executable path of the Factorio executable
+	 * @return game info, with a {@code null} version if the data folder was not found
+	 */
+	public GameInfo readGameInfo(Path executable) {
+		Path data = findDataFolder(executable);
+		if (data == null) {
+			return new GameInfo(null, 0, Collections.<String, String>emptyMap());
+		}
+		Path baseInfo = data.resolve(BASE).resolve("info.json");
+		long modified;
+		try {
+			modified = Files.getLastModifiedTime(baseInfo).toMillis();
+		} catch (IOException e) {
+			return new GameInfo(null, 0, Collections.<String, String>emptyMap());
+		}
+		GameInfo cached = gameInfoCache.get(executable);
+		if (cached != null && cached.lastModified == modified) return cached;
+
+		Map<String, String> builtin = new HashMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(data)) {
+			for (Path child : stream) {
+				Path info = child.resolve("info.json");
+				if (! Files.isRegularFile(info)) continue;
+				try (Reader r = Files.newBufferedReader(info, StandardCharsets.UTF_8)) {
+					ModInfoJson json = gson.fromJson(r, ModInfoJson.class);
+					if (json != null && json.name != null) {
+						builtin.put(json.name, json.version);
+					}
+				} catch (IOException | JsonParseException e) {
+					LOGGER.log(Level.FINE, "Could not read " + info, e);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not list " + data, e);
+		}
+		GameInfo info = new GameInfo(builtin.get(BASE), modified, builtin);
+		gameInfoCache.put(executable, info);
+		return info;
+	}
+
+	/**
+	 * The executable is in bin/&lt;platform&gt;, or Contents/MacOS on macOS, look upwards for data/base
+	 */
+	private static Path findDataFolder(Path executable) {
+		Path dir = executable.toAbsolutePath().getParent();
+		for (int i = 0; i < 4 && dir != null; i++) {
+			Path data = dir.resolve("data");
+			if (Files.isDirectory(data.resolve(BASE))) return data;
+			dir = dir.getParent();
+		}
+		return null;
+	}
+
+}
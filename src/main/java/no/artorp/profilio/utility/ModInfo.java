@@ -0,0 +1,94 @@
+package no.artorp.profilio.utility;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable metadata of a single installed mod
+ * <p>
+ * Produced by {@link ModCatalog} from the mod's info.json
+ */
+public class ModInfo {
+
+	private final Path path;
+	private final long size;
+	private final long lastModified;
+	private final String name;
+	private final String version;
+	private final String title;
+	private final String factorioVersion;
+	private final List<String> dependencies;
+
+	public ModInfo(Path path, long size, long lastModified, String name, String version, String title,
+			String factorioVersion, List<String> dependencies) {
+		this.path = path;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.name = name;
+		this.version = version;
+		this.title = title;
+		this.factorioVersion = factorioVersion;
+		this.dependencies = dependencies == null
+				? Collections.<String>emptyList()
+				: Collections.unmodifiableList(new ArrayList<>(dependencies));
+	}
+
+	/**
+	 * @return the mod zip, or the mod directory for unpacked mods
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return size of the zip, -1 for unpacked mods
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return last modified time of the zip, or of info.json for unpacked mods
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return the Factorio version the mod is made for, ie "1.1"
+	 */
+	public String getFactorioVersion() {
+		return factorioVersion;
+	}
+
+	/**
+	 * @return dependencies as written in info.json, ie "? bobplates >= 0.17.0"
+	 */
+	public List<String> getDependencies() {
+		return dependencies;
+	}
+
+	public boolean isCurrent(long size, long lastModified) {
+		return this.size == size && this.lastModified == lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return name + " " + version;
+	}
+
+}
@@ -0,0 +1,502 @@
+package no.artorp.profilio.utility;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import no.artorp.profilio.json_models.ModStoreBlobJson;
+import no.artorp.profilio.json_models.ModStoreIndexJson;
+
+/**
+ * Content addressed store of mod zips shared between profiles
+ * <p>
+ * The store is a hidden folder inside the profiles directory, holding one blob per
+ * distinct mod zip named by its SHA-256. {@link #deduplicate()} replaces identical
+ * {@code mods/*.zip} files in every profile with hard links to the blob, or symbolic
+ * links when profiles are activated by symlink. Which files reference each blob is
+ * found again on every run, by following symbolic links into the store and by comparing
+ * file keys, so profiles renamed or moved since the last run keep their blobs. Where
+ * the file system has no file keys, such as NTFS, files of a blob's size are compared
+ * with {@link Files#isSameFile}, which uses the file ids. A blob is only removed when
+ * a full scan finds nothing linking to it.
+ */
+public class ModStore {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	public static final String STORE_DIR_NAME = ".profilio-store";
+	private static final String INDEX_FILE_NAME = "index.json";
+	private static final String TEMP_SUFFIX = ".profilio-tmp";
+	private static final int HASH_BUFFER = 1024 * 1024;
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(
+			Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())), r -> {
+				Thread t = new Thread(r, "mod-store");
+				t.setDaemon(true);
+				return t;
+			});
+
+	private final Path profilesPath;
+	private final Path storePath;
+	private final boolean useSymlinks;
+	private final List<Path> extraModsFolders;
+	private final Gson gson = new Gson();
+
+	/**
+	 * Summary of a deduplication run
+	 */
+	public static class Report {
+		public int filesScanned;
+		public int filesHashed;
+		public int filesLinked;
+		public int blobsCreated;
+		public int blobsRemoved;
+		public long bytesReclaimed;
+
+		@Override
+		public String toString() {
+			return String.format("Mod zips scanned: %d%nHashed: %d%nReplaced with links: %d%n"
+					+ "Blobs created: %d%nBlobs removed: %d%nSpace reclaimed: %.1f MB",
+					filesScanned, filesHashed, filesLinked, blobsCreated, blobsRemoved, bytesReclaimed / 1048576.0);
+		}
+	}
+
+	/**
+	 * @param profilesPath the profiles directory, the store is created inside it
+	 * @param useSymlinks  link duplicates with symbolic links instead of hard links
+	 */
+	public ModStore(Path profilesPath, boolean useSymlinks) {
+		this(profilesPath, useSymlinks, Collections.emptyList());
+	}
+
+	/**
+	 * @param profilesPath     the profiles directory, the store is created inside it
+	 * @param useSymlinks      link duplicates with symbolic links instead of hard links
+	 * @param extraModsFolders mods folders outside the profiles directory, such as those of
+	 *                         an active profile moved into the user data folder
+	 */
+	public ModStore(Path profilesPath, boolean useSymlinks, List<Path> extraModsFolders) {
+		this.profilesPath = profilesPath;
+		this.storePath = profilesPath.resolve(STORE_DIR_NAME);
+		this.useSymlinks = useSymlinks;
+		this.extraModsFolders = new ArrayList<>(extraModsFolders);
+	}
+
+	/**
+	 * Replace identical mod zips across all profiles with links to a shared blob
+	 *
+	 * @return what was done
+	 * @throws IOException if the store could not be read or written
+	 */
+	public Report deduplicate() throws IOException {
+		long start = System.nanoTime();
+		Report report = new Report();
+		Files.createDirectories(storePath);
+
+		Map<String, Blob> blobs = loadIndex();
+		
+		// A failed scan throws before anything is removed
+		List<ModFile> modFiles = collectModFiles();
+		findReferences(blobs, modFiles);
+
+		Map<Long, List<Blob>> blobsBySize = new HashMap<>();
+		for (Blob b : blobs.values()) {
+			blobsBySize.computeIfAbsent(b.size, k -> new ArrayList<>()).add(b);
+		}
+
+		// Only files sharing their size with another file or blob can be duplicates
+		Map<Long, List<ModFile>> bySize = new HashMap<>();
+		for (ModFile f : modFiles) {
+			report.filesScanned++;
+			if (f.linkedTo != null || f.linkTarget != null) continue; // Already linked, or a link elsewhere
+			bySize.computeIfAbsent(f.size, k -> new ArrayList<>()).add(f);
+		}
+
+		List<ModFile> candidates = new ArrayList<>();
+		for (Map.Entry<Long, List<ModFile>> e : bySize.entrySet()) {
+			if (e.getValue().size() > 1 || blobsBySize.containsKey(e.getKey())) {
+				candidates.addAll(e.getValue());
+			}
+		}
+
+		Map<String, List<ModFile>> byHash = hashAll(candidates);
+		report.filesHashed = candidates.size();
+
+		for (Map.Entry<String, List<ModFile>> e : byHash.entrySet()) {
+			String hash = e.getKey();
+			List<ModFile> files = e.getValue();
+			Blob blob = blobs.get(hash);
+			if (blob == null) {
+				if (files.size() < 2) continue; // Unique, nothing to share
+				blob = createBlob(hash, files);
+				if (blob == null) continue;
+				blobs.put(hash, blob);
+				report.blobsCreated++;
+			}
+			for (ModFile f : files) {
+				try {
+					report.bytesReclaimed += link(f, blob);
+					blob.references.add(f.reference);
+					report.filesLinked++;
+				} catch (IOException ex) {
+					LOGGER.log(Level.WARNING, "Could not link " + f.path, ex);
+				}
+			}
+		}
+
+		// Blobs nothing points to any more only take up space
+		Iterator<Blob> it = blobs.values().iterator();
+		while (it.hasNext()) {
+			Blob b = it.next();
+			if (! b.exists) {
+				it.remove();
+			} else if (b.references.isEmpty() && ! isLinkedElsewhere(b)) {
+				Files.deleteIfExists(b.path);
+				it.remove();
+				report.blobsRemoved++;
+			}
+		}
+
+		saveIndex(blobs);
+		LOGGER.info(String.format("Deduplicated mods in %.1f ms%n%s", (System.nanoTime() - start) / 1e6, report));
+		return report;
+	}
+
+	/**
+	 * List the mod zips of every profile, and of the extra mods folders. Symbolic
+	 * links are included with their target, so links into the store are found
+	 */
+	private List<ModFile> collectModFiles() throws IOException {
+		List<Path> modsFolders = new ArrayList<>();
+		try (DirectoryStream<Path> profiles = Files.newDirectoryStream(profilesPath)) {
+			for (Path profile : profiles) {
+				if (profile.getFileName().toString().equals(STORE_DIR_NAME)) continue;
+				modsFolders.add(profile.resolve(SettingsIO.FOLDER_NAME_MODS));
+			}
+		}
+		modsFolders.addAll(extraModsFolders);
+		
+		List<ModFile> files = new ArrayList<>();
+		for (Path mods : modsFolders) {
+			if (! Files.isDirectory(mods)) continue;
+			try (DirectoryStream<Path> zips = Files.newDirectoryStream(mods, "*.zip")) {
+				for (Path zip : zips) {
+					BasicFileAttributes attrs = Files.readAttributes(zip, BasicFileAttributes.class,
+							LinkOption.NOFOLLOW_LINKS);
+					Path target = null;
+					if (attrs.isSymbolicLink()) {
+						target = zip.getParent().resolve(Files.readSymbolicLink(zip)).toAbsolutePath().normalize();
+					} else if (! attrs.isRegularFile()) {
+						continue;
+					}
+					String reference = zip.startsWith(profilesPath)
+							? profilesPath.relativize(zip).toString()
+							: zip.toAbsolutePath().toString();
+					files.add(new ModFile(zip, reference, attrs, target));
+				}
+			}
+		}
+		return files;
+	}
+
+	private Map<String, List<ModFile>> hashAll(List<ModFile> files) throws IOException {
+		List<Future<String>> hashes = new ArrayList<>(files.size());
+		for (ModFile f : files) {
+			hashes.add(POOL.submit(() -> sha256(f.path)));
+		}
+		Map<String, List<ModFile>> byHash = new HashMap<>();
+		for (int i = 0; i < files.size(); i++) {
+			try {
+				byHash.computeIfAbsent(hashes.get(i).get(), k -> new ArrayList<>()).add(files.get(i));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while hashing mods", e);
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Could not hash " + files.get(i).path, e.getCause());
+			}
+		}
+		return byHash;
+	}
+
+	/**
+	 * Create a blob from the first file that can be hard linked into the store,
+	 * copy it if none can
+	 */
+	private Blob createBlob(String hash, List<ModFile> files) {
+		Path blobPath = storePath.resolve(hash + ".zip");
+		for (ModFile f : files) {
+			try {
+				Files.createLink(blobPath, f.path);
+				return new Blob(hash, f.size, blobPath);
+			} catch (IOException | UnsupportedOperationException e) {
+				LOGGER.fine("Could not hard link " + f.path + " into store: " + e);
+			}
+		}
+		if (! useSymlinks) return null; // Hard links not possible, nothing to gain
+		try {
+			Files.copy(files.get(0).path, blobPath, StandardCopyOption.COPY_ATTRIBUTES);
+			return new Blob(hash, files.get(0).size, blobPath);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not create blob " + blobPath, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Atomically replace a file with a link to the blob
+	 *
+	 * @return number of bytes freed by replacing the file, 0 if that is unknown
+	 */
+	private long link(ModFile f, Blob blob) throws IOException {
+		if (! useSymlinks && Files.isSameFile(blob.path, f.path)) {
+			return 0; // Same file, the blob was created from it or it was hard linked before
+		}
+
+		BasicFileAttributes current = Files.readAttributes(f.path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		if (current.size() != f.size || ! current.lastModifiedTime().equals(f.lastModified)) {
+			throw new IOException("Changed since it was hashed");
+		}
+		// Only counted where link counts are known, the file may have other links
+		long freed = linkCount(f.path) == 1 ? f.size : 0;
+
+		Path temp = f.path.resolveSibling(f.path.getFileName() + TEMP_SUFFIX);
+		Files.deleteIfExists(temp);
+		if (useSymlinks) {
+			Files.createSymbolicLink(temp, blob.path);
+		} else {
+			Files.createLink(temp, blob.path);
+		}
+		try {
+			Files.move(temp, f.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return freed;
+	}
+
+	/**
+	 * Rebuild the references of every blob from the files found now, by blob identity:
+	 * symbolic links pointing at the blob, and files sharing its file key, or its file
+	 * id where there are no file keys
+	 */
+	private void findReferences(Map<String, Blob> blobs, List<ModFile> files) {
+		Map<Path, Blob> byPath = new HashMap<>();
+		Map<Object, Blob> byKey = new HashMap<>();
+		Map<Long, List<Blob>> bySize = new HashMap<>();
+		for (Blob b : blobs.values()) {
+			b.references.clear();
+			try {
+				Object key = Files.readAttributes(b.path, BasicFileAttributes.class).fileKey();
+				if (key != null) {
+					byKey.put(key, b);
+				} else {
+					bySize.computeIfAbsent(b.size, k -> new ArrayList<>()).add(b);
+				}
+				byPath.put(b.path.toAbsolutePath().normalize(), b);
+			} catch (IOException e) {
+				LOGGER.warning("Blob missing from store: " + b.path);
+				b.exists = false;
+			}
+		}
+		for (ModFile f : files) {
+			Blob b;
+			if (f.linkTarget != null) {
+				b = byPath.get(f.linkTarget);
+			} else if (f.fileKey != null) {
+				b = byKey.get(f.fileKey);
+			} else {
+				b = sameFile(f, bySize.getOrDefault(f.size, Collections.emptyList()));
+			}
+			if (b != null) {
+				b.references.add(f.reference);
+				f.linkedTo = b;
+			}
+		}
+	}
+
+	/**
+	 * @return the blob a file is a hard link of, {@code null} if none
+	 */
+	private static Blob sameFile(ModFile f, List<Blob> candidates) {
+		for (Blob b : candidates) {
+			try {
+				if (Files.isSameFile(f.path, b.path)) return b;
+			} catch (IOException e) {
+				LOGGER.fine("Could not compare " + f.path + " with " + b.path + ": " + e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A blob without references found may still have hard links the scan can not
+	 * recognize, such as on file systems without file keys
+	 */
+	private static boolean isLinkedElsewhere(Blob b) {
+		int links = linkCount(b.path);
+		if (links > 1) return true;
+		if (links == -1) {
+			try {
+				// Link count unknown, only trust the scan if file keys are available
+				return Files.readAttributes(b.path, BasicFileAttributes.class).fileKey() == null;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of hard links of a file, -1 if unknown
+	 */
+	private static int linkCount(Path file) {
+		try {
+			return (Integer) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	private static String sha256(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		StringBuilder sb = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private Map<String, Blob> loadIndex() {
+		Map<String, Blob> blobs = new HashMap<>();
+		Path indexFile = storePath.resolve(INDEX_FILE_NAME);
+		if (! Files.exists(indexFile)) return blobs;
+		try (Reader r = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+			ModStoreIndexJson json = gson.fromJson(r, ModStoreIndexJson.class);
+			if (json == null) return blobs;
+			for (ModStoreBlobJson b : json.blobs) {
+				Blob blob = new Blob(b.hash, b.size, storePath.resolve(b.hash + ".zip"));
+				blob.references.addAll(b.references);
+				blobs.put(b.hash, blob);
+			}
+		} catch (IOException | JsonParseException e) {
+			LOGGER.log(Level.WARNING, "Could not read mod store index, rebuilding it", e);
+		}
+		return blobs;
+	}
+
+	private void saveIndex(Map<String, Blob> blobs) throws IOException {
+		ModStoreIndexJson json = new ModStoreIndexJson();
+		for (Blob b : blobs.values()) {
+			ModStoreBlobJson jsonBlob = new ModStoreBlobJson();
+			jsonBlob.hash = b.hash;
+			jsonBlob.size = b.size;
+			jsonBlob.references.addAll(b.references);
+			json.blobs.add(jsonBlob);
+		}
+		Path target = storePath.resolve(INDEX_FILE_NAME);
+		Path temp = target.resolveSibling(INDEX_FILE_NAME + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// Not closed here, that would close the channel before it is forced
+			Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+			gson.toJson(json, writer);
+			writer.flush();
+			channel.force(true);
+		}
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return the store folder inside the profiles directory
+	 */
+	public Path getStorePath() {
+		return storePath;
+	}
+
+	private static class Blob {
+		final String hash;
+		final long size;
+		final Path path;
+		final Set<String> references = new LinkedHashSet<>();
+		boolean exists = true;
+
+		Blob(String hash, long size, Path path) {
+			this.hash = hash;
+			this.size = size;
+			this.path = path;
+		}
+	}
+
+	private static class ModFile {
+		final Path path;
+		final String reference;
+		final long size;
+		final Object fileKey;
+		final FileTime lastModified;
+		/** Where a symbolic link points, {@code null} for a regular file */
+		final Path linkTarget;
+		Blob linkedTo;
+
+		ModFile(Path path, String reference, BasicFileAttributes attrs, Path linkTarget) {
+			this.path = path;
+			this.reference = reference;
+			this.size = attrs.size();
+			this.fileKey = attrs.fileKey();
+			this.lastModified = attrs.lastModifiedTime();
+			this.linkTarget = linkTarget;
+		}
+	}
+
+}
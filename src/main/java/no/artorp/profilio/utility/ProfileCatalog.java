@@ -0,0 +1,673 @@
+package no.artorp.profilio.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import no.artorp.profilio.json_models.ProfileMetadataJson;
+
+/**
+ * Persisted listing of the profiles directory, with the metadata of each profile
+ * <p>
+ * The catalog file holds fixed-width records followed by a string table. It is
+ * memory-mapped and decoded in one pass on startup, so the profile table is filled
+ * without listing the profiles directory or reading any sidecar. Changes are appended
+ * to an update log, and folded into a new catalog file in the background once the log
+ * grows past {@link #COMPACT_LOG_SIZE}. Both files are caches, if they are lost or
+ * damaged the profiles directory is scanned again.
+ * <p>
+ * The listing is only valid as long as the last modified time of the profiles
+ * directory is unchanged, creating, deleting or renaming a child will bump it.
+ * Metadata of a profile is kept until its entry changes, a directory replaced under
+ * the same name or a sidecar written elsewhere is then read again.
+ */
+public class ProfileCatalog {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	public static final String FILE_NAME = "profile_catalog.bin";
+	public static final String LOG_FILE_NAME = "profile_catalog.log";
+
+	/** Log size in bytes that triggers a compaction */
+	public static final int COMPACT_LOG_SIZE = 64 * 1024;
+
+	private static final int MAGIC = 0x50464354; // "PFCT"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 32;
+	private static final int RECORD_SIZE = 96;
+
+	private static final int FLAG_LISTED = 1;
+	private static final int FLAG_DIRECTORY = 2;
+	private static final int FLAG_METADATA = 4;
+
+	private static final byte OP_ROOT = 1;
+	private static final byte OP_PUT = 2;
+	private static final byte OP_REMOVE = 3;
+
+	private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "profile-catalog");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Path file;
+	private final Path logFile;
+
+	// Guarded by this
+	private Path profilesPath;
+	private long profilesPathModified = -1;
+	private final Map<String, Record> records = new LinkedHashMap<>();
+	private List<ProfileEntry> listing;
+	private final ByteArrayOutputStream pendingLog = new ByteArrayOutputStream();
+	private final DataOutputStream pendingOut = new DataOutputStream(pendingLog);
+	private long logSize = 0;
+	private boolean loaded = false;
+	private boolean compactionScheduled = false;
+	private boolean compacting = false;
+
+	private static class Record {
+		final String name;
+		boolean listed;
+		String fileKey;
+		long lastModified;
+		boolean isDirectory;
+		ProfileMetadataJson metadata;
+
+		Record(String name) {
+			this.name = name;
+		}
+
+		int flags() {
+			return (listed ? FLAG_LISTED : 0) | (isDirectory ? FLAG_DIRECTORY : 0)
+					| (metadata != null ? FLAG_METADATA : 0);
+		}
+	}
+
+	/**
+	 * @param configDirectory directory to keep the catalog and its log in
+	 */
+	public ProfileCatalog(Path configDirectory) {
+		this.file = configDirectory.resolve(FILE_NAME);
+		this.logFile = configDirectory.resolve(LOG_FILE_NAME);
+	}
+
+	/**
+	 * @param profilesPath      the profiles directory
+	 * @param currentModified   current last modified time of the profiles directory
+	 * @return cached entries if still valid, {@code null} otherwise
+	 */
+	public synchronized List<ProfileEntry> getIfValid(Path profilesPath, long currentModified) {
+		ensureLoaded();
+		if (profilesPath.equals(this.profilesPath) && currentModified == this.profilesPathModified) {
+			return getListing();
+		}
+		return null;
+	}
+
+	/**
+	 * @param profilesPath the profiles directory
+	 * @return last known entries of the directory, regardless of modified time.
+	 *         Empty list if the directory has not been indexed before
+	 */
+	public synchronized List<ProfileEntry> getLastKnown(Path profilesPath) {
+		ensureLoaded();
+		if (profilesPath.equals(this.profilesPath)) {
+			return getListing();
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Replace the listing, only changed entries are logged
+	 *
+	 * @param profilesPath         the profiles directory
+	 * @param profilesPathModified last modified time of the profiles directory when listed
+	 * @param entries              all children of the profiles directory
+	 */
+	public synchronized void update(Path profilesPath, long profilesPathModified, List<ProfileEntry> entries) {
+		ensureLoaded();
+		if (! profilesPath.equals(this.profilesPath)) {
+			records.clear();
+			this.profilesPath = profilesPath;
+		}
+		this.profilesPathModified = profilesPathModified;
+		listing = null;
+		logRoot();
+
+		Set<String> seen = new HashSet<>();
+		for (ProfileEntry e : entries) {
+			seen.add(e.getName());
+			Record r = records.get(e.getName());
+			if (r == null) {
+				r = new Record(e.getName());
+				records.put(r.name, r);
+			} else if (r.listed && Objects.equals(r.fileKey, e.getFileKey())
+					&& r.lastModified == e.getLastModified() && r.isDirectory == e.isDirectory()) {
+				continue;
+			} else if (r.listed) {
+				// Changed or replaced, the sidecar is read again
+				r.metadata = null;
+			}
+			r.listed = true;
+			r.fileKey = e.getFileKey();
+			r.lastModified = e.getLastModified();
+			r.isDirectory = e.isDirectory();
+			logPut(r);
+		}
+		for (Iterator<Record> it = records.values().iterator(); it.hasNext();) {
+			Record r = it.next();
+			if (! seen.contains(r.name)) {
+				it.remove();
+				logRemove(r.name);
+			}
+		}
+	}
+
+	/**
+	 * @param profileDirectory directory of a profile in the profiles directory
+	 * @return copy of the cached metadata, {@code null} if none is cached
+	 */
+	public synchronized ProfileMetadataJson getMetadata(Path profileDirectory) {
+		ensureLoaded();
+		Record r = recordOf(profileDirectory);
+		return r == null || r.metadata == null ? null : copy(r.metadata);
+	}
+
+	/**
+	 * Cache the metadata of a profile, ignored for directories outside the profiles directory
+	 *
+	 * @param profileDirectory directory of a profile
+	 * @param metadata         metadata to cache, it is copied
+	 */
+	public synchronized void putMetadata(Path profileDirectory, ProfileMetadataJson metadata) {
+		ensureLoaded();
+		if (profilesPath == null || profileDirectory.getFileName() == null) return;
+		Path parent = profileDirectory.toAbsolutePath().normalize().getParent();
+		if (! profilesPath.toAbsolutePath().normalize().equals(parent)) return;
+
+		String name = profileDirectory.getFileName().toString();
+		Record r = records.get(name);
+		if (r == null) {
+			// Not listed yet, the next scan will pick it up
+			r = new Record(name);
+			records.put(name, r);
+		}
+		r.metadata = copy(metadata);
+		logPut(r);
+	}
+
+	/**
+	 * Append logged changes to the update log on disk, and compact in the background
+	 * once the log is large
+	 */
+	public synchronized void save() {
+		if (pendingLog.size() == 0 || compacting) return; // Saved once compaction is done
+		try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer buffer = ByteBuffer.wrap(pendingLog.toByteArray());
+			while (buffer.hasRemaining()) {
+				logSize += channel.write(buffer);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not append to " + logFile, e);
+		}
+		pendingLog.reset();
+		if (logSize > COMPACT_LOG_SIZE && ! compactionScheduled) {
+			compactionScheduled = true;
+			COMPACTOR.execute(this::compact);
+		}
+	}
+
+	/**
+	 * Write all records to a new catalog file, and empty the update log
+	 * <p>
+	 * The records are encoded while holding the lock, the file is written without it.
+	 * Changes made meanwhile are kept in memory and logged once the new file is in place
+	 */
+	public void compact() {
+		ByteBuffer content;
+		byte[] unsaved;
+		int count;
+		synchronized (this) {
+			compactionScheduled = false;
+			ensureLoaded();
+			if (profilesPath == null || compacting) return;
+			try {
+				content = encode();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not encode profile catalog", e);
+				return;
+			}
+			// Changes not yet in the log are in the new catalog as well
+			unsaved = pendingLog.toByteArray();
+			pendingLog.reset();
+			count = records.size();
+			compacting = true;
+		}
+
+		long start = System.nanoTime();
+		boolean written = false;
+		try {
+			write(content);
+			written = true;
+			LOGGER.fine(String.format("Compacted profile catalog, %d records in %.1f ms",
+					count, (System.nanoTime() - start) / 1e6));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not compact profile catalog " + file, e);
+		}
+
+		synchronized (this) {
+			compacting = false;
+			if (written) {
+				try {
+					Files.deleteIfExists(logFile);
+					logSize = 0;
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not delete " + logFile, e);
+				}
+			} else {
+				// Put back what the new catalog would have held, ahead of later changes
+				byte[] later = pendingLog.toByteArray();
+				pendingLog.reset();
+				pendingLog.write(unsaved, 0, unsaved.length);
+				pendingLog.write(later, 0, later.length);
+			}
+			save();
+		}
+	}
+
+	private void write(ByteBuffer content) throws IOException {
+		Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+			channel.force(true);
+		}
+		try {
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private List<ProfileEntry> getListing() {
+		if (listing == null) {
+			List<ProfileEntry> list = new ArrayList<>(records.size());
+			for (Record r : records.values()) {
+				if (r.listed) {
+					list.add(new ProfileEntry(profilesPath.resolve(r.name), r.fileKey, r.lastModified, r.isDirectory));
+				}
+			}
+			listing = Collections.unmodifiableList(list);
+		}
+		return listing;
+	}
+
+	private Record recordOf(Path profileDirectory) {
+		if (profilesPath == null || profileDirectory.getFileName() == null) return null;
+		Path parent = profileDirectory.toAbsolutePath().normalize().getParent();
+		if (! profilesPath.toAbsolutePath().normalize().equals(parent)) return null;
+		return records.get(profileDirectory.getFileName().toString());
+	}
+
+	private void ensureLoaded() {
+		if (loaded) return;
+		loaded = true;
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			try {
+				decode(map);
+			} finally {
+				// Released right away, so compaction can replace the file
+				MappedBuffers.unmap(map);
+			}
+		} catch (NoSuchFileException e) {
+			// Nothing cached yet
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Could not read profile catalog, ignoring it", e);
+			records.clear();
+			profilesPath = null;
+			profilesPathModified = -1;
+		}
+		int replayed = replayLog();
+		LOGGER.fine(String.format("Loaded profile catalog, %d records and %d logged changes in %.2f ms",
+				records.size(), replayed, (System.nanoTime() - start) / 1e6));
+	}
+
+	private void decode(ByteBuffer b) throws IOException {
+		if (b.limit() < HEADER_SIZE || b.getInt(0) != MAGIC || b.getInt(4) != VERSION) {
+			throw new IOException("Not a profile catalog, or of another version");
+		}
+		long modified = b.getLong(8);
+		int pathRef = b.getInt(16);
+		int count = b.getInt(20);
+		int stringsOffset = b.getInt(24);
+		int stringsLength = b.getInt(28);
+		if (count < 0 || stringsOffset != HEADER_SIZE + (long) count * RECORD_SIZE
+				|| (long) stringsOffset + stringsLength > b.limit()) {
+			throw new IOException("Profile catalog is truncated");
+		}
+
+		Map<Integer, String> strings = new HashMap<>();
+		String path = string(b, stringsOffset, pathRef, strings);
+		if (path == null) return;
+		profilesPath = Paths.get(path);
+		profilesPathModified = modified;
+
+		for (int i = 0; i < count; i++) {
+			int pos = HEADER_SIZE + i * RECORD_SIZE;
+			Record r = new Record(string(b, stringsOffset, b.getInt(pos), strings));
+			r.fileKey = string(b, stringsOffset, b.getInt(pos + 4), strings);
+			r.lastModified = b.getLong(pos + 8);
+			int flags = b.getInt(pos + 16);
+			r.listed = (flags & FLAG_LISTED) != 0;
+			r.isDirectory = (flags & FLAG_DIRECTORY) != 0;
+			if ((flags & FLAG_METADATA) != 0) {
+				ProfileMetadataJson m = new ProfileMetadataJson();
+				m.id = string(b, stringsOffset, b.getInt(pos + 20), strings);
+				m.installation = string(b, stringsOffset, b.getInt(pos + 24), strings);
+				m.saves = b.getInt(pos + 28);
+				m.created = b.getLong(pos + 32);
+				m.modified = b.getLong(pos + 40);
+				m.lastActivated = b.getLong(pos + 48);
+				m.statsUpdated = b.getLong(pos + 56);
+				m.size = b.getLong(pos + 64);
+				m.newestSave = b.getLong(pos + 72);
+				m.mods = b.getInt(pos + 80);
+				m.version = b.getInt(pos + 84);
+				m.sizeLimit = b.getLong(pos + 88);
+				r.metadata = m;
+			}
+			records.put(r.name, r);
+		}
+	}
+
+	private static String string(ByteBuffer b, int stringsOffset, int ref, Map<Integer, String> decoded) {
+		if (ref < 0) return null;
+		String s = decoded.get(ref);
+		if (s == null) {
+			int length = b.getInt(stringsOffset + ref);
+			byte[] bytes = new byte[length];
+			ByteBuffer view = b.duplicate();
+			view.position(stringsOffset + ref + 4);
+			view.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+			decoded.put(ref, s);
+		}
+		return s;
+	}
+
+	private ByteBuffer encode() throws IOException {
+		ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+		DataOutputStream strings = new DataOutputStream(stringBytes);
+		Map<String, Integer> refs = new HashMap<>();
+
+		ByteBuffer recordBytes = ByteBuffer.allocate(records.size() * RECORD_SIZE);
+		int pathRef = ref(profilesPath.toString(), strings, refs);
+		for (Record r : records.values()) {
+			int pos = recordBytes.position();
+			recordBytes.putInt(pos, ref(r.name, strings, refs));
+			recordBytes.putInt(pos + 4, ref(r.fileKey, strings, refs));
+			recordBytes.putLong(pos + 8, r.lastModified);
+			recordBytes.putInt(pos + 16, r.flags());
+			ProfileMetadataJson m = r.metadata;
+			if (m != null) {
+				recordBytes.putInt(pos + 20, ref(m.id, strings, refs));
+				recordBytes.putInt(pos + 24, ref(m.installation, strings, refs));
+				recordBytes.putInt(pos + 28, m.saves);
+				recordBytes.putLong(pos + 32, m.created);
+				recordBytes.putLong(pos + 40, m.modified);
+				recordBytes.putLong(pos + 48, m.lastActivated);
+				recordBytes.putLong(pos + 56, m.statsUpdated);
+				recordBytes.putLong(pos + 64, m.size);
+				recordBytes.putLong(pos + 72, m.newestSave);
+				recordBytes.putInt(pos + 80, m.mods);
+				recordBytes.putInt(pos + 84, m.version);
+				recordBytes.putLong(pos + 88, m.sizeLimit);
+			}
+			recordBytes.position(pos + RECORD_SIZE);
+		}
+
+		int stringsOffset = HEADER_SIZE + recordBytes.capacity();
+		ByteBuffer out = ByteBuffer.allocate(stringsOffset + stringBytes.size());
+		out.putInt(MAGIC).putInt(VERSION).putLong(profilesPathModified).putInt(pathRef)
+				.putInt(records.size()).putInt(stringsOffset).putInt(stringBytes.size());
+		recordBytes.flip();
+		out.put(recordBytes);
+		out.put(stringBytes.toByteArray());
+		out.flip();
+		return out;
+	}
+
+	private static int ref(String s, DataOutputStream strings, Map<String, Integer> refs) throws IOException {
+		if (s == null) return -1;
+		Integer ref = refs.get(s);
+		if (ref == null) {
+			ref = strings.size();
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			strings.writeInt(bytes.length);
+			strings.write(bytes);
+			refs.put(s, ref);
+		}
+		return ref;
+	}
+
+	// ## Update log, each change is framed by its length and a checksum
+
+	private void logRoot() {
+		ByteArrayOutputStream op = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(op)) {
+			out.writeByte(OP_ROOT);
+			out.writeUTF(profilesPath.toString());
+			out.writeLong(profilesPathModified);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		appendFrame(op.toByteArray());
+	}
+
+	private void logPut(Record r) {
+		ByteArrayOutputStream op = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(op)) {
+			out.writeByte(OP_PUT);
+			out.writeUTF(r.name);
+			writeNullable(out, r.fileKey);
+			out.writeLong(r.lastModified);
+			out.writeInt(r.flags());
+			ProfileMetadataJson m = r.metadata;
+			if (m != null) {
+				writeNullable(out, m.id);
+				writeNullable(out, m.installation);
+				out.writeInt(m.version);
+				out.writeLong(m.created);
+				out.writeLong(m.modified);
+				out.writeLong(m.lastActivated);
+				out.writeLong(m.statsUpdated);
+				out.writeLong(m.size);
+				out.writeInt(m.saves);
+				out.writeInt(m.mods);
+				out.writeLong(m.newestSave);
+				out.writeLong(m.sizeLimit);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		appendFrame(op.toByteArray());
+	}
+
+	private void logRemove(String name) {
+		ByteArrayOutputStream op = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(op)) {
+			out.writeByte(OP_REMOVE);
+			out.writeUTF(name);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		appendFrame(op.toByteArray());
+	}
+
+	private void appendFrame(byte[] op) {
+		CRC32 crc = new CRC32();
+		crc.update(op, 0, op.length);
+		try {
+			pendingOut.writeInt(op.length);
+			pendingOut.write(op);
+			pendingOut.writeInt((int) crc.getValue());
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Apply the update log on top of the loaded catalog. A torn last change, left by
+	 * a crash while appending, is cut off
+	 *
+	 * @return number of changes applied
+	 */
+	private int replayLog() {
+		byte[] log;
+		try {
+			log = Files.readAllBytes(logFile);
+		} catch (NoSuchFileException e) {
+			return 0;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not read " + logFile, e);
+			return 0;
+		}
+		ByteBuffer b = ByteBuffer.wrap(log);
+		int applied = 0;
+		int valid = 0;
+		CRC32 crc = new CRC32();
+		while (b.remaining() >= 4) {
+			int length = b.getInt();
+			if (length < 0 || b.remaining() < length + 4) break;
+			int opStart = b.position();
+			b.position(opStart + length);
+			crc.reset();
+			crc.update(log, opStart, length);
+			if (b.getInt() != (int) crc.getValue()) break;
+			try {
+				apply(new DataInputStream(new ByteArrayInputStream(log, opStart, length)));
+			} catch (IOException e) {
+				break;
+			}
+			valid = b.position();
+			applied++;
+		}
+		logSize = valid;
+		if (valid < log.length) {
+			LOGGER.warning("Discarding damaged end of " + logFile);
+			try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+				channel.truncate(valid);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not truncate " + logFile, e);
+			}
+		}
+		return applied;
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		byte op = in.readByte();
+		if (op == OP_ROOT) {
+			Path path = Paths.get(in.readUTF());
+			if (! path.equals(profilesPath)) {
+				records.clear();
+				profilesPath = path;
+			}
+			profilesPathModified = in.readLong();
+		} else if (op == OP_PUT) {
+			String name = in.readUTF();
+			Record r = new Record(name);
+			r.fileKey = readNullable(in);
+			r.lastModified = in.readLong();
+			int flags = in.readInt();
+			r.listed = (flags & FLAG_LISTED) != 0;
+			r.isDirectory = (flags & FLAG_DIRECTORY) != 0;
+			if ((flags & FLAG_METADATA) != 0) {
+				ProfileMetadataJson m = new ProfileMetadataJson();
+				m.id = readNullable(in);
+				m.installation = readNullable(in);
+				m.version = in.readInt();
+				m.created = in.readLong();
+				m.modified = in.readLong();
+				m.lastActivated = in.readLong();
+				m.statsUpdated = in.readLong();
+				m.size = in.readLong();
+				m.saves = in.readInt();
+				m.mods = in.readInt();
+				m.newestSave = in.readLong();
+				m.sizeLimit = in.available() >= 8 ? in.readLong() : 0; // Not in older logs
+				r.metadata = m;
+			}
+			records.put(name, r);
+		} else if (op == OP_REMOVE) {
+			records.remove(in.readUTF());
+		} else {
+			throw new EOFException("Unknown change " + op);
+		}
+	}
+
+	private static void writeNullable(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readNullable(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static ProfileMetadataJson copy(ProfileMetadataJson m) {
+		ProfileMetadataJson c = new ProfileMetadataJson();
+		c.version = m.version;
+		c.id = m.id;
+		c.installation = m.installation;
+		c.created = m.created;
+		c.modified = m.modified;
+		c.lastActivated = m.lastActivated;
+		c.statsUpdated = m.statsUpdated;
+		c.size = m.size;
+		c.saves = m.saves;
+		c.mods = m.mods;
+		c.newestSave = m.newestSave;
+		c.sizeLimit = m.sizeLimit;
+		return c;
+	}
+
+}
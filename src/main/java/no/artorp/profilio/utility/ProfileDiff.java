@@ -0,0 +1,126 @@
+package no.artorp.profilio.utility;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.artorp.profilio.javafx.Profile;
+
+/**
+ * Difference between the profiles currently shown and a fresh scan of the profiles directory
+ * <p>
+ * Profiles are matched by path first, then by file key, so a folder renamed outside
+ * of Profilio keeps its {@link Profile} instance. A path whose file key changed, or
+ * that is no longer a directory, is treated as a removal followed by an addition. A
+ * profile whose directory was modified is reported as changed, its sidecar may have
+ * been edited outside Profilio.
+ */
+public class ProfileDiff {
+
+	private final List<ProfileEntry> added = new ArrayList<>();
+	private final List<Profile> removed = new ArrayList<>();
+	private final Map<Profile, ProfileEntry> renamed = new LinkedHashMap<>();
+	private final Map<Profile, ProfileEntry> changed = new LinkedHashMap<>();
+
+	private ProfileDiff() {
+	}
+
+	/**
+	 * @param current profiles currently in the model
+	 * @param scanned entries from {@link ProfileScanner#scan(Path)}, files are ignored
+	 * @return the changes needed to bring {@code current} in line with {@code scanned}
+	 */
+	public static ProfileDiff compute(List<Profile> current, List<ProfileEntry> scanned) {
+		ProfileDiff diff = new ProfileDiff();
+
+		Map<Path, Profile> byPath = new HashMap<>();
+		for (Profile p : current) {
+			byPath.put(p.getDirectory().toPath(), p);
+		}
+
+		List<ProfileEntry> unmatched = new ArrayList<>();
+		for (ProfileEntry entry : scanned) {
+			if (! entry.isDirectory()) continue;
+			Profile p = byPath.remove(entry.getPath());
+			if (p == null) {
+				unmatched.add(entry);
+			} else if ((p.getFileKey() != null && entry.getFileKey() != null
+					&& ! p.getFileKey().equals(entry.getFileKey())) || ! p.isDirectory()) {
+				// Same name, different folder
+				diff.removed.add(p);
+				diff.added.add(entry);
+			} else {
+				if (p.getFileKey() == null) {
+					p.setFileKey(entry.getFileKey());
+				}
+				if (p.getLastModified() != entry.getLastModified()) {
+					diff.changed.put(p, entry);
+				}
+			}
+		}
+
+		// Profiles left in byPath are gone from their old location, look for them by file key
+		Map<String, Profile> byKey = new HashMap<>();
+		for (Profile p : byPath.values()) {
+			if (p.getFileKey() != null) {
+				byKey.put(p.getFileKey(), p);
+			}
+		}
+
+		for (ProfileEntry entry : unmatched) {
+			Profile p = entry.getFileKey() == null ? null : byKey.remove(entry.getFileKey());
+			if (p != null) {
+				diff.renamed.put(p, entry);
+				byPath.remove(p.getDirectory().toPath());
+			} else {
+				diff.added.add(entry);
+			}
+		}
+
+		diff.removed.addAll(byPath.values());
+		return diff;
+	}
+
+	/**
+	 * @return entries without a matching profile
+	 */
+	public List<ProfileEntry> getAdded() {
+		return Collections.unmodifiableList(added);
+	}
+
+	/**
+	 * @return profiles no longer found in the profiles directory
+	 */
+	public List<Profile> getRemoved() {
+		return Collections.unmodifiableList(removed);
+	}
+
+	/**
+	 * @return profiles found under a new name, mapped to their new entry
+	 */
+	public Map<Profile, ProfileEntry> getRenamed() {
+		return Collections.unmodifiableMap(renamed);
+	}
+
+	/**
+	 * @return profiles whose directory was modified, mapped to their current entry
+	 */
+	public Map<Profile, ProfileEntry> getChanged() {
+		return Collections.unmodifiableMap(changed);
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && renamed.isEmpty() && changed.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d added, %d removed, %d renamed, %d changed",
+				added.size(), removed.size(), renamed.size(), changed.size());
+	}
+
+}
@@ -1,20 +1,57 @@
 package no.artorp.profilio.utility;
 
-import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import no.artorp.profilio.javafx.Profile;
 import no.artorp.profilio.javafx.Registry;
 
 public class ProfileDirectoryHelper {
-	
-	
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** Listing cache of earlier versions, replaced by {@link ProfileCatalog} */
+	private static final String LEGACY_INDEX_FILE = "profile_index.json";
+
+	private static ProfileCatalog catalog;
+	private static ProfileScanner scanner;
+
+	/**
+	 * @return the shared catalog of profiles, kept in the config directory
+	 */
+	public static synchronized ProfileCatalog getCatalog() {
+		if (catalog == null) {
+			Path configDirectory = FileLocations.getConfigDirectory();
+			catalog = new ProfileCatalog(configDirectory);
+			try {
+				Files.deleteIfExists(configDirectory.resolve(LEGACY_INDEX_FILE));
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Could not remove old profile index", e);
+			}
+		}
+		return catalog;
+	}
+
+	/**
+	 * @return the shared scanner, listing the profiles directory through the catalog
+	 */
+	public static synchronized ProfileScanner getScanner() {
+		if (scanner == null) {
+			scanner = new ProfileScanner(getCatalog());
+		}
+		return scanner;
+	}
+
 	/**
 	 * @param profileDirectory directory to check for profile folders
 	 * @param registry         the registry to pass into profile constructor
-	 * @returnA list of {@link Profile profiles} generated from a profile directory path
+	 * @return A list of {@link Profile profiles} generated from a profile directory path
 	 */
 	public static List<Profile> getProfiles(Path profileDirectory, Registry registry, SettingsIO settingsIO) {
 		List<Profile> profiles = new ArrayList<Profile>();
@@ -24,38 +61,60 @@ public class ProfileDirectoryHelper {
 			return profiles;
 		}
 
-		File[] files = profileDirectory.toFile().listFiles();
-		
-		if (files != null) {
-			for (File f : files) {
-				if (f.isFile()) continue;
-				
-				// Determine if this is the active profile
-				Path activeProfile = registry.getActiveProfilePath();
-				boolean isActiveProfile = (f.toPath().equals(activeProfile));
-				Profile p = new Profile(f, registry, isActiveProfile, settingsIO);
-				if (isActiveProfile) {
-					registry.setActiveProfile(p);
-				}
-				
-				String factorioVersion = registry.findGameName(f.getName());
-				if (factorioVersion == null) {
-					if (! registry.getFactorioInstallations().isEmpty()) {
-						// No defined factorio version for this profile? Assign the first one
-						factorioVersion = registry.getFactorioInstallations().get(0).getName();
-					}
-				}
-				p.setFactorioVersion(factorioVersion);
-				
-				profiles.add(p);
+		List<ProfileEntry> entries = scanProfiles(profileDirectory);
+
+		// Determine which is the active profile
+		Path activeProfile = registry.getActiveProfilePath();
+
+		for (ProfileEntry entry : entries) {
+			if (! entry.isDirectory()) continue;
+
+			boolean isActiveProfile = entry.getPath().equals(activeProfile);
+			Profile p = createProfile(entry, registry, isActiveProfile, settingsIO);
+			if (isActiveProfile) {
+				registry.setActiveProfile(p);
 			}
+			profiles.add(p);
 		}
-		
+
 		registry.getProfiles().clear();
 		registry.getProfiles().addAll(profiles);
 		return profiles;
 	}
+
+	/**
+	 * @param profileDirectory directory to list
+	 * @return entries of the profile directory, empty if it could not be read
+	 */
+	public static List<ProfileEntry> scanProfiles(Path profileDirectory) {
+		try {
+			return getScanner().scan(profileDirectory);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Error listing profile directory " + profileDirectory, e);
+			return new ArrayList<>();
+		}
+	}
 	
+	/**
+	 * Creates a profile from a scanned entry, assigning the first Factorio installation
+	 * if the registry has no mapping for it
+	 *
+	 * @param entry    scanned directory
+	 * @param registry registry to pass into the profile constructor
+	 * @param isActive whether the profile is the active one
+	 * @return the new profile
+	 */
+	public static Profile createProfile(ProfileEntry entry, Registry registry, boolean isActive, SettingsIO settingsIO) {
+		Profile p = new Profile(entry.getPath().toFile(), entry.isDirectory(), registry, isActive, settingsIO);
+		p.setFileKey(entry.getFileKey());
+		p.setLastModified(entry.getLastModified());
+		if (p.getFactorioVersion() == null && ! registry.getFactorioInstallations().isEmpty()) {
+			// No defined factorio version for this profile? Assign the first one
+			p.setFactorioVersion(registry.getFactorioInstallations().get(0).getName());
+		}
+		return p;
+	}
+
 	/**
 	 * Generates list of profiles from a directory
 	 * <p>
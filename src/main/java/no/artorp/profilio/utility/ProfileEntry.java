@@ -0,0 +1,63 @@
+package no.artorp.profilio.utility;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Immutable snapshot of a single child of the profiles directory
+ * <p>
+ * Produced by {@link ProfileScanner}, holds only the attributes needed
+ * to build a {@link no.artorp.profilio.javafx.Profile Profile}
+ */
+public class ProfileEntry {
+
+	private final Path path;
+	private final String fileKey;
+	private final long lastModified;
+	private final boolean isDirectory;
+
+	public ProfileEntry(Path path, String fileKey, long lastModified, boolean isDirectory) {
+		this.path = path;
+		this.fileKey = fileKey;
+		this.lastModified = lastModified;
+		this.isDirectory = isDirectory;
+	}
+
+	public static ProfileEntry fromAttributes(Path path, BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return new ProfileEntry(path,
+				key == null ? null : key.toString(),
+				attrs.lastModifiedTime().toMillis(),
+				attrs.isDirectory());
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public String getName() {
+		return path.getFileName().toString();
+	}
+
+	/**
+	 * @return string form of {@link BasicFileAttributes#fileKey()}, {@code null}
+	 *         if the file system does not provide file keys (ie Windows)
+	 */
+	public String getFileKey() {
+		return fileKey;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public boolean isDirectory() {
+		return isDirectory;
+	}
+
+	@Override
+	public String toString() {
+		return path.toString();
+	}
+
+}
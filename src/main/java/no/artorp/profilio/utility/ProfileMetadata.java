@@ -0,0 +1,314 @@
+package no.artorp.profilio.utility;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import no.artorp.profilio.json_models.ProfileMetadataJson;
+
+/**
+ * Metadata of each profile, kept in a small sidecar file inside the profile directory
+ * <p>
+ * The sidecar travels with its directory, so listing the profiles directory is enough
+ * to know which installation each profile uses, also after renames done outside Profilio.
+ * Sidecars are read on first use and cached, also across runs in the {@link ProfileCatalog},
+ * so a profile's sidecar is only read when the catalog does not know it. Changes are
+ * written behind on a background thread, each replacing only the sidecar of the changed
+ * profile. Call {@link #flush()} before exiting.
+ */
+public class ProfileMetadata {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	public static final String FILE_NAME = ".profilio.json";
+
+	/** Milliseconds to wait for more changes before writing */
+	public static final long WRITE_DELAY = 250;
+
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+	private static ProfileMetadata instance;
+
+	private final ProfileCatalog catalog;
+
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "profile-metadata");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Held while taking and writing snapshots, keeps writes in order */
+	private final Object writeLock = new Object();
+
+	// Guarded by this, a directory maps to null when it has no sidecar
+	private final Map<Path, ProfileMetadataJson> loaded = new HashMap<>();
+	private final Map<String, Path> directoryById = new HashMap<>();
+	private final Set<Path> dirty = new LinkedHashSet<>();
+	private boolean writeScheduled = false;
+	private long writes = 0;
+
+	/**
+	 * @return the metadata store shared by all profiles
+	 */
+	public static synchronized ProfileMetadata get() {
+		if (instance == null) {
+			instance = new ProfileMetadata(ProfileDirectoryHelper.getCatalog());
+		}
+		return instance;
+	}
+
+	/**
+	 * @param catalog where metadata is cached between runs
+	 */
+	public ProfileMetadata(ProfileCatalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * Metadata of a profile, read from its sidecar the first time it is asked for
+	 * <p>
+	 * The returned object is shared, change it through {@link #update(Path, Consumer)}.
+	 *
+	 * @param profileDirectory directory of the profile
+	 * @return the metadata, {@code null} if the profile has no sidecar
+	 */
+	public ProfileMetadataJson load(Path profileDirectory) {
+		Path dir = profileDirectory.toAbsolutePath().normalize();
+		synchronized (this) {
+			if (loaded.containsKey(dir)) {
+				return loaded.get(dir);
+			}
+		}
+		ProfileMetadataJson meta = catalog.getMetadata(dir);
+		if (meta == null) {
+			meta = read(dir);
+			if (meta != null) {
+				catalog.putMetadata(dir, meta);
+			}
+		}
+		synchronized (this) {
+			if (loaded.containsKey(dir)) {
+				// Loaded by someone else meanwhile
+				return loaded.get(dir);
+			}
+			loaded.put(dir, meta);
+			if (meta != null) {
+				claimId(dir, meta);
+			}
+			return meta;
+		}
+	}
+
+	/**
+	 * Read a profile's sidecar again, bypassing the cache, after its directory changed
+	 * outside Profilio. Changes not yet written win over the sidecar
+	 *
+	 * @param profileDirectory directory of the profile
+	 * @return the metadata, {@code null} if the profile has no sidecar
+	 */
+	public ProfileMetadataJson reload(Path profileDirectory) {
+		Path dir = profileDirectory.toAbsolutePath().normalize();
+		synchronized (this) {
+			if (dirty.contains(dir)) {
+				return loaded.get(dir);
+			}
+		}
+		ProfileMetadataJson meta = read(dir);
+		if (meta != null) {
+			catalog.putMetadata(dir, meta);
+		}
+		synchronized (this) {
+			if (dirty.contains(dir)) {
+				// Changed meanwhile
+				return loaded.get(dir);
+			}
+			loaded.put(dir, meta);
+			if (meta != null) {
+				claimId(dir, meta);
+			}
+			return meta;
+		}
+	}
+
+	/**
+	 * Change the metadata of a profile and schedule a write of its sidecar
+	 *
+	 * @param profileDirectory directory of the profile
+	 * @param change           applied to the metadata, a new sidecar is created if missing
+	 */
+	public void update(Path profileDirectory, Consumer<ProfileMetadataJson> change) {
+		Path dir = profileDirectory.toAbsolutePath().normalize();
+		load(dir);
+		synchronized (this) {
+			ProfileMetadataJson meta = loaded.get(dir);
+			if (meta == null) {
+				meta = new ProfileMetadataJson();
+				meta.created = System.currentTimeMillis();
+				loaded.put(dir, meta);
+				claimId(dir, meta);
+			}
+			change.accept(meta);
+			meta.modified = System.currentTimeMillis();
+			markDirty(dir);
+		}
+	}
+
+	/**
+	 * Follow a profile directory that was renamed by Profilio, the sidecar moves with it
+	 *
+	 * @param from old directory
+	 * @param to   new directory
+	 */
+	public synchronized void moved(Path from, Path to) {
+		from = from.toAbsolutePath().normalize();
+		to = to.toAbsolutePath().normalize();
+		if (! loaded.containsKey(from)) return;
+		ProfileMetadataJson meta = loaded.remove(from);
+		loaded.put(to, meta);
+		if (meta != null) {
+			directoryById.put(meta.id, to);
+		}
+		if (dirty.remove(from)) {
+			dirty.add(to);
+		}
+	}
+
+	/**
+	 * Write all pending changes on the calling thread, waits for a write in progress
+	 */
+	public void flush() {
+		writePending();
+		catalog.save();
+	}
+
+	/**
+	 * @return number of sidecars written so far
+	 */
+	public synchronized long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * Give the metadata an id no other profile directory has
+	 * <p>
+	 * A copied profile directory, made by cloning or outside Profilio, starts out with
+	 * the id of the original. The directory seen last gets a new one.
+	 */
+	private void claimId(Path dir, ProfileMetadataJson meta) {
+		Path owner = meta.id == null ? null : directoryById.get(meta.id);
+		if (meta.id == null || (owner != null && ! owner.equals(dir) && Files.isDirectory(owner))) {
+			if (meta.id != null) {
+				LOGGER.info("Profile " + dir + " is a copy of " + owner + ", giving it a new id");
+			}
+			meta.id = UUID.randomUUID().toString();
+			markDirty(dir);
+		}
+		directoryById.put(meta.id, dir);
+	}
+
+	private void markDirty(Path dir) {
+		dirty.add(dir);
+		if (! writeScheduled) {
+			writeScheduled = true;
+			writer.schedule(this::writePending, WRITE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void writePending() {
+		synchronized (writeLock) {
+			List<Path> dirs = new ArrayList<>();
+			List<String> contents = new ArrayList<>();
+			synchronized (this) {
+				for (Path dir : dirty) {
+					ProfileMetadataJson meta = loaded.get(dir);
+					if (meta == null) continue;
+					dirs.add(dir);
+					contents.add(GSON.toJson(meta));
+				}
+				dirty.clear();
+				writeScheduled = false;
+			}
+			for (int i = 0; i < dirs.size(); i++) {
+				try {
+					write(dirs.get(i), contents.get(i));
+					catalog.putMetadata(dirs.get(i), GSON.fromJson(contents.get(i), ProfileMetadataJson.class));
+					synchronized (this) {
+						writes++;
+					}
+				} catch (NoSuchFileException e) {
+					LOGGER.fine("Profile removed before its metadata was written: " + dirs.get(i));
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not write metadata of profile " + dirs.get(i), e);
+				}
+			}
+			if (! dirs.isEmpty()) {
+				catalog.save();
+			}
+		}
+	}
+
+	private static void write(Path dir, String json) throws IOException {
+		if (! Files.isDirectory(dir)) {
+			throw new NoSuchFileException(dir.toString());
+		}
+		Path target = dir.resolve(FILE_NAME);
+		Path temp = dir.resolve(FILE_NAME + ".tmp");
+		EventSuppressor.Token token = EventSuppressor.get().suppress(target, temp);
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			token.close();
+		}
+	}
+
+	private static ProfileMetadataJson read(Path dir) {
+		Path file = dir.resolve(FILE_NAME);
+		try {
+			byte[] bytes = Files.readAllBytes(file);
+			return GSON.fromJson(new String(bytes, StandardCharsets.UTF_8), ProfileMetadataJson.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | JsonParseException e) {
+			LOGGER.log(Level.WARNING, "Ignoring unreadable profile metadata " + file, e);
+			return null;
+		}
+	}
+
+}
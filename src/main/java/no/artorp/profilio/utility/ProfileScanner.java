@@ -0,0 +1,138 @@
+package no.artorp.profilio.utility;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lists the children of the profiles directory
+ * <p>
+ * The directory is streamed with a {@link DirectoryStream}, and attributes of
+ * children are read in parallel on a small bounded pool. Results are kept in a
+ * {@link ProfileCatalog}; a warm start with an unchanged profiles directory does a
+ * single stat of the directory itself. Otherwise every child is stat'ed once, and
+ * the catalog keeps the metadata of those whose attributes are unchanged, so their
+ * sidecars are not read again.
+ */
+public class ProfileScanner {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	private static final int POOL_SIZE = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory());
+
+	private final ProfileCatalog cache;
+
+	public ProfileScanner(ProfileCatalog cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param profileDirectory directory to list
+	 * @return entries of the directory, both files and directories
+	 * @throws IOException if the directory itself could not be read
+	 */
+	public List<ProfileEntry> scan(Path profileDirectory) throws IOException {
+		long start = System.nanoTime();
+
+		BasicFileAttributes rootAttrs = Files.readAttributes(profileDirectory, BasicFileAttributes.class);
+		long rootModified = rootAttrs.lastModifiedTime().toMillis();
+
+		List<ProfileEntry> cached = cache.getIfValid(profileDirectory, rootModified);
+		if (cached != null) {
+			LOGGER.fine(String.format("Profile index of %s up to date, %d entries", profileDirectory, cached.size()));
+			return new ArrayList<>(cached);
+		}
+
+		Map<String, ProfileEntry> lastKnown = new HashMap<>();
+		for (ProfileEntry e : cache.getLastKnown(profileDirectory)) {
+			lastKnown.put(e.getName(), e);
+		}
+
+		List<ProfileEntry> entries = new ArrayList<>();
+		List<Future<ProfileEntry>> pending = new ArrayList<>();
+
+		// Known children are stat'ed as well, they may have been replaced or touched
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(profileDirectory)) {
+			for (Path child : stream) {
+				if (child.getFileName().toString().equals(ModStore.STORE_DIR_NAME)) continue;
+				pending.add(POOL.submit(() -> readEntry(child)));
+			}
+		}
+
+		int changed = 0;
+		for (Future<ProfileEntry> f : pending) {
+			try {
+				ProfileEntry e = f.get();
+				if (e != null) {
+					entries.add(e);
+					if (! sameAttributes(e, lastKnown.get(e.getName()))) {
+						changed++;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while scanning " + profileDirectory, e);
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Error reading profile attributes", e.getCause());
+			}
+		}
+
+		cache.update(profileDirectory, rootModified, entries);
+		POOL.execute(cache::save);
+
+		LOGGER.info(String.format("Scanned %s: %d entries, %d new or changed, %.1f ms",
+				profileDirectory, entries.size(), changed, (System.nanoTime() - start) / 1e6));
+		return entries;
+	}
+
+	private static boolean sameAttributes(ProfileEntry e, ProfileEntry known) {
+		return known != null && Objects.equals(e.getFileKey(), known.getFileKey())
+				&& e.getLastModified() == known.getLastModified() && e.isDirectory() == known.isDirectory();
+	}
+
+	private static ProfileEntry readEntry(Path child) throws IOException {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			if (attrs.isSymbolicLink()) {
+				// Follow links to folders, same as File.isDirectory()
+				attrs = Files.readAttributes(child, BasicFileAttributes.class);
+			}
+			return ProfileEntry.fromAttributes(child, attrs);
+		} catch (NoSuchFileException e) {
+			// Deleted between listing and reading attributes
+			return null;
+		}
+	}
+
+	private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "profile-scanner-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
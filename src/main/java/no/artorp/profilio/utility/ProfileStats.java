@@ -0,0 +1,183 @@
+package no.artorp.profilio.utility;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Logger;
+
+import no.artorp.profilio.json_models.ProfileMetadataJson;
+
+/**
+ * Size on disk, number of saves and mods, and time of the newest save of a profile
+ * <p>
+ * Instances are immutable. Values read back from a sidecar are not fresh, they show
+ * what the profile looked like when last computed.
+ */
+public class ProfileStats {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	private final long size;
+	private final int saves;
+	private final int mods;
+	private final long newestSave;
+	private final long computed;
+	private final boolean fresh;
+
+	public ProfileStats(long size, int saves, int mods, long newestSave, long computed, boolean fresh) {
+		this.size = size;
+		this.saves = saves;
+		this.mods = mods;
+		this.newestSave = newestSave;
+		this.computed = computed;
+		this.fresh = fresh;
+	}
+
+	/**
+	 * Walk a profile and count its contents
+	 *
+	 * @param profileDirectory directory of the profile
+	 * @param foldersDirectory where the profile's "mods" and "saves" are, differs from
+	 *                         the profile directory for an active profile that was moved
+	 * @return fresh statistics
+	 * @throws IOException if the profile directory could not be read
+	 */
+	public static ProfileStats compute(Path profileDirectory, Path foldersDirectory) throws IOException {
+		long size = sizeOf(profileDirectory);
+		Path mods = foldersDirectory.resolve(SettingsIO.FOLDER_NAME_MODS);
+		Path saves = foldersDirectory.resolve(SettingsIO.FOLDER_NAME_SAVES);
+		if (! foldersDirectory.equals(profileDirectory)) {
+			size += sizeOf(mods) + sizeOf(saves);
+		}
+
+		int saveCount = 0;
+		long newest = 0;
+		if (Files.isDirectory(saves)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(saves, "*.zip")) {
+				for (Path save : stream) {
+					BasicFileAttributes attrs = Files.readAttributes(save, BasicFileAttributes.class);
+					if (! attrs.isRegularFile()) continue;
+					saveCount++;
+					newest = Math.max(newest, attrs.lastModifiedTime().toMillis());
+				}
+			}
+		}
+
+		// Mods are zip files or unpacked folders
+		int modCount = 0;
+		if (Files.isDirectory(mods)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(mods)) {
+				for (Path mod : stream) {
+					if (Files.isDirectory(mod) || mod.getFileName().toString().endsWith(".zip")) {
+						modCount++;
+					}
+				}
+			}
+		}
+
+		return new ProfileStats(size, saveCount, modCount, newest, System.currentTimeMillis(), true);
+	}
+
+	/**
+	 * @param meta metadata of a profile, may be {@code null}
+	 * @return the statistics last stored in the metadata, {@code null} if there are none
+	 */
+	public static ProfileStats fromMetadata(ProfileMetadataJson meta) {
+		if (meta == null || meta.statsUpdated == 0) return null;
+		return new ProfileStats(meta.size, meta.saves, meta.mods, meta.newestSave, meta.statsUpdated, false);
+	}
+
+	/**
+	 * Store these statistics in profile metadata
+	 */
+	public void toMetadata(ProfileMetadataJson meta) {
+		meta.statsUpdated = computed;
+		meta.size = size;
+		meta.saves = saves;
+		meta.mods = mods;
+		meta.newestSave = newestSave;
+	}
+
+	/**
+	 * @param other statistics to compare with, may be {@code null}
+	 * @return {@code true} if the counted values are the same, regardless of when they were computed
+	 */
+	public boolean sameValues(ProfileStats other) {
+		return other != null
+				&& size == other.size
+				&& saves == other.saves
+				&& mods == other.mods
+				&& newestSave == other.newestSave;
+	}
+
+	private static long sizeOf(Path dir) throws IOException {
+		if (! Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) return 0;
+		long[] total = new long[1];
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				String name = file.getFileName().toString();
+				// Our own sidecar is not part of the profile
+				if (attrs.isRegularFile() && ! name.startsWith(ProfileMetadata.FILE_NAME)) {
+					total[0] += attrs.size();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				if (file.equals(dir) && ! (e instanceof NoSuchFileException)) throw e;
+				// Files removed or locked while walking are skipped
+				LOGGER.fine("Skipping " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return total[0];
+	}
+
+	// ## Getters below
+
+	/**
+	 * @return total size of the profile's files, in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public int getSaves() {
+		return saves;
+	}
+
+	public int getMods() {
+		return mods;
+	}
+
+	/**
+	 * @return last modified time of the newest save, epoch milliseconds, 0 if there are no saves
+	 */
+	public long getNewestSave() {
+		return newestSave;
+	}
+
+	/**
+	 * @return when the statistics were computed, epoch milliseconds
+	 */
+	public long getComputed() {
+		return computed;
+	}
+
+	/**
+	 * @return {@code true} if computed in this run, {@code false} if read back from metadata
+	 */
+	public boolean isFresh() {
+		return fresh;
+	}
+
+}
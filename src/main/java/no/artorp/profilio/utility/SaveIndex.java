@@ -0,0 +1,528 @@
+package no.artorp.profilio.utility;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import no.artorp.profilio.json_models.SaveIndexJson;
+import no.artorp.profilio.json_models.SaveInfoJson;
+
+/**
+ * Index of save file metadata
+ * <p>
+ * A save is read through its zip central directory, and only the level header
+ * ({@code level-init.dat}, or the start of {@code level.dat0}) is decompressed.
+ * Results are cached by path, size and last modified time in the config directory,
+ * so indexing a folder of unchanged saves costs one stat per file. Entries of saves
+ * and saves folders that no longer exist are dropped when the cache is saved.
+ * <p>
+ * Register the index as a {@link WatcherListener} on a saves folder to keep it
+ * up to date, changed saves are re-read once writing has settled.
+ */
+public class SaveIndex implements WatcherListener {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	public static final String FILE_NAME = "save_index.json";
+
+	private static final String LEVEL_INIT = "level-init.dat";
+	private static final String LEVEL_DAT0 = "level.dat0";
+	private static final String LEVEL_DAT = "level.dat";
+	private static final String PREVIEW = "preview.png";
+
+	private static final int HEADER_LIMIT = 256 * 1024;
+	private static final int STRING_LIMIT = 4096;
+	private static final long SETTLE_MILLIS = 500;
+	private static final long SAVE_DELAY_MILLIS = 2000;
+
+	private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final ScheduledExecutorService POOL = Executors.newScheduledThreadPool(POOL_SIZE,
+			new java.util.concurrent.ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "save-index-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static SaveIndex instance;
+
+	private final File cacheFile;
+	private final Gson gson = new Gson();
+	private final Map<Path, SaveInfo> saves = new ConcurrentHashMap<>();
+	private final Map<Path, ScheduledFuture<?>> pendingUpdates = new ConcurrentHashMap<>();
+	private final CopyOnWriteArrayList<Consumer<Path>> changeListeners = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean savePending = new AtomicBoolean();
+	private boolean loaded = false;
+
+	public SaveIndex(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * @return the shared index, its cache is kept in the config directory
+	 */
+	public static synchronized SaveIndex get() {
+		if (instance == null) {
+			instance = new SaveIndex(FileLocations.getConfigDirectory().resolve(FILE_NAME).toFile());
+		}
+		return instance;
+	}
+
+	/**
+	 * Index all saves in a folder, reading only saves that changed since last time
+	 *
+	 * @param savesFolder a profile's "saves" folder
+	 * @return metadata of the saves, newest first
+	 * @throws IOException if the folder could not be listed
+	 */
+	public List<SaveInfo> index(Path savesFolder) throws IOException {
+		long start = System.nanoTime();
+		ensureLoaded();
+
+		List<SaveInfo> result = new ArrayList<>();
+		List<Future<SaveInfo>> pending = new ArrayList<>();
+		Set<Path> present = new HashSet<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(savesFolder)) {
+			for (Path save : stream) {
+				if (! isSave(save)) continue;
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(save, BasicFileAttributes.class);
+				} catch (NoSuchFileException e) {
+					continue; // Deleted while listing
+				}
+				if (! attrs.isRegularFile()) continue;
+				present.add(save);
+
+				SaveInfo cached = saves.get(save);
+				if (cached != null && cached.isCurrent(attrs.size(), attrs.lastModifiedTime().toMillis())) {
+					result.add(cached);
+				} else {
+					pending.add(POOL.submit(() -> readSave(save, attrs)));
+				}
+			}
+		}
+
+		for (Future<SaveInfo> f : pending) {
+			try {
+				SaveInfo info = f.get();
+				saves.put(info.getPath(), info);
+				result.add(info);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while indexing " + savesFolder, e);
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Could not index save", e.getCause());
+			}
+		}
+
+		boolean removed = saves.keySet().removeIf(p -> savesFolder.equals(p.getParent()) && ! present.contains(p));
+		if (removed || ! pending.isEmpty()) {
+			scheduleSave();
+		}
+
+		result.sort(Comparator.comparingLong(SaveInfo::getLastModified).reversed());
+		LOGGER.fine(String.format("Indexed %s: %d saves, %d read, %.1f ms",
+				savesFolder, result.size(), pending.size(), (System.nanoTime() - start) / 1e6));
+		return result;
+	}
+
+	/**
+	 * @param save path of a save file
+	 * @return cached metadata, {@code null} if not indexed
+	 */
+	public SaveInfo get(Path save) {
+		ensureLoaded();
+		return saves.get(save);
+	}
+
+	/**
+	 * @param listener called with the path of a save whose metadata changed or was
+	 *                 removed, on a background thread
+	 */
+	public void addChangeListener(Consumer<Path> listener) {
+		changeListeners.add(listener);
+	}
+
+	public void removeChangeListener(Consumer<Path> listener) {
+		changeListeners.remove(listener);
+	}
+
+	@Override
+	public void fileCreated(Path fileCreated) {
+		scheduleUpdate(fileCreated);
+	}
+
+	@Override
+	public void fileModified(Path fileModified) {
+		scheduleUpdate(fileModified);
+	}
+
+	@Override
+	public void fileDeleted(Path fileDeleted) {
+		ScheduledFuture<?> update = pendingUpdates.remove(fileDeleted);
+		if (update != null) {
+			update.cancel(false);
+		}
+		if (saves.remove(fileDeleted) != null) {
+			notifyChanged(fileDeleted);
+			scheduleSave();
+		}
+	}
+
+	/**
+	 * Re-read a save once it has not been written to for a moment
+	 */
+	private void scheduleUpdate(Path save) {
+		if (! isSave(save)) return;
+		ScheduledFuture<?> previous = pendingUpdates.put(save,
+				POOL.schedule(() -> update(save), SETTLE_MILLIS, TimeUnit.MILLISECONDS));
+		if (previous != null) {
+			previous.cancel(false);
+		}
+	}
+
+	private void update(Path save) {
+		pendingUpdates.remove(save);
+		ensureLoaded();
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(save, BasicFileAttributes.class);
+			SaveInfo cached = saves.get(save);
+			if (cached != null && cached.isCurrent(attrs.size(), attrs.lastModifiedTime().toMillis())) return;
+			saves.put(save, readSave(save, attrs));
+		} catch (NoSuchFileException e) {
+			if (saves.remove(save) == null) return;
+		} catch (IOException e) {
+			// Likely still being written, the next event will retry
+			LOGGER.fine("Could not index " + save + ": " + e);
+			return;
+		}
+		notifyChanged(save);
+		scheduleSave();
+	}
+
+	private void notifyChanged(Path save) {
+		for (Consumer<Path> listener : changeListeners) {
+			listener.accept(save);
+		}
+	}
+
+	private static boolean isSave(Path path) {
+		return path.getFileName().toString().toLowerCase().endsWith(".zip");
+	}
+
+	/**
+	 * Read the metadata of a single save
+	 *
+	 * @param save  the save file
+	 * @param attrs attributes of the save
+	 * @return metadata, header fields are {@code null} if the header could not be parsed
+	 * @throws IOException if the file is not a readable zip
+	 */
+	public static SaveInfo readSave(Path save, BasicFileAttributes attrs) throws IOException {
+		try (ZipCentralDirectory zip = ZipCentralDirectory.open(save)) {
+			int headerEntry = zip.findBaseName(LEVEL_INIT, -1);
+			if (headerEntry < 0) {
+				headerEntry = zip.findBaseName(LEVEL_DAT0, -1);
+			}
+			if (headerEntry < 0) {
+				headerEntry = zip.findBaseName(LEVEL_DAT, -1);
+			}
+			boolean hasPreview = zip.findBaseName(PREVIEW, -1) >= 0;
+
+			Header header = new Header();
+			if (headerEntry >= 0) {
+				try {
+					parseHeader(readHeaderBytes(zip.read(headerEntry, HEADER_LIMIT)), header);
+				} catch (BufferUnderflowException | IllegalArgumentException e) {
+					LOGGER.fine("Save header of " + save + " only partially read: " + e);
+				}
+			}
+
+			return new SaveInfo(save, attrs.size(), attrs.lastModifiedTime().toMillis(),
+					header.gameVersion, header.campaign, header.levelName, header.baseMod,
+					header.mods, hasPreview);
+		}
+	}
+
+	/**
+	 * Inflate the start of a level file if Factorio compressed it with zlib
+	 *
+	 * @param entry start of the level file, at most {@link #HEADER_LIMIT} bytes
+	 */
+	private static ByteBuffer readHeaderBytes(ByteBuffer entry) throws IOException {
+		int b0 = entry.remaining() > 1 ? entry.get(0) & 0xFF : -1;
+		int b1 = entry.remaining() > 1 ? entry.get(1) & 0xFF : -1;
+		if (! (b0 == 0x78 && ((b0 << 8) | b1) % 31 == 0)) {
+			return entry.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		byte[] compressed = new byte[entry.remaining()];
+		entry.get(compressed);
+		byte[] buffer = new byte[HEADER_LIMIT];
+		int length = 0;
+		Inflater inflater = new Inflater();
+		try {
+			// Only the start is at hand, inflate as much of it as possible
+			inflater.setInput(compressed);
+			while (length < buffer.length && ! inflater.finished() && ! inflater.needsInput()) {
+				length += inflater.inflate(buffer, length, buffer.length - length);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid compressed level data: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(buffer, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Parse the level header, as far as it can be read
+	 * <p>
+	 * The header starts with the game version and the campaign, level and base mod
+	 * names. The enabled mods follow a number of flags whose layout changed between
+	 * game versions, so the mod list is located by its first entry, which is always "base".
+	 * Play time is not part of the header and is not read.
+	 */
+	private static void parseHeader(ByteBuffer b, Header header) {
+		int major = b.getShort() & 0xFFFF;
+		int minor = b.getShort() & 0xFFFF;
+		int patch = b.getShort() & 0xFFFF;
+		b.getShort(); // Build
+		header.gameVersion = major + "." + minor + "." + patch;
+
+		// Since 0.17 there is an extra byte after the version, fall back to the old layout
+		int afterVersion = b.position();
+		boolean extraByte = major > 0 || minor >= 17;
+		b.position(afterVersion + (extraByte ? 1 : 0));
+		if (! readNames(b, header)) {
+			b.position(afterVersion + (extraByte ? 0 : 1));
+			if (! readNames(b, header)) return;
+		}
+
+		int modList = findModList(b, b.position());
+		if (modList < 0) return;
+		b.position(modList);
+		long count = readOptimizedUInt(b);
+		for (long i = 0; i < count; i++) {
+			String name = readString(b);
+			if (name.isEmpty() || ! isPrintable(name)) return;
+			int modMajor = readOptimizedUShort(b);
+			int modMinor = readOptimizedUShort(b);
+			int modPatch = readOptimizedUShort(b);
+			b.getInt(); // CRC
+			header.mods.add(name + " " + modMajor + "." + modMinor + "." + modPatch);
+		}
+	}
+
+	private static boolean readNames(ByteBuffer b, Header header) {
+		try {
+			String campaign = readString(b);
+			String levelName = readString(b);
+			String baseMod = readString(b);
+			if (baseMod.isEmpty() || ! isPrintable(campaign) || ! isPrintable(levelName) || ! isPrintable(baseMod)) {
+				return false;
+			}
+			header.campaign = campaign;
+			header.levelName = levelName;
+			header.baseMod = baseMod;
+			return true;
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return position of the mod count preceding the first mod, "base", or -1
+	 */
+	private static int findModList(ByteBuffer b, int from) {
+		byte[] base = { 4, 'b', 'a', 's', 'e' };
+		for (int i = Math.max(from, 1); i + base.length <= b.limit(); i++) {
+			boolean match = true;
+			for (int j = 0; j < base.length && match; j++) {
+				match = b.get(i + j) == base[j];
+			}
+			if (match && (b.get(i - 1) & 0xFF) > 0 && (b.get(i - 1) & 0xFF) < 255) {
+				return i - 1;
+			}
+		}
+		return -1;
+	}
+
+	private static long readOptimizedUInt(ByteBuffer b) {
+		int value = b.get() & 0xFF;
+		return value == 0xFF ? b.getInt() & 0xFFFFFFFFL : value;
+	}
+
+	private static int readOptimizedUShort(ByteBuffer b) {
+		int value = b.get() & 0xFF;
+		return value == 0xFF ? b.getShort() & 0xFFFF : value;
+	}
+
+	private static String readString(ByteBuffer b) {
+		long length = readOptimizedUInt(b);
+		if (length > STRING_LIMIT || length > b.remaining()) {
+			throw new IllegalArgumentException("Implausible string length " + length);
+		}
+		byte[] bytes = new byte[(int) length];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isPrintable(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (Character.isISOControl(s.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private static class Header {
+		String gameVersion;
+		String campaign;
+		String levelName;
+		String baseMod;
+		final List<String> mods = new ArrayList<>();
+	}
+
+	private synchronized void ensureLoaded() {
+		if (loaded) return;
+		loaded = true;
+		if (! cacheFile.exists()) return;
+
+		SaveIndexJson json;
+		try (Reader r = new BufferedReader(
+				new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8))) {
+			json = gson.fromJson(r, SaveIndexJson.class);
+		} catch (IOException | JsonParseException e) {
+			LOGGER.log(Level.WARNING, "Could not read save index, ignoring it", e);
+			return;
+		}
+		if (json == null) return;
+
+		for (SaveInfoJson s : json.saves) {
+			Path path = Paths.get(s.path);
+			saves.put(path, new SaveInfo(path, s.size, s.lastModified, s.gameVersion, s.campaign,
+					s.levelName, s.baseMod, s.mods, s.hasPreview));
+		}
+	}
+
+	private void scheduleSave() {
+		if (savePending.compareAndSet(false, true)) {
+			POOL.schedule(() -> {
+				savePending.set(false);
+				save();
+			}, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Drop entries of saves that are gone, listing each of their folders once
+	 */
+	private void pruneMissing() {
+		Map<Path, List<Path>> byFolder = new HashMap<>();
+		for (Path save : saves.keySet()) {
+			byFolder.computeIfAbsent(save.getParent(), k -> new ArrayList<>()).add(save);
+		}
+		int removed = 0;
+		for (Map.Entry<Path, List<Path>> entry : byFolder.entrySet()) {
+			Set<Path> present = new HashSet<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry.getKey())) {
+				for (Path child : stream) {
+					present.add(child);
+				}
+			} catch (NoSuchFileException | NotDirectoryException e) {
+				// Folder is gone, so are its saves
+			} catch (IOException e) {
+				continue; // Not readable right now, keep the entries
+			}
+			for (Path save : entry.getValue()) {
+				if (! present.contains(save) && saves.remove(save) != null) {
+					notifyChanged(save);
+					removed++;
+				}
+			}
+		}
+		if (removed > 0) {
+			LOGGER.fine(String.format("Dropped %d missing saves from the index", removed));
+		}
+	}
+
+	/**
+	 * Write the index to disk
+	 */
+	public void save() {
+		pruneMissing();
+		SaveIndexJson json = new SaveIndexJson();
+		for (SaveInfo info : saves.values()) {
+			SaveInfoJson s = new SaveInfoJson();
+			s.path = info.getPath().toString();
+			s.size = info.getSize();
+			s.lastModified = info.getLastModified();
+			s.gameVersion = info.getGameVersion();
+			s.campaign = info.getCampaign();
+			s.levelName = info.getLevelName();
+			s.baseMod = info.getBaseMod();
+			s.mods.addAll(info.getMods());
+			s.hasPreview = info.hasPreview();
+			json.saves.add(s);
+		}
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(cacheFile), StandardCharsets.UTF_8))) {
+			gson.toJson(json, writer);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not write save index " + cacheFile, e);
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package no.artorp.profilio.utility;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable metadata of a single save file
+ * <p>
+ * Produced by {@link SaveIndex} from the save's zip central directory and level
+ * header. Fields that could not be read are {@code null}
+ */
+public class SaveInfo {
+
+	private final Path path;
+	private final long size;
+	private final long lastModified;
+	private final String gameVersion;
+	private final String campaign;
+	private final String levelName;
+	private final String baseMod;
+	private final List<String> mods;
+	private final boolean hasPreview;
+
+	public SaveInfo(Path path, long size, long lastModified, String gameVersion, String campaign,
+			String levelName, String baseMod, List<String> mods, boolean hasPreview) {
+		this.path = path;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.gameVersion = gameVersion;
+		this.campaign = campaign;
+		this.levelName = levelName;
+		this.baseMod = baseMod;
+		this.mods = mods == null
+				? Collections.<String>emptyList()
+				: Collections.unmodifiableList(new ArrayList<>(mods));
+		this.hasPreview = hasPreview;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return file name without the .zip extension
+	 */
+	public String getName() {
+		String name = path.getFileName().toString();
+		return name.toLowerCase().endsWith(".zip") ? name.substring(0, name.length() - 4) : name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return version of the game that wrote the save, ie "1.1.87"
+	 */
+	public String getGameVersion() {
+		return gameVersion;
+	}
+
+	public String getCampaign() {
+		return campaign;
+	}
+
+	public String getLevelName() {
+		return levelName;
+	}
+
+	public String getBaseMod() {
+		return baseMod;
+	}
+
+	/**
+	 * @return enabled mods as "name version", base included
+	 */
+	public List<String> getMods() {
+		return mods;
+	}
+
+	/**
+	 * @return {@code true} if the save contains a preview.png
+	 */
+	public boolean hasPreview() {
+		return hasPreview;
+	}
+
+	/**
+	 * @return {@code true} if this is metadata of the file as it is now
+	 */
+	public boolean isCurrent(long size, long lastModified) {
+		return this.size == size && this.lastModified == lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%s, %s, %d mods)", getName(), gameVersion, levelName, mods.size());
+	}
+
+}
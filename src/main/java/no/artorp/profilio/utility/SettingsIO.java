@@ -3,25 +3,35 @@ package no.artorp.profilio.utility;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.Writer;
 import java.lang.invoke.MethodHandles;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.control.Alert;
@@ -37,6 +47,14 @@ import no.artorp.profilio.json_models.SettingsJson;
 
 /**
  * Handles loading and saving of settings
+ * <p>
+ * {@link #saveRegistry(Registry)} is write-behind: the registry is copied right away,
+ * but written after {@link #WRITE_DELAY} on a background thread, so a burst of changes
+ * ends up as a single write. The file is replaced atomically, a crash leaves either
+ * the old or the new settings. Call {@link #flush()} before exiting.
+ * <p>
+ * Settings are streamed to and from the file, never held as one big string, so
+ * startup stays quick with thousands of profiles.
  */
 public class SettingsIO {
 	
@@ -45,55 +63,278 @@ public class SettingsIO {
 	public static final String FOLDER_NAME_MODS = "mods";
 	public static final String FOLDER_NAME_SAVES = "saves";
 	
+	/** Milliseconds to wait for more changes before writing */
+	public static final long WRITE_DELAY = 250;
+	
+	private static final Gson GSON = new GsonBuilder()
+			.serializeNulls()
+			.create();
+	private static final TypeAdapter<SettingsJson> SETTINGS_ADAPTER = GSON.getAdapter(SettingsJson.class);
+	private static final TypeAdapter<FactorioInstallationsJson> INSTALLATION_ADAPTER =
+			GSON.getAdapter(FactorioInstallationsJson.class);
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
 	private File settingsFile;
+	
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "settings-writer");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/** Held while taking and writing a snapshot, keeps writes in order */
+	private final Object writeLock = new Object();
+	
+	// Guarded by this
+	private SettingsJson pending;
+	private CompletableFuture<Void> pendingSaved;
+	private int pendingRequests = 0;
+	private long savesRequested = 0;
+	private long writes = 0;
 
 	public SettingsIO(File settingsFile) {
 		this.settingsFile = settingsFile;
 	}
 	
+	/**
+	 * Write settings now, replacing the settings file atomically
+	 * 
+	 * @param settingsObject settings to write
+	 * @throws IOException if the settings could not be written, the old file is left untouched
+	 */
 	public void saveSettings(SettingsJson settingsObject) throws IOException {
 		if (settingsObject == null) {
 			throw new IllegalArgumentException("Settings object must be initialized.");
 		}
 
-		Gson gson = new GsonBuilder()
-				.serializeNulls()
-				.setPrettyPrinting()
-				.create();
-		String json_string = gson.toJson(settingsObject);
-		try (Writer writer = new BufferedWriter(
-				new OutputStreamWriter(new FileOutputStream(settingsFile), StandardCharsets.UTF_8))) {
-			writer.write(json_string);
+		Path target = settingsFile.toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		synchronized (writeLock) {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				// Not closed here, that would close the channel before it is forced
+				Writer out = new BufferedWriter(
+						Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1), BUFFER_SIZE);
+				JsonWriter writer = new JsonWriter(out);
+				writer.setIndent("  ");
+				writer.setSerializeNulls(true);
+				SETTINGS_ADAPTER.write(writer, settingsObject);
+				writer.flush();
+				channel.force(true);
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+	
+	/**
+	 * Schedule a save of the registry
+	 * <p>
+	 * Must be called on the JavaFX thread, the registry is copied before returning.
+	 * Saves requested before the write starts are merged into it.
+	 * 
+	 * @param r registry to save
+	 * @return completes when settings including this change are on disk, or
+	 *         exceptionally if the write failed (the user has been notified)
+	 */
+	public CompletableFuture<Void> saveRegistry(Registry r) {
+		SettingsJson s = settingsFromRegistry(r);
+		synchronized (this) {
+			savesRequested++;
+			pendingRequests++;
+			pending = s;
+			if (pendingSaved == null) {
+				pendingSaved = new CompletableFuture<>();
+				writer.schedule(this::writePending, WRITE_DELAY, TimeUnit.MILLISECONDS);
+			}
+			return pendingSaved;
 		}
 	}
 	
-	public void saveRegistry(Registry r) {
-		try {
-			SettingsJson s = settingsFromRegistry(r);
-			saveSettings(s);
-		} catch (IOException e) {
-			String errorMsg = "There was an error while saving settings.json";
-			LOGGER.log(Level.SEVERE, errorMsg, e);
-			Alert alert = new ExceptionDialog(e, errorMsg);
-			alert.showAndWait();
+	/**
+	 * Write any scheduled save on the calling thread, waits for a write in progress
+	 */
+	public void flush() {
+		writePending();
+		LOGGER.info(String.format("Settings saved %d times for %d requests, %d coalesced",
+				getWrites(), getSavesRequested(), getSavesCoalesced()));
+	}
+	
+	public synchronized long getSavesRequested() {
+		return savesRequested;
+	}
+	
+	public synchronized long getWrites() {
+		return writes;
+	}
+	
+	/**
+	 * @return number of requested saves that were merged into another write
+	 */
+	public synchronized long getSavesCoalesced() {
+		return savesRequested - writes - pendingRequests;
+	}
+	
+	private void writePending() {
+		synchronized (writeLock) {
+			SettingsJson s;
+			CompletableFuture<Void> saved;
+			int requests;
+			synchronized (this) {
+				s = pending;
+				saved = pendingSaved;
+				requests = pendingRequests;
+				pending = null;
+				pendingSaved = null;
+				pendingRequests = 0;
+				if (s != null) writes++;
+			}
+			if (s == null) return; // Already written by flush
+			try {
+				long start = System.nanoTime();
+				saveSettings(s);
+				LOGGER.fine(String.format("Saved settings, %d change(s), %d profile mappings in %.1f ms",
+						requests, s.profileToFactorioName.size(), (System.nanoTime() - start) / 1e6));
+				saved.complete(null);
+			} catch (IOException e) {
+				String errorMsg = "There was an error while saving settings.json";
+				LOGGER.log(Level.SEVERE, errorMsg, e);
+				saved.completeExceptionally(e);
+				Platform.runLater(() -> {
+					Alert alert = new ExceptionDialog(e, errorMsg);
+					alert.showAndWait();
+				});
+			}
 		}
 	}
 	
 	public SettingsJson loadSettings() throws IOException {
-		// Read the settings file
-		StringBuilder sb = new StringBuilder();
-		try (Reader r = new InputStreamReader(new FileInputStream(settingsFile), StandardCharsets.UTF_8);
-				BufferedReader br = new BufferedReader(r)) {
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				sb.append(line).append('\n');
+		try (JsonReader reader = openReader()) {
+			SettingsJson settings = SETTINGS_ADAPTER.read(reader);
+			if (settings == null) {
+				throw new IOException("Settings file is empty");
 			}
+			return settings;
 		}
-		String json_string = sb.toString();
-		// Parse settings json string into POJO object
-		Gson gson = new Gson();
-		SettingsJson settings = gson.fromJson(json_string, SettingsJson.class);
-		return settings;
+	}
+	
+	/**
+	 * Read the settings file straight into the registry
+	 * <p>
+	 * Same result as {@link #loadSettings()} followed by {@link #putIntoRegistry(SettingsJson, Registry)},
+	 * but in a single pass over the file, without building the intermediate settings object.
+	 * 
+	 * @param myRegistry registry to populate
+	 * @throws IOException if the file could not be read or parsed, the registry is then left untouched
+	 */
+	public void loadRegistry(Registry myRegistry) throws IOException {
+		String configPath = null;
+		String factorioDataPath = null;
+		String factorioProfilesPath = null;
+		int moveMethod = 0;
+		boolean closeOnLaunch = false;
+		boolean pollForChanges = false;
+		boolean hasInitialized = false;
+		String activeProfilePath = null;
+		ObservableList<FactorioInstallation> factorioInstallations = FXCollections.observableArrayList();
+		ObservableList<KeyValuePair<String, String>> profileToFactorioName = FXCollections.observableArrayList();
+		long start = System.nanoTime();
+		
+		try (JsonReader reader = openReader()) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				}
+				switch (name) {
+				case "configPath": configPath = reader.nextString(); break;
+				case "factorioDataPath": factorioDataPath = reader.nextString(); break;
+				case "factorioProfilesPath": factorioProfilesPath = reader.nextString(); break;
+				case "moveMethod": moveMethod = reader.nextInt(); break;
+				case "closeOnLaunch": closeOnLaunch = reader.nextBoolean(); break;
+				case "pollForChanges": pollForChanges = reader.nextBoolean(); break;
+				case "hasInitialized": hasInitialized = reader.nextBoolean(); break;
+				case "activeProfilePath": activeProfilePath = reader.nextString(); break;
+				case "factorioInstallations":
+					reader.beginArray();
+					while (reader.hasNext()) {
+						factorioInstallations.add(toInstallation(INSTALLATION_ADAPTER.read(reader)));
+					}
+					reader.endArray();
+					break;
+				case "profileToFactorioName":
+					reader.beginArray();
+					while (reader.hasNext()) {
+						profileToFactorioName.add(readProfileMapping(reader));
+					}
+					reader.endArray();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch (IllegalStateException | NumberFormatException e) {
+			throw new IOException("Malformed settings file " + settingsFile, e);
+		}
+		LOGGER.fine(String.format("Read settings, %d profile mappings in %.1f ms",
+				profileToFactorioName.size(), (System.nanoTime() - start) / 1e6));
+		
+		// Put in registry
+		myRegistry.setConfigPath(Paths.get(configPath));
+		myRegistry.setFactorioDataPath(Paths.get(factorioDataPath));
+		myRegistry.setFactorioProfilesPath(Paths.get(factorioProfilesPath));
+		myRegistry.setMoveMethod(moveMethod);
+		myRegistry.setCloseOnLaunch(closeOnLaunch);
+		myRegistry.setPollForChanges(pollForChanges);
+		myRegistry.setHasInitialized(hasInitialized);
+		myRegistry.setActiveProfilePath(activeProfilePath == null ? null : Paths.get(activeProfilePath));
+		myRegistry.setFactorioInstallations(factorioInstallations);
+		myRegistry.setProfileToFactorioName(profileToFactorioName);
+	}
+	
+	private JsonReader openReader() throws IOException {
+		BufferedReader in = new BufferedReader(Channels.newReader(
+				FileChannel.open(settingsFile.toPath(), StandardOpenOption.READ),
+				StandardCharsets.UTF_8.newDecoder(), -1), BUFFER_SIZE);
+		return new JsonReader(in);
+	}
+	
+	private static KeyValuePair<String, String> readProfileMapping(JsonReader reader) throws IOException {
+		String profileName = null;
+		String factorioName = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+			} else if (name.equals("profileName")) {
+				profileName = reader.nextString();
+			} else if (name.equals("factorioName")) {
+				factorioName = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new KeyValuePair<String, String>(profileName, factorioName);
+	}
+	
+	private static FactorioInstallation toInstallation(FactorioInstallationsJson element) {
+		FactorioInstallation fi = new FactorioInstallation();
+		fi.setName(element.customName);
+		fi.setPath(Paths.get(element.path));
+		fi.setUseCustomConfigPath(element.useCustomConfigPath);
+		fi.setCustomConfigPath(element.customConfigPath == null
+				? null
+				: Paths.get(element.customConfigPath));
+		return fi;
 	}
 
 	public File getSettingsFile() {
@@ -111,20 +352,14 @@ public class SettingsIO {
 		Path factorioProfilesPath = Paths.get(settings.factorioProfilesPath);
 		Integer moveMethod = settings.moveMethod;
 		Boolean closeOnLaunch = settings.closeOnLaunch;
+		Boolean pollForChanges = settings.pollForChanges;
 		Boolean hasInitialized = settings.hasInitialized;
 		Path activeProfilePath = settings.activeProfilePath == null ? null : Paths.get(settings.activeProfilePath);
 		
 		ObservableList<FactorioInstallation> factorioInstallations = FXCollections.observableArrayList();
 		List<FactorioInstallationsJson> installations = settings.factorioInstallations;
 		for (FactorioInstallationsJson element : installations) {
-			FactorioInstallation fi = new FactorioInstallation();
-			fi.setName(element.customName);
-			fi.setPath(Paths.get(element.path));
-			fi.setUseCustomConfigPath(element.useCustomConfigPath);
-			fi.setCustomConfigPath(element.customConfigPath == null
-					? null
-					: Paths.get(element.customConfigPath));
-			factorioInstallations.add(fi);
+			factorioInstallations.add(toInstallation(element));
 		}
 		
 		ObservableList<KeyValuePair<String, String>> profileToFactorioName = FXCollections.observableArrayList();
@@ -142,6 +377,7 @@ public class SettingsIO {
 		myRegistry.setFactorioProfilesPath(factorioProfilesPath);
 		myRegistry.setMoveMethod(moveMethod);
 		myRegistry.setCloseOnLaunch(closeOnLaunch);
+		myRegistry.setPollForChanges(pollForChanges);
 		myRegistry.setHasInitialized(hasInitialized);
 		myRegistry.setActiveProfilePath(activeProfilePath);
 		myRegistry.setFactorioInstallations(factorioInstallations);
@@ -155,6 +391,7 @@ public class SettingsIO {
 		Path factorioProfilesPath = myRegistry.getFactorioProfilesPath();
 		Integer moveMethod = myRegistry.getMoveMethod();
 		Boolean closeOnLaunch = myRegistry.getCloseOnLaunch();
+		Boolean pollForChanges = myRegistry.getPollForChanges();
 		Boolean hasInitialized = myRegistry.getHasInitialized();
 		Path activeProfilePath = myRegistry.getActiveProfilePath();
 		List<FactorioInstallation> factorioInstallations = myRegistry.getFactorioInstallations();
@@ -171,6 +408,7 @@ public class SettingsIO {
 		settings.factorioProfilesPath = factorioProfilesPath.toString();
 		settings.moveMethod = moveMethod.intValue();
 		settings.closeOnLaunch = closeOnLaunch.booleanValue();
+		settings.pollForChanges = pollForChanges.booleanValue();
 		settings.hasInitialized = hasInitialized.booleanValue();
 		settings.activeProfilePath = activeProfilePath == null ? null : activeProfilePath.toString();
 		
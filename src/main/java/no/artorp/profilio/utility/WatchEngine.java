@@ -0,0 +1,302 @@
+package no.artorp.profilio.utility;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One watch service and one thread serving every watched root
+ * <p>
+ * Roots are {@link DirectoryWatcher}s, and can be added and removed at any time
+ * without touching the others. Events of a key go to every root that registered
+ * its directory, so overlapping roots share a key. Roots that poll are served from
+ * the same thread, between events. Roots are started and released on that thread
+ * as well: adding and removing only queue the root, and the engine picks it up
+ * within {@link #WAKE_INTERVAL}. The engine lock only guards these queues, listing,
+ * polling and listener callbacks run without it, so a slow root never holds up
+ * the thread adding or removing another.
+ */
+public class WatchEngine implements Runnable {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** Longest the engine waits for events before looking for roots to add or remove, in milliseconds */
+	public static final long WAKE_INTERVAL = 200;
+
+	private static WatchEngine instance;
+
+	private final WatchService watcher;
+
+	// Engine thread only
+	private final Map<WatchKey, List<DirectoryWatcher>> owners = new HashMap<>();
+
+	// Guarded by this
+	private final Set<DirectoryWatcher> roots = new LinkedHashSet<>();
+	private final Set<DirectoryWatcher> starting = new LinkedHashSet<>();
+	private final Set<DirectoryWatcher> releasing = new LinkedHashSet<>();
+	private DirectoryWatcher startingNow;
+	private Thread thread;
+
+	public WatchEngine() throws IOException {
+		this.watcher = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * @return the shared engine, its thread is started with the first root
+	 */
+	public static synchronized WatchEngine get() {
+		if (instance == null) {
+			try {
+				instance = new WatchEngine();
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not create watch service", e);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Start watching a root, returns at once. Its existing directories are listed
+	 * once on the engine thread, a failure to do so is logged
+	 *
+	 * @param root watcher with its listeners added
+	 * @throws IOException if the root is not a directory
+	 */
+	public synchronized void addRoot(DirectoryWatcher root) throws IOException {
+		if (roots.contains(root) || starting.contains(root) || root == startingNow) return;
+		if (! Files.isDirectory(root.getRoot())) {
+			throw new NotDirectoryException(root.getRoot().toString());
+		}
+		root.attach(this);
+		starting.add(root);
+		if (thread == null) {
+			thread = new Thread(this, "profilio-watcher");
+			thread.setDaemon(true);
+			thread.start();
+			Globals.THREADS.add(thread);
+		}
+	}
+
+	/**
+	 * Stop watching a root, keys shared with other roots are kept. Its keys are
+	 * released on the engine thread, a callback already running may still finish
+	 */
+	public synchronized void removeRoot(DirectoryWatcher root) {
+		if (starting.remove(root)) {
+			root.stop(); // Never started, nothing registered
+			return;
+		}
+		if (roots.remove(root) || root == startingNow) {
+			releasing.add(root);
+		}
+	}
+
+	/**
+	 * Release the roots removed and start the roots added since last time, on the
+	 * engine thread. Directories are registered without holding the engine lock, so
+	 * roots can be added and removed meanwhile
+	 */
+	private void updateRoots() {
+		List<DirectoryWatcher> removed;
+		synchronized (this) {
+			removed = new ArrayList<>(releasing);
+			releasing.clear();
+		}
+		for (DirectoryWatcher root : removed) {
+			release(root);
+			LOGGER.info(String.format("Stopped watching %s, %d keys", root.getRoot(), owners.size()));
+		}
+
+		while (true) {
+			DirectoryWatcher root;
+			synchronized (this) {
+				if (starting.isEmpty()) return;
+				root = starting.iterator().next();
+				starting.remove(root);
+				startingNow = root;
+			}
+
+			IOException error = null;
+			try {
+				root.start(this);
+			} catch (IOException e) {
+				error = e;
+			}
+
+			boolean cancelled;
+			synchronized (this) {
+				startingNow = null;
+				cancelled = releasing.remove(root);
+				if (error == null && ! cancelled) {
+					roots.add(root);
+				}
+			}
+			if (error != null || cancelled) {
+				release(root);
+				if (error != null) {
+					LOGGER.log(Level.WARNING, "Could not watch " + root.getRoot(), error);
+				}
+				continue;
+			}
+			LOGGER.info(String.format("Watching %s, %d keys", root.getRoot(), owners.size()));
+		}
+	}
+
+	private synchronized boolean isWatched(DirectoryWatcher root) {
+		return roots.contains(root);
+	}
+
+	private void release(DirectoryWatcher root) {
+		releaseKeys(root, root.stop());
+	}
+
+	/**
+	 * Drop a root from the owners of keys, keys without owners are cancelled
+	 */
+	private void releaseKeys(DirectoryWatcher root, List<WatchKey> keys) {
+		for (WatchKey key : keys) {
+			List<DirectoryWatcher> list = owners.get(key);
+			if (list == null) continue;
+			list.remove(root);
+			if (list.isEmpty()) {
+				owners.remove(key);
+				key.cancel();
+			}
+		}
+	}
+
+	/**
+	 * @return the roots currently watched
+	 */
+	public synchronized List<DirectoryWatcher> getRoots() {
+		return new ArrayList<>(roots);
+	}
+
+	/**
+	 * Register a directory for a root, called by the root from the engine thread
+	 */
+	WatchKey register(DirectoryWatcher root, Path dir) throws IOException {
+		WatchKey key = dir.register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		List<DirectoryWatcher> list = owners.get(key);
+		if (list == null) {
+			list = new ArrayList<>(1);
+			owners.put(key, list);
+		}
+		if (! list.contains(root)) {
+			list.add(root);
+		}
+		return key;
+	}
+
+	@Override
+	public void run() {
+		LOGGER.info("Watch engine started");
+		try {
+			processEvents();
+		} catch (InterruptedException e) {
+			LOGGER.info("Watcher interrupted, exiting...");
+		}
+		LOGGER.info("Watch engine stopped");
+	}
+
+	private void processEvents() throws InterruptedException {
+		while (! Thread.currentThread().isInterrupted()) {
+			updateRoots();
+			List<DirectoryWatcher> active = getRoots();
+
+			long due = Long.MAX_VALUE;
+			for (DirectoryWatcher root : active) {
+				due = Math.min(due, Math.min(root.getBatchDue(), root.getPollDue()));
+			}
+
+			// Wait for key to be signaled, the next batch or poll to be due, or roots to change
+			long wait = Math.min(WAKE_INTERVAL, due - System.currentTimeMillis());
+			WatchKey key = wait > 0 ? watcher.poll(wait, TimeUnit.MILLISECONDS) : watcher.poll();
+
+			if (key != null) {
+				dispatch(key);
+			}
+			long now = System.currentTimeMillis();
+			for (DirectoryWatcher root : active) {
+				if (! isWatched(root)) continue; // Removed meanwhile
+				if (root.getPollDue() <= now) {
+					poll(root);
+				}
+				if (root.getBatchDue() <= now) {
+					flush(root);
+				}
+			}
+		}
+	}
+
+	private void dispatch(WatchKey key) {
+		List<WatchEvent<?>> events = key.pollEvents();
+		List<DirectoryWatcher> list = owners.get(key);
+		if (list == null) {
+			key.cancel(); // Root removed while events were queued
+			return;
+		}
+		List<DirectoryWatcher> targets = new ArrayList<>(list);
+		for (DirectoryWatcher root : targets) {
+			if (! isWatched(root)) continue; // Removed, released on the next round
+			try {
+				root.processEvents(key, events);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.SEVERE, "Error handling events of " + root.getRoot(), e);
+			}
+		}
+
+		// Reset key and let the roots deal with directories no longer accessible
+		if (! key.reset()) {
+			owners.remove(key);
+			for (DirectoryWatcher root : targets) {
+				if (! root.keyInvalidated(key)) {
+					LOGGER.info("Nothing left to watch in " + root.getRoot());
+					synchronized (this) {
+						if (! roots.remove(root)) continue; // Removed meanwhile, released with the others
+					}
+					release(root);
+				}
+			}
+		}
+	}
+
+	private void poll(DirectoryWatcher root) {
+		try {
+			if (root.poll()) {
+				// Switched to polling, native events are no longer needed
+				releaseKeys(root, root.releaseKeys());
+			}
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Error polling " + root.getRoot(), e);
+		}
+	}
+
+	private void flush(DirectoryWatcher root) {
+		try {
+			root.flushBatch();
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Error delivering changes of " + root.getRoot(), e);
+		}
+	}
+
+}
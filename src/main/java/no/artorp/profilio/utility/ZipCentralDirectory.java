@@ -0,0 +1,463 @@
+package no.artorp.profilio.utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads single entries of a zip file through its central directory
+ * <p>
+ * Saves and mods are large zip files of which only a few small entries are of
+ * interest. Unlike {@link ZipFile}, no object is created per entry: the central
+ * directory is memory-mapped (or read into a reused buffer when small), and entries
+ * are found by an index of {@code int} positions hashed by base name. An entry is
+ * inflated into a per-thread buffer with a reused {@link Inflater}.
+ * <p>
+ * Entries are identified by handles, {@code -1} when not found. Instances are not
+ * thread safe, and must be closed to release the mapping.
+ */
+public class ZipCentralDirectory implements Closeable {
+
+	public static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** Central directories larger than this are mapped, smaller ones are read */
+	public static final int MAP_THRESHOLD = 256 * 1024;
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int CEN_SIGNATURE = 0x02014b50;
+	private static final int LOC_SIGNATURE = 0x04034b50;
+	private static final int EOCD_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int CEN_SIZE = 46;
+	private static final int LOC_SIZE = 30;
+	private static final int MAX_COMMENT = 0xFFFF;
+	private static final long MASK_32 = 0xFFFFFFFFL;
+	/** Positions in a central directory record of the fields that zip64 may extend */
+	private static final int[] ZIP64_FIELDS = { 24, 20, 42 };
+
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	private final Path path;
+	private final FileChannel channel;
+	private final Buffers buffers = BUFFERS.get();
+	private ByteBuffer cen;
+	private final int count;
+	/** Open addressed, slot holds position in {@link #cen} plus one, 0 if empty */
+	private final int[] index;
+
+	/**
+	 * Reused for each zip opened on a thread
+	 */
+	private static class Buffers {
+		final Inflater inflater = new Inflater(true);
+		final ByteBuffer small = ByteBuffer.allocate(Math.max(1024, LOC_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer cen = ByteBuffer.allocate(0);
+		boolean cenInUse = false;
+		byte[] input = new byte[64 * 1024];
+		byte[] output = new byte[0];
+		byte[] name = new byte[256];
+	}
+
+	private ZipCentralDirectory(Path path, FileChannel channel) throws IOException {
+		this.path = path;
+		this.channel = channel;
+
+		long size = channel.size();
+		long eocd = findEndOfCentralDirectory(size);
+		ByteBuffer b = buffers.small;
+		long cenOffset = b.getInt(16) & MASK_32;
+		long cenSize = b.getInt(12) & MASK_32;
+		long entries = b.getShort(10) & 0xFFFF;
+
+		if ((cenOffset == MASK_32 || cenSize == MASK_32 || entries == 0xFFFF) && eocd >= ZIP64_LOCATOR_SIZE) {
+			readFully(b, eocd - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+			if (b.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+				readFully(b, b.getLong(8), 56);
+				if (b.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+					throw new ZipException("Invalid zip64 end of central directory in " + path);
+				}
+				entries = b.getLong(32);
+				cenSize = b.getLong(40);
+				cenOffset = b.getLong(48);
+			}
+		}
+		if (cenSize > Integer.MAX_VALUE || cenOffset + cenSize > size || entries > Integer.MAX_VALUE) {
+			throw new ZipException("Central directory out of range in " + path);
+		}
+
+		if (cenSize > MAP_THRESHOLD) {
+			cen = channel.map(FileChannel.MapMode.READ_ONLY, cenOffset, cenSize).order(ByteOrder.LITTLE_ENDIAN);
+		} else if (buffers.cenInUse) {
+			// Another zip is open on this thread
+			cen = ByteBuffer.allocate((int) cenSize).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(cen, cenOffset, (int) cenSize);
+		} else {
+			if (buffers.cen.capacity() < cenSize) {
+				buffers.cen = ByteBuffer.allocate((int) cenSize).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			cen = buffers.cen;
+			readFully(cen, cenOffset, (int) cenSize);
+			buffers.cenInUse = true;
+		}
+
+		this.count = (int) entries;
+		this.index = new int[Integer.highestOneBit(Math.max(count, 1) * 2) << 1];
+		buildIndex();
+	}
+
+	/**
+	 * @param zip zip file to open
+	 * @return the central directory of the zip
+	 * @throws IOException if the file could not be read or is not a zip
+	 */
+	public static ZipCentralDirectory open(Path zip) throws IOException {
+		long start = System.nanoTime();
+		FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ);
+		try {
+			ZipCentralDirectory directory = new ZipCentralDirectory(zip, channel);
+			LOGGER.fine(() -> String.format("Read central directory of %s, %d entries in %.2f ms",
+					zip.getFileName(), directory.size(), (System.nanoTime() - start) / 1e6));
+			return directory;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param name full name of an entry
+	 * @return handle of the entry, -1 if there is none
+	 */
+	public int find(String name) {
+		int length = encode(name);
+		int base = baseStart(buffers.name, 0, length);
+		int mask = index.length - 1;
+		for (int slot = hash(buffers.name, base, length) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+			int pos = index[slot] - 1;
+			int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+			if (nameLength == length && nameEquals(pos + CEN_SIZE, buffers.name, 0, length)) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find an entry by the last part of its name, e.g. {@code level.dat0} for {@code My save/level.dat0}
+	 *
+	 * @param baseName name after the last '/'
+	 * @param depth    number of folders the entry must be in, -1 for any
+	 * @return handle of the first such entry in the central directory, -1 if there is none
+	 */
+	public int findBaseName(String baseName, int depth) {
+		int length = encode(baseName);
+		int mask = index.length - 1;
+		for (int slot = hash(buffers.name, 0, length) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+			int pos = index[slot] - 1;
+			int nameStart = pos + CEN_SIZE;
+			int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+			if (nameLength < length) continue;
+			int base = nameLength - length;
+			if (base > 0 && cen.get(nameStart + base - 1) != '/') continue;
+			if (! nameEquals(nameStart + base, buffers.name, 0, length)) continue;
+			if (depth >= 0 && slashes(nameStart, base) != depth) continue;
+			return pos;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param entry handle of an entry
+	 * @return full name of the entry
+	 */
+	public String getName(int entry) {
+		int nameLength = cen.getShort(entry + 28) & 0xFFFF;
+		byte[] bytes = new byte[nameLength];
+		for (int i = 0; i < nameLength; i++) {
+			bytes[i] = cen.get(entry + CEN_SIZE + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param entry handle of an entry
+	 * @return uncompressed size of the entry
+	 */
+	public long getSize(int entry) {
+		return zip64Field(entry, 0);
+	}
+
+	/**
+	 * @param entry handle of an entry
+	 * @return compressed size of the entry
+	 */
+	public long getCompressedSize(int entry) {
+		return zip64Field(entry, 1);
+	}
+
+	/**
+	 * Inflate the start of an entry
+	 * <p>
+	 * The returned buffer is shared by all zips opened on this thread, and is
+	 * overwritten by the next call. Copy what should be kept.
+	 *
+	 * @param entry handle of an entry
+	 * @param limit maximum number of bytes to read
+	 * @return buffer from position 0 to the number of bytes read, at most {@code limit}
+	 * @throws IOException if the entry could not be read or inflated
+	 */
+	public ByteBuffer read(int entry, int limit) throws IOException {
+		int method = cen.getShort(entry + 10) & 0xFFFF;
+		long size = getSize(entry);
+		long compressedSize = getCompressedSize(entry);
+		long localOffset = zip64Field(entry, 2);
+
+		ByteBuffer b = buffers.small;
+		readFully(b, localOffset, LOC_SIZE);
+		if (b.getInt(0) != LOC_SIGNATURE) {
+			throw new ZipException("Invalid local header for " + getName(entry) + " in " + path);
+		}
+		long dataStart = localOffset + LOC_SIZE + (b.getShort(26) & 0xFFFF) + (b.getShort(28) & 0xFFFF);
+
+		int wanted = (int) Math.min(limit, size);
+		if (buffers.output.length < wanted) {
+			buffers.output = new byte[wanted];
+		}
+		byte[] output = buffers.output;
+
+		int length = 0;
+		if (method == METHOD_STORED) {
+			ByteBuffer out = ByteBuffer.wrap(output, 0, wanted);
+			while (out.hasRemaining()) {
+				int read = channel.read(out, dataStart + out.position());
+				if (read < 0) throw new ZipException("Truncated entry " + getName(entry) + " in " + path);
+			}
+			length = wanted;
+		} else if (method == METHOD_DEFLATED) {
+			Inflater inflater = buffers.inflater;
+			inflater.reset();
+			long position = dataStart;
+			long end = dataStart + compressedSize;
+			try {
+				while (length < wanted && ! inflater.finished()) {
+					if (inflater.needsInput()) {
+						if (position >= end) break;
+						int chunk = (int) Math.min(buffers.input.length, end - position);
+						ByteBuffer in = ByteBuffer.wrap(buffers.input, 0, chunk);
+						while (in.hasRemaining()) {
+							if (channel.read(in, position + in.position()) < 0) {
+								throw new ZipException("Truncated entry " + getName(entry) + " in " + path);
+							}
+						}
+						position += chunk;
+						inflater.setInput(buffers.input, 0, chunk);
+					}
+					length += inflater.inflate(output, length, wanted - length);
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException("Invalid compressed data in " + getName(entry) + " in " + path
+						+ ": " + e.getMessage());
+			}
+		} else {
+			throw new ZipException("Unsupported compression method " + method + " for "
+					+ getName(entry) + " in " + path);
+		}
+		return ByteBuffer.wrap(output, 0, length).slice();
+	}
+
+	/**
+	 * Release the file and the mapping, handles and buffers from {@link #read(int, int)}
+	 * must not be used after this
+	 */
+	@Override
+	public void close() throws IOException {
+		ByteBuffer closing = cen;
+		cen = null;
+		if (closing == buffers.cen) {
+			buffers.cenInUse = false;
+		} else if (closing instanceof MappedByteBuffer) {
+			MappedBuffers.unmap((MappedByteBuffer) closing);
+		}
+		channel.close();
+	}
+
+	private long findEndOfCentralDirectory(long size) throws IOException {
+		ByteBuffer b = buffers.small;
+		if (size < EOCD_SIZE) {
+			throw new ZipException("Not a zip file: " + path);
+		}
+		// Without a comment, the record is the last 22 bytes
+		readFully(b, size - EOCD_SIZE, EOCD_SIZE);
+		if (b.getInt(0) == EOCD_SIGNATURE) {
+			return size - EOCD_SIZE;
+		}
+		long start = Math.max(0, size - EOCD_SIZE - MAX_COMMENT);
+		ByteBuffer tail = ByteBuffer.allocate((int) (size - start)).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(tail, start, tail.capacity());
+		for (int i = tail.capacity() - EOCD_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == EOCD_SIGNATURE) {
+				b.clear();
+				for (int j = 0; j < EOCD_SIZE; j++) {
+					b.put(j, tail.get(i + j));
+				}
+				return start + i;
+			}
+		}
+		throw new ZipException("Not a zip file: " + path);
+	}
+
+	private void buildIndex() throws ZipException {
+		int mask = index.length - 1;
+		int pos = 0;
+		int limit = cen.limit();
+		for (int i = 0; i < count; i++) {
+			if (pos + CEN_SIZE > limit || cen.getInt(pos) != CEN_SIGNATURE) {
+				throw new ZipException("Invalid central directory in " + path);
+			}
+			int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+			int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+			int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+			int nameStart = pos + CEN_SIZE;
+			int base = nameStart;
+			for (int j = nameStart + nameLength - 1; j >= nameStart; j--) {
+				if (cen.get(j) == '/') {
+					base = j + 1;
+					break;
+				}
+			}
+			int h = 0x811C9DC5;
+			for (int j = base; j < nameStart + nameLength; j++) {
+				h = (h ^ (cen.get(j) & 0xFF)) * 0x01000193;
+			}
+			int slot = h & mask;
+			while (index[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			index[slot] = pos + 1;
+			pos = nameStart + nameLength + extraLength + commentLength;
+		}
+	}
+
+	/**
+	 * Read a size or offset, from the zip64 extra field if it does not fit the record
+	 *
+	 * @param field 0 for size, 1 for compressed size, 2 for local header offset
+	 */
+	private long zip64Field(int entry, int field) {
+		long value = cen.getInt(entry + ZIP64_FIELDS[field]) & MASK_32;
+		if (value != MASK_32) return value;
+
+		int nameLength = cen.getShort(entry + 28) & 0xFFFF;
+		int extraLength = cen.getShort(entry + 30) & 0xFFFF;
+		int pos = entry + CEN_SIZE + nameLength;
+		int end = pos + extraLength;
+		while (pos + 4 <= end) {
+			int id = cen.getShort(pos) & 0xFFFF;
+			int length = cen.getShort(pos + 2) & 0xFFFF;
+			if (id == 0x0001) {
+				// Only fields not fitting the record are present, in this order
+				int at = pos + 4;
+				for (int f = 0; f < field; f++) {
+					if ((cen.getInt(entry + ZIP64_FIELDS[f]) & MASK_32) == MASK_32) at += 8;
+				}
+				if (at + 8 <= pos + 4 + length) {
+					return cen.getLong(at);
+				}
+				break;
+			}
+			pos += 4 + length;
+		}
+		return value;
+	}
+
+	private void readFully(ByteBuffer b, long position, int length) throws IOException {
+		b.clear();
+		b.limit(length);
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) {
+				throw new ZipException("Unexpected end of zip file " + path);
+			}
+		}
+		b.flip();
+	}
+
+	/**
+	 * Put the UTF-8 bytes of a name in the reused name buffer, without allocating for ASCII names
+	 *
+	 * @return number of bytes
+	 */
+	private int encode(String name) {
+		int length = name.length();
+		if (buffers.name.length < length) {
+			buffers.name = new byte[length * 2];
+		}
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (c >= 0x80) {
+				byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+				if (buffers.name.length < utf8.length) {
+					buffers.name = new byte[utf8.length];
+				}
+				System.arraycopy(utf8, 0, buffers.name, 0, utf8.length);
+				return utf8.length;
+			}
+			buffers.name[i] = (byte) c;
+		}
+		return length;
+	}
+
+	private boolean nameEquals(int cenPosition, byte[] name, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (cen.get(cenPosition + i) != name[offset + i]) return false;
+		}
+		return true;
+	}
+
+	private int slashes(int cenPosition, int length) {
+		int slashes = 0;
+		for (int i = 0; i < length; i++) {
+			if (cen.get(cenPosition + i) == '/') slashes++;
+		}
+		return slashes;
+	}
+
+	private static int baseStart(byte[] name, int offset, int length) {
+		for (int i = offset + length - 1; i >= offset; i--) {
+			if (name[i] == '/') return i + 1;
+		}
+		return offset;
+	}
+
+	private static int hash(byte[] name, int from, int to) {
+		int h = 0x811C9DC5;
+		for (int i = from; i < to; i++) {
+			h = (h ^ (name[i] & 0xFF)) * 0x01000193;
+		}
+		return h;
+	}
+
+}